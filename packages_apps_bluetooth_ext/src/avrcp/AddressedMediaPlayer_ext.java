@@ -55,12 +55,25 @@ public class AddressedMediaPlayer_ext {
     @NonNull private List<MediaSession.QueueItem> mNowPlayingList;
 
     private final List<MediaSession.QueueItem> mEmptyNowPlayingList;
+    private final NowPlayingQueueIndex_ext mEmptyNowPlayingIndex;
+    @NonNull private NowPlayingQueueIndex_ext mNowPlayingIndex;
+
+    /* guards the now playing state below, browse requests of several devices may race */
+    private final Object mNowPlayingLock = new Object();
+    /* queue of mIndexedController is re-read only after onQueueChanged */
+    private volatile boolean mQueueChanged = true;
+    private MediaController mIndexedController = null;
+    private boolean mIndexIsSingleItem = false;
+    private int mQueueRebuilds = 0;
+    private int mQueueReuses = 0;
 
     private long mLastTrackIdSent;
 
     public AddressedMediaPlayer_ext(AvrcpMediaRspInterface_ext mediaInterface) {
         mEmptyNowPlayingList = new ArrayList<MediaSession.QueueItem>();
+        mEmptyNowPlayingIndex = new NowPlayingQueueIndex_ext(mEmptyNowPlayingList);
         mNowPlayingList = mEmptyNowPlayingList;
+        mNowPlayingIndex = mEmptyNowPlayingIndex;
         mMediaInterface = mediaInterface;
         mLastTrackIdSent = MediaSession.QueueItem.UNKNOWN_ID;
     }
@@ -74,7 +87,12 @@ public class AddressedMediaPlayer_ext {
         if (DEBUG) {
             Log.v(TAG, "cleanup");
         }
-        mNowPlayingList = mEmptyNowPlayingList;
+        synchronized (mNowPlayingLock) {
+            mNowPlayingList = mEmptyNowPlayingList;
+            mNowPlayingIndex = mEmptyNowPlayingIndex;
+            mIndexedController = null;
+            mQueueChanged = true;
+        }
         mMediaInterface = null;
         mLastTrackIdSent = MediaSession.QueueItem.UNKNOWN_ID;
     }
@@ -88,9 +106,10 @@ public class AddressedMediaPlayer_ext {
             mMediaInterface.folderItemsRsp(bdaddr, AvrcpConstants_ext.RSP_NO_AVBL_PLAY, null);
             return;
         }
-        List<MediaSession.QueueItem> items = updateNowPlayingList(mediaController);
-        getFolderItemsFilterAttr(bdaddr, reqObj, items, AvrcpConstants_ext.BTRC_SCOPE_NOW_PLAYING,
-                reqObj.mStartItem, reqObj.mEndItem, mediaController);
+        NowPlayingQueueIndex_ext index = updateNowPlayingIndex(mediaController);
+        getFolderItemsFilterAttr(bdaddr, reqObj, index,
+                AvrcpConstants_ext.BTRC_SCOPE_NOW_PLAYING, reqObj.mStartItem, reqObj.mEndItem,
+                mediaController);
     }
 
     /* get item attributes for item in now playing list */
@@ -98,7 +117,7 @@ public class AddressedMediaPlayer_ext {
             @Nullable MediaController mediaController) {
         int status = AvrcpConstants_ext.RSP_NO_ERROR;
         long mediaId = ByteBuffer.wrap(itemAttr.mUid).getLong();
-        List<MediaSession.QueueItem> items = updateNowPlayingList(mediaController);
+        NowPlayingQueueIndex_ext index = updateNowPlayingIndex(mediaController);
 
         // NOTE: this is out-of-spec (AVRCP 1.6.1 sec 6.10.4.3, p90) but we answer it anyway
         // because some CTs ask for it.
@@ -113,61 +132,87 @@ public class AddressedMediaPlayer_ext {
         if (DEBUG) {
             Log.d(TAG, "getItemAttr-UID: 0x" + Utils.byteArrayToString(itemAttr.mUid));
         }
-        for (MediaSession.QueueItem item : items) {
-            if (item.getQueueId() == mediaId) {
-                getItemAttrFilterAttr(bdaddr, itemAttr, item, mediaController);
-                return;
-            }
+        MediaSession.QueueItem item = index.find(mediaId);
+        if (item != null) {
+            getItemAttrFilterAttr(bdaddr, itemAttr, item, mediaController);
+            return;
         }
 
         // Couldn't find it, so the id is invalid
         mMediaInterface.getItemAttrRsp(bdaddr, AvrcpConstants_ext.RSP_INV_ITEM, null);
     }
 
+    /* Called from the controller callback, the next update re-reads and re-indexes the queue */
+    void onQueueChanged() {
+        mQueueChanged = true;
+    }
+
     /* Refresh and get the queue of now playing.
      */
     @NonNull
     List<MediaSession.QueueItem> updateNowPlayingList(@Nullable MediaController mediaController) {
+        return updateNowPlayingIndex(mediaController).getItems();
+    }
+
+    @NonNull
+    private NowPlayingQueueIndex_ext updateNowPlayingIndex(
+            @Nullable MediaController mediaController) {
         if (mediaController == null) {
-            return mEmptyNowPlayingList;
-        }
-        List<MediaSession.QueueItem> items = mediaController.getQueue();
-        if (items == null) {
-            Log.i(TAG, "null queue from " + mediaController.getPackageName()
-                    + ", constructing single-item list");
-
-            // Because we are database-unaware, we can just number the item here whatever we want
-            // because they have to re-poll it every time.
-            MediaMetadata metadata = mediaController.getMetadata();
-            if (metadata == null) {
-                Log.w(TAG, "Controller has no metadata!? Making an empty one");
-                metadata = (new MediaMetadata.Builder()).build();
+            return mEmptyNowPlayingIndex;
+        }
+        NowPlayingQueueIndex_ext index;
+        boolean changed;
+        synchronized (mNowPlayingLock) {
+            /* the synthesized single item queue follows metadata, so it is always rebuilt */
+            if (!mQueueChanged && !mIndexIsSingleItem && mediaController == mIndexedController) {
+                mQueueReuses++;
+                return mNowPlayingIndex;
             }
+            mQueueChanged = false;
+            mIndexedController = mediaController;
+            List<MediaSession.QueueItem> items = mediaController.getQueue();
+            mIndexIsSingleItem = (items == null);
+            if (items == null) {
+                Log.i(TAG, "null queue from " + mediaController.getPackageName()
+                        + ", constructing single-item list");
+
+                // Because we are database-unaware, we can just number the item here whatever we
+                // want because they have to re-poll it every time.
+                MediaMetadata metadata = mediaController.getMetadata();
+                if (metadata == null) {
+                    Log.w(TAG, "Controller has no metadata!? Making an empty one");
+                    metadata = (new MediaMetadata.Builder()).build();
+                }
 
-            MediaDescription.Builder bob = new MediaDescription.Builder();
-            MediaDescription desc = metadata.getDescription();
+                MediaDescription.Builder bob = new MediaDescription.Builder();
+                MediaDescription desc = metadata.getDescription();
 
-            // set the simple ones that MediaMetadata builds for us
-            bob.setMediaId(desc.getMediaId());
-            bob.setTitle(desc.getTitle());
-            bob.setSubtitle(desc.getSubtitle());
-            bob.setDescription(desc.getDescription());
-            // fill the ones that we use later
-            bob.setExtras(fillBundle(metadata, desc.getExtras()));
+                // set the simple ones that MediaMetadata builds for us
+                bob.setMediaId(desc.getMediaId());
+                bob.setTitle(desc.getTitle());
+                bob.setSubtitle(desc.getSubtitle());
+                bob.setDescription(desc.getDescription());
+                // fill the ones that we use later
+                bob.setExtras(fillBundle(metadata, desc.getExtras()));
 
-            // build queue item with the new metadata
-            MediaSession.QueueItem current = new QueueItem(bob.build(), SINGLE_QID);
+                // build queue item with the new metadata
+                MediaSession.QueueItem current = new QueueItem(bob.build(), SINGLE_QID);
 
-            items = new ArrayList<MediaSession.QueueItem>();
-            items.add(current);
-        }
+                items = new ArrayList<MediaSession.QueueItem>();
+                items.add(current);
+            }
 
-        if (!items.equals(mNowPlayingList)) {
+            mQueueRebuilds++;
+            index = new NowPlayingQueueIndex_ext(items);
+            changed = !index.sameContent(mNowPlayingIndex);
+            mNowPlayingList = items;
+            mNowPlayingIndex = index;
+        }
+        /* notify outside the lock, the response path may call back into this player */
+        if (changed) {
             sendNowPlayingListChanged();
         }
-        mNowPlayingList = items;
-
-        return mNowPlayingList;
+        return index;
     }
 
     private void sendNowPlayingListChanged() {
@@ -220,7 +265,7 @@ public class AddressedMediaPlayer_ext {
     /* Instructs media player to play particular media item */
     void playItem(byte[] bdaddr, byte[] uid, @Nullable MediaController mediaController) {
         long qid = ByteBuffer.wrap(uid).getLong();
-        List<MediaSession.QueueItem> items = updateNowPlayingList(mediaController);
+        NowPlayingQueueIndex_ext index = updateNowPlayingIndex(mediaController);
 
         if (mediaController == null) {
             Log.e(TAG, "No mediaController when PlayItem " + qid + " requested");
@@ -231,21 +276,13 @@ public class AddressedMediaPlayer_ext {
         MediaController.TransportControls mediaControllerCntrl =
                 mediaController.getTransportControls();
 
-        if (items == null) {
-            Log.w(TAG, "nowPlayingItems is null");
-            mMediaInterface.playItemRsp(bdaddr, AvrcpConstants_ext.RSP_INTERNAL_ERR);
-            return;
-        }
-
-        for (MediaSession.QueueItem item : items) {
-            if (qid == item.getQueueId()) {
-                if (DEBUG) {
-                    Log.d(TAG, "Skipping to ID " + qid);
-                }
-                mediaControllerCntrl.skipToQueueItem(qid);
-                mMediaInterface.playItemRsp(bdaddr, AvrcpConstants_ext.RSP_NO_ERROR);
-                return;
+        if (index.indexOf(qid) != NowPlayingQueueIndex_ext.INVALID_POSITION) {
+            if (DEBUG) {
+                Log.d(TAG, "Skipping to ID " + qid);
             }
+            mediaControllerCntrl.skipToQueueItem(qid);
+            mMediaInterface.playItemRsp(bdaddr, AvrcpConstants_ext.RSP_NO_ERROR);
+            return;
         }
 
         Log.w(TAG, "Invalid now playing Queue ID " + qid);
@@ -311,28 +348,14 @@ public class AddressedMediaPlayer_ext {
      * MediaItem list. (Resultset containing all items in current path)
      */
     @Nullable
-    private List<MediaSession.QueueItem> getQueueSubset(@NonNull List<MediaSession.QueueItem> items,
+    private List<MediaSession.QueueItem> getQueueSubset(@NonNull NowPlayingQueueIndex_ext index,
             long startItem, long endItem) {
-        if (endItem > items.size()) {
-            endItem = items.size() - 1;
+        List<MediaSession.QueueItem> selected = index.subList(startItem, endItem);
+        if (selected == null) {
+            Log.i(TAG, "Range (" + startItem + ", " + endItem + ") invalid for size "
+                    + index.size());
         }
-        if (startItem > Integer.MAX_VALUE) {
-            startItem = Integer.MAX_VALUE;
-        }
-        try {
-            List<MediaSession.QueueItem> selected =
-                    items.subList((int) startItem, (int) Math.min(items.size(), endItem + 1));
-            if (selected.isEmpty()) {
-                Log.i(TAG, "itemsSubList is empty.");
-                return null;
-            }
-            return selected;
-        } catch (IndexOutOfBoundsException ex) {
-            Log.i(TAG, "Range (" + startItem + ", " + endItem + ") invalid");
-        } catch (IllegalArgumentException ex) {
-            Log.i(TAG, "Range start " + startItem + " > size (" + items.size() + ")");
-        }
-        return null;
+        return selected;
     }
 
     /*
@@ -340,14 +363,15 @@ public class AddressedMediaPlayer_ext {
      * response
      */
     private void getFolderItemsFilterAttr(byte[] bdaddr, AvrcpCmd_ext.FolderItemsCmd folderItemsReqObj,
-            @NonNull List<MediaSession.QueueItem> items, byte scope, long startItem, long endItem,
+            @NonNull NowPlayingQueueIndex_ext index, byte scope, long startItem, long endItem,
             @NonNull MediaController mediaController) {
         if (DEBUG) {
             Log.d(TAG,
                     "getFolderItemsFilterAttr: startItem =" + startItem + ", endItem = " + endItem);
         }
 
-        List<MediaSession.QueueItem> resultItems = getQueueSubset(items, startItem, endItem);
+        long startNs = AvrcpPerfStats_ext.start();
+        List<MediaSession.QueueItem> resultItems = getQueueSubset(index, startItem, endItem);
         /* check for index out of bound errors */
         if (resultItems == null) {
             Log.w(TAG, "getFolderItemsFilterAttr: resultItems is empty");
@@ -356,6 +380,7 @@ public class AddressedMediaPlayer_ext {
         }
 
         FolderItemsData_ext folderDataNative = new FolderItemsData_ext(resultItems.size());
+        long activeQid = getActiveQueueItemId(mediaController);
 
         /* variables to accumulate attrs */
         ArrayList<String> attrArray = new ArrayList<String>();
@@ -373,8 +398,8 @@ public class AddressedMediaPlayer_ext {
             }
 
             /* Set display name for current item */
-            folderDataNative.mDisplayNames[itemIndex] =
-                    getAttrValue(bdaddr, AvrcpConstants_ext.ATTRID_TITLE, item, mediaController);
+            folderDataNative.mDisplayNames[itemIndex] = getAttrValue(bdaddr,
+                    AvrcpConstants_ext.ATTRID_TITLE, item, mediaController, activeQid);
 
             int maxAttributesRequested = 0;
             boolean isAllAttribRequested = false;
@@ -398,7 +423,7 @@ public class AddressedMediaPlayer_ext {
 
                     int attribId =
                             isAllAttribRequested ? (idx + 1) : folderItemsReqObj.mAttrIDs[idx];
-                    value = getAttrValue(bdaddr, attribId, item, mediaController);
+                    value = getAttrValue(bdaddr, attribId, item, mediaController, activeQid);
                     if (value != null) {
                         attrArray.add(value);
                         attrId.add(attribId);
@@ -410,6 +435,7 @@ public class AddressedMediaPlayer_ext {
             }
         }
 
+        long rspStartNs = AvrcpPerfStats_ext.start();
         /* copy filtered attr ids and attr values to response parameters */
         if (folderItemsReqObj.mNumAttr != AvrcpConstants_ext.NUM_ATTR_NONE) {
             folderDataNative.mAttrIds = new int[attrId.size()];
@@ -433,11 +459,22 @@ public class AddressedMediaPlayer_ext {
                         folderDataNative.mItemUid, folderDataNative.mDisplayNames,
                         folderDataNative.mAttributesNum, folderDataNative.mAttrIds,
                         folderDataNative.mAttrValues);
+        AvrcpPerfStats_ext.record(AvrcpPerfStats_ext.OP_FOLDER_ITEMS_RSP, resultItems.size(),
+                rspStartNs);
+        AvrcpPerfStats_ext.record(AvrcpPerfStats_ext.OP_NOW_PLAYING_FOLDER_ITEMS, index.size(),
+                startNs);
         mMediaInterface.folderItemsRsp(bdaddr, AvrcpConstants_ext.RSP_NO_ERROR, rspObj);
     }
 
     private String getAttrValue(byte []bdaddr, int attr, MediaSession.QueueItem item,
             @Nullable MediaController mediaController) {
+        return getAttrValue(bdaddr, attr, item, mediaController,
+                getActiveQueueItemId(mediaController));
+    }
+
+    /* activeQid is resolved once by callers looking up several attributes or items */
+    private String getAttrValue(byte []bdaddr, int attr, MediaSession.QueueItem item,
+            @Nullable MediaController mediaController, long activeQid) {
         String attrValue = null;
         if (item == null) {
             if (DEBUG) {
@@ -448,7 +485,7 @@ public class AddressedMediaPlayer_ext {
         try {
             MediaDescription desc = item.getDescription();
             Bundle extras = desc.getExtras();
-            boolean isCurrentTrack = item.getQueueId() == getActiveQueueItemId(mediaController);
+            boolean isCurrentTrack = item.getQueueId() == activeQid;
             MediaMetadata data = null;
             if (isCurrentTrack) {
                 if (DEBUG) {
@@ -571,9 +608,11 @@ public class AddressedMediaPlayer_ext {
             Log.d(TAG, "getItemAttrFilterAttr: attr id list size:" + attrTempId.size());
         }
         /* lookup and copy values of attributes for ids requested above */
+        long activeQid = getActiveQueueItemId(mediaController);
         for (int idx = 0; idx < attrTempId.size(); idx++) {
             /* check if media player provided requested attributes */
-            String value = getAttrValue(bdaddr, attrTempId.get(idx), mediaItem, mediaController);
+            String value = getAttrValue(bdaddr, attrTempId.get(idx), mediaItem, mediaController,
+                    activeQid);
             if (value != null) {
                 attrArray.add(value);
                 attrId.add(attrTempId.get(idx));
@@ -640,9 +679,18 @@ public class AddressedMediaPlayer_ext {
     public void dump(StringBuilder sb, @Nullable MediaController mediaController) {
         ProfileService.println(sb, "AddressedPlayer info:");
         ProfileService.println(sb, "mLastTrackIdSent: " + mLastTrackIdSent);
-        ProfileService.println(sb, "mNowPlayingList: " + mNowPlayingList.size() + " elements");
+        List<MediaSession.QueueItem> nowPlayingList;
+        int rebuilds, reuses;
+        synchronized (mNowPlayingLock) {
+            nowPlayingList = mNowPlayingList;
+            rebuilds = mQueueRebuilds;
+            reuses = mQueueReuses;
+        }
+        ProfileService.println(sb, "mNowPlayingList: " + nowPlayingList.size() + " elements");
+        ProfileService.println(sb, "Now playing index: rebuilt " + rebuilds
+                + ", reused " + reuses);
         long currentQueueId = getActiveQueueItemId(mediaController);
-        for (MediaSession.QueueItem item : mNowPlayingList) {
+        for (MediaSession.QueueItem item : nowPlayingList) {
             long itemId = item.getQueueId();
             ProfileService.println(sb,
                     (itemId == currentQueueId ? "*" : " ") + displayMediaItem(item));
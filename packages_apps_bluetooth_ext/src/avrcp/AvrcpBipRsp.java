@@ -42,9 +42,11 @@ import android.content.IntentFilter;
 import android.os.Message;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AvrcpBipRsp implements IObexConnectionHandler {
     private final String TAG = "AvrcpBipRsp";
@@ -70,8 +72,12 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
 
     private final int BIP_L2CAP_PSM = 0x1021;
 
-    private final HashMap<BluetoothDevice, AvrcpTgBipStateMachine> mBipStateMachineMap
-            = new HashMap<>();
+    /* read without locking from the AVRCP thread for every handle lookup */
+    private final ConcurrentHashMap<BluetoothDevice, AvrcpTgBipStateMachine> mBipStateMachineMap
+            = new ConcurrentHashMap<>();
+
+    /* GetImage and GetLinkedThumbnail encodes of all sessions */
+    private final AvrcpBipRspEncodeExecutor mEncodeExecutor = new AvrcpBipRspEncodeExecutor();
 
     private int mMaxBipDevices;
 
@@ -79,6 +85,11 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
 
     private HandlerThread mHandlerThread;
 
+    /* low priority thread encoding cover art as soon as a handle is handed out */
+    private HandlerThread mPreEncodeThread;
+
+    private volatile Handler mPreEncodeHandler;
+
     private final int BD_ADDR_LEN = 6; // bytes
 
     public AvrcpBipRsp (Context context, int maxBipConnections) {
@@ -113,6 +124,44 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
         }
     };
 
+    private synchronized void startPreEncodeThread() {
+        if (mPreEncodeThread != null) {
+            return;
+        }
+        mPreEncodeThread = new HandlerThread("BipPreEncodeThread",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mPreEncodeThread.start();
+        mPreEncodeHandler = new Handler(mPreEncodeThread.getLooper());
+    }
+
+    private synchronized void quitPreEncodeThread() {
+        if (mPreEncodeThread == null) {
+            return;
+        }
+        mPreEncodeHandler.removeCallbacksAndMessages(null);
+        mPreEncodeHandler = null;
+        mPreEncodeThread.quitSafely();
+        mPreEncodeThread = null;
+    }
+
+    /* Encodes the art behind a newly handed out handle before the remote asks for it */
+    private void schedulePreEncode(final AvrcpBipRspObexServer bipServer,
+            final String imgHandle) {
+        if (TextUtils.isEmpty(imgHandle) || !bipServer.markPreEncode(imgHandle)) {
+            return;
+        }
+        Handler handler = mPreEncodeHandler;
+        if (handler == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                bipServer.preEncode(imgHandle);
+            }
+        });
+    }
+
     private final Handler mSessionStatusHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -133,9 +182,7 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
                     BluetoothDevice remoteDevice = sm.getRemoteDevice();
                      if (D) Log.d(TAG ,"sm: " + sm + " remoteDevice: " + remoteDevice);
                     sm.quitNow();
-                    synchronized (mBipStateMachineMap) {
-                        mBipStateMachineMap.remove(remoteDevice);
-                    }
+                    mBipStateMachineMap.remove(remoteDevice);
                     if (D) Log.d(TAG ,"MSG_STATE_MACHINE_DONE");
                     break;
             }
@@ -159,10 +206,11 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
     private final synchronized void closeServerSocket() {
         if(D) Log.d(TAG, "closeServerSocket");
         // Step 1, 2: clean up active server session and connection socket
-        synchronized (mBipStateMachineMap) {
-            for (AvrcpTgBipStateMachine stateMachine : mBipStateMachineMap.values()) {
-                stateMachine.sendMessage(AvrcpTgBipStateMachine.DISCONNECT);
-            }
+        for (AvrcpTgBipStateMachine stateMachine : mBipStateMachineMap.values()) {
+            stateMachine.sendMessage(AvrcpTgBipStateMachine.DISCONNECT);
+        }
+        if (mPreEncodeHandler != null) {
+            mPreEncodeHandler.removeCallbacksAndMessages(null);
         }
         // Step 3: clean up existing server sockets
         if (mServerSocket != null) {
@@ -172,6 +220,8 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
     }
 
    void start() {
+        AvrcpBipRspAlbumIndex.getInstance(mContext).start();
+        startPreEncodeThread();
         IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
         if (!mIsRegistered) {
@@ -188,6 +238,8 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
 
     synchronized boolean stop() {
         if (D) Log.d(TAG, "stop()");
+        AvrcpBipRspAlbumIndex.getInstance(mContext).stop();
+        quitPreEncodeThread();
         if (mIsRegistered) {
             unRegisterReceiver();
         } else {
@@ -207,20 +259,16 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
             Log.e(TAG, "onConnect unexpected error, device: " + device + " socket: " + socket);
             return false;
         }
-        int smCount = 0;
-        synchronized (mBipStateMachineMap) {
-            smCount = mBipStateMachineMap.size();
-        }
+        int smCount = mBipStateMachineMap.size();
         if (D) Log.d(TAG, "onConnect device :" + device + " smCount:" + smCount);
         if (smCount >= mMaxBipDevices) {
             Log.w(TAG, "Cannot connect to " + device + " reached to max size :" + smCount);
             return false;
         }
         AvrcpTgBipStateMachine sm = AvrcpTgBipStateMachine.make(mContext,
-                mHandlerThread.getLooper(), device, socket,  mSessionStatusHandler);
-        synchronized (mBipStateMachineMap) {
-            mBipStateMachineMap.put(device, sm);
-        }
+                mHandlerThread.getLooper(), device, socket,  mSessionStatusHandler,
+                mEncodeExecutor);
+        mBipStateMachineMap.put(device, sm);
         return true;
     }
 
@@ -253,7 +301,7 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
         return device;
     }
 
-    synchronized String getImgHandleFromTitle(byte[] address, String title) {
+    String getImgHandleFromTitle(byte[] address, String title) {
         if(D) Log.d(TAG," getImgHandleFromTitle address :" + address + " title :" + title);
         if (address == null || address.length != BD_ADDR_LEN) {
             Log.w(TAG," retrun invalid getImgHandleFromTitle");
@@ -264,7 +312,9 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
         if(bipSm != null) {
             AvrcpBipRspObexServer bipServer = bipSm.getBipRsp();
             if(bipServer != null) {
-                return bipServer.getImgHandleFromTitle(title);
+                String imgHandle = bipServer.getImgHandleFromTitle(title);
+                schedulePreEncode(bipServer, imgHandle);
+                return imgHandle;
             } else {
                 Log.w(TAG,"getImgHandleFromTitle bipServer null");
             }
@@ -274,7 +324,7 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
         return "";
     }
 
-    synchronized String getImgHandle(BluetoothDevice device, String albumName) {
+    String getImgHandle(BluetoothDevice device, String albumName) {
         if (D) Log.v(TAG," getImgHandle device :" + device + " albumName :" + albumName);
         if (device == null || albumName == null) {
             Log.w(TAG," retrun invalid getImgHandle ");
@@ -284,7 +334,9 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
         if(bipSm != null) {
             AvrcpBipRspObexServer bipServer = bipSm.getBipRsp();
             if(bipServer != null) {
-                return bipServer.getImgHandle(albumName);
+                String imgHandle = bipServer.getImgHandle(albumName);
+                schedulePreEncode(bipServer, imgHandle);
+                return imgHandle;
             } else {
                 Log.v(TAG,"getImgHandle bipServer null");
             }
@@ -294,6 +346,12 @@ public class AvrcpBipRsp implements IObexConnectionHandler {
         return "";
     }
 
+    void dump(StringBuilder sb) {
+        AvrcpBipRspAlbumIndex.getInstance(mContext).dump(sb);
+        AvrcpBipRspImageCache.getInstance().dump(sb);
+        mEncodeExecutor.dump(sb);
+    }
+
     void disconnect(BluetoothDevice device) {
         AvrcpTgBipStateMachine bipSm = mBipStateMachineMap.get(device);
         if (D) Log.d(TAG, "disconnect device :" + device + " bipSm :" + bipSm);
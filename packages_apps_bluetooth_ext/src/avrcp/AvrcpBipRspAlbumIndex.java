@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2015-2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.Size;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Process wide index of the music library used by all BIP responder sessions to hand out
+ * image handles. Titles, album names and album ids come from a single MediaStore scan that
+ * runs on the index thread at start and again after the audio content changes, so a track
+ * change only costs hash lookups. Until a rescan completes the previous index is served and
+ * misses fall back to a query for the single title or album. Image handles are assigned once
+ * per album id and kept in both directions.
+ */
+class AvrcpBipRspAlbumIndex {
+    private static final String TAG = "AvrcpBipRspAlbumIndex";
+    private static final boolean D = true;
+    private static final boolean V = AvrcpBipRsp.V;
+
+    static final long INVALID_ALBUM_ID = -1;
+
+    private static final Uri URI_ALBUM = MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI;
+    private static final Uri URI_MEDIA = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+    private static final String[] COL_MEDIA = new String[] {
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ALBUM_ID,
+    };
+    private static final String WHERE = MediaStore.Audio.Media.IS_MUSIC + "=1";
+    private static final String ORDER_BY = MediaStore.Audio.Albums.DEFAULT_SORT_ORDER;
+    private static final int MAX_IMG_HANDLE = 10000000;
+    /* size of the thumbnail loaded to check that an album has art */
+    private static final int ART_PROBE_SIZE = 100;
+
+    private static AvrcpBipRspAlbumIndex sInstance;
+
+    private final Context mContext;
+    /* replaced as a whole by each scan, so a lookup never sees a half built index */
+    private HashMap<String, String> mTitleToAlbum = new HashMap<String, String>();
+    private HashMap<String, Long> mAlbumToId = new HashMap<String, Long>();
+    private final HashMap<Long, Boolean> mArtPresent = new HashMap<Long, Boolean>();
+    private final HashMap<Long, String> mIdToHandle = new HashMap<Long, String>();
+    private final HashMap<String, Long> mHandleToId = new HashMap<String, Long>();
+    private final Random mRandom = new Random();
+    private boolean mValid;
+    private boolean mObserving;
+    private boolean mScanPending;
+    private HandlerThread mScanThread;
+    private Handler mScanHandler;
+    private long mScans;
+    private long mLastScanMs;
+    private long mChanges;
+    /* bumped whenever indexed content may be stale, so dependent state can be refreshed */
+    private int mGeneration;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    private final Runnable mScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scan();
+        }
+    };
+
+    private AvrcpBipRspAlbumIndex(Context context) {
+        mContext = context;
+    }
+
+    static synchronized AvrcpBipRspAlbumIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AvrcpBipRspAlbumIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /* Starts following audio content changes, called when the BIP responder starts */
+    synchronized void start() {
+        if (mScanThread != null) {
+            return;
+        }
+        mScanThread = new HandlerThread("BipAlbumIndex");
+        mScanThread.start();
+        mScanHandler = new Handler(mScanThread.getLooper());
+        try {
+            mContext.getContentResolver().registerContentObserver(URI_MEDIA, true, mObserver);
+            mObserving = true;
+        } catch (SecurityException e) {
+            Log.e(TAG, "start: unable to observe " + URI_MEDIA + " " + e);
+        }
+        requestScan();
+    }
+
+    synchronized void stop() {
+        if (mObserving) {
+            mContext.getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+        if (mScanThread != null) {
+            mScanHandler.removeCallbacks(mScanRunnable);
+            mScanThread.quitSafely();
+            mScanThread = null;
+            mScanHandler = null;
+        }
+        mScanPending = false;
+        mTitleToAlbum = new HashMap<String, String>();
+        mAlbumToId = new HashMap<String, Long>();
+        mArtPresent.clear();
+        mValid = false;
+        mGeneration++;
+    }
+
+    private synchronized void invalidate() {
+        if (V) Log.v(TAG, "audio content changed");
+        mChanges++;
+        mValid = false;
+        mGeneration++;
+        requestScan();
+    }
+
+    /* Schedules a rescan on the index thread, lookups keep using the current index meanwhile */
+    private synchronized void requestScan() {
+        if (mScanPending || mScanHandler == null) {
+            return;
+        }
+        mScanPending = true;
+        mScanHandler.post(mScanRunnable);
+    }
+
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    String getAlbumName(String title) {
+        if (title == null) {
+            return null;
+        }
+        String albumName;
+        synchronized (this) {
+            albumName = mTitleToAlbum.get(title);
+            if (albumName == null && !mValid) {
+                requestScan();
+            }
+        }
+        if (albumName == null && !isValid()) {
+            /* the title may be newer than the index, look it up directly */
+            albumName = queryAlbumName(title);
+        }
+        if (D) Log.d(TAG, "getAlbumName: " + title + " -> " + albumName);
+        return albumName;
+    }
+
+    /* Album id of the named album if it has cover art, INVALID_ALBUM_ID otherwise */
+    long getAlbumIdWithArt(String albumName) {
+        if (albumName == null) {
+            return INVALID_ALBUM_ID;
+        }
+        Long albumId;
+        Boolean present = null;
+        synchronized (this) {
+            albumId = mAlbumToId.get(albumName);
+            if (albumId != null) {
+                present = mArtPresent.get(albumId);
+            } else if (!mValid) {
+                requestScan();
+            }
+        }
+        if (albumId == null && !isValid()) {
+            albumId = queryAlbumId(albumName);
+        }
+        if (albumId == null) {
+            if (D) Log.d(TAG, "getAlbumIdWithArt: no album " + albumName);
+            return INVALID_ALBUM_ID;
+        }
+        if (present == null) {
+            present = isAlbumArtPresent(albumId);
+            synchronized (this) {
+                mArtPresent.put(albumId, present);
+            }
+        }
+        return present ? albumId : INVALID_ALBUM_ID;
+    }
+
+    private synchronized boolean isValid() {
+        return mValid;
+    }
+
+    /* Image handle of the album id, assigned on first use and unique across albums */
+    synchronized String getImgHandle(long albumId) {
+        String imgHandle = mIdToHandle.get(albumId);
+        if (imgHandle == null) {
+            do {
+                imgHandle = String.format("%07d", mRandom.nextInt(MAX_IMG_HANDLE));
+            } while (mHandleToId.containsKey(imgHandle));
+            mIdToHandle.put(albumId, imgHandle);
+            mHandleToId.put(imgHandle, albumId);
+            if (V) Log.v(TAG, "getImgHandle: albumId " + albumId + " -> " + imgHandle);
+        }
+        return imgHandle;
+    }
+
+    synchronized long getAlbumId(String imgHandle) {
+        Long albumId = mHandleToId.get(imgHandle);
+        return albumId == null ? INVALID_ALBUM_ID : albumId;
+    }
+
+    /* Runs on the index thread, the new maps are swapped in once complete */
+    private void scan() {
+        synchronized (this) {
+            /* a change arriving while scanning schedules another scan */
+            mScanPending = false;
+        }
+        long start = System.currentTimeMillis();
+        HashMap<String, String> titleToAlbum = new HashMap<String, String>();
+        HashMap<String, Long> albumToId = new HashMap<String, Long>();
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(URI_MEDIA, COL_MEDIA,
+                    WHERE, null, ORDER_BY);
+            while (cursor != null && cursor.moveToNext()) {
+                String title = cursor.getString(0);
+                String albumName = cursor.getString(1);
+                if (TextUtils.isEmpty(albumName)) {
+                    continue;
+                }
+                /* first match wins, as with the per title query this replaces */
+                if (title != null && !titleToAlbum.containsKey(title)) {
+                    titleToAlbum.put(title, albumName);
+                }
+                if (!albumToId.containsKey(albumName)) {
+                    albumToId.put(albumName, cursor.getLong(2));
+                }
+            }
+        } catch (IllegalArgumentException | SQLiteException | SecurityException e) {
+            /* keep serving the previous index, it stays invalid so the next miss retries */
+            Log.e(TAG, "scan: exception = " + e);
+            return;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        HashSet<Long> albumIds = new HashSet<Long>(albumToId.values());
+        synchronized (this) {
+            if (mScanHandler == null) {
+                /* stopped while scanning */
+                return;
+            }
+            /* cover art of albums that are gone can no longer be served */
+            for (Long albumId : mAlbumToId.values()) {
+                if (!albumIds.contains(albumId)) {
+                    AvrcpBipRspImageCache.getInstance().removeAlbum(albumId);
+                }
+            }
+            mTitleToAlbum = titleToAlbum;
+            mAlbumToId = albumToId;
+            mArtPresent.clear();
+            mValid = !mScanPending;
+            mScans++;
+            mLastScanMs = System.currentTimeMillis() - start;
+            if (D) Log.d(TAG, "indexed " + mTitleToAlbum.size() + " titles, "
+                    + mAlbumToId.size() + " albums in " + mLastScanMs + " ms");
+        }
+    }
+
+    private String queryAlbumName(String title) {
+        Cursor cursor = null;
+        try {
+            cursor = queryMedia(MediaStore.Audio.Media.TITLE, title);
+            if (cursor != null && cursor.moveToFirst()) {
+                String albumName = cursor.getString(1);
+                return TextUtils.isEmpty(albumName) ? null : albumName;
+            }
+        } catch (IllegalArgumentException | SQLiteException | SecurityException e) {
+            Log.e(TAG, "queryAlbumName: exception = " + e);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return null;
+    }
+
+    private Long queryAlbumId(String albumName) {
+        Cursor cursor = null;
+        try {
+            cursor = queryMedia(MediaStore.Audio.Media.ALBUM, albumName);
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(2);
+            }
+        } catch (IllegalArgumentException | SQLiteException | SecurityException e) {
+            Log.e(TAG, "queryAlbumId: exception = " + e);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return null;
+    }
+
+    private Cursor queryMedia(String column, String value) {
+        return mContext.getContentResolver().query(URI_MEDIA, COL_MEDIA,
+                WHERE + " AND " + column + "=?", new String[] {value}, ORDER_BY);
+    }
+
+    private boolean isAlbumArtPresent(long albumId) {
+        Uri albumUri = ContentUris.withAppendedId(URI_ALBUM, albumId);
+        Bitmap bitmap = null;
+        try {
+            bitmap = mContext.getContentResolver().loadThumbnail(albumUri,
+                    new Size(ART_PROBE_SIZE, ART_PROBE_SIZE), null);
+        } catch (IOException e) {
+            if (D) Log.d(TAG, "isAlbumArtPresent " + albumId + " " + e.toString());
+        }
+        if (bitmap == null) {
+            return false;
+        }
+        bitmap.recycle();
+        return true;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "BIP album index: " + (mValid ? "valid" : "stale") + ", "
+                + mTitleToAlbum.size() + " titles, " + mAlbumToId.size() + " albums, "
+                + mIdToHandle.size() + " handles, scans " + mScans + " (last " + mLastScanMs
+                + " ms), content changes " + mChanges);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015-2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker pool encoding GetImage and GetLinkedThumbnail responses for all BIP responder
+ * sessions, so that several remotes asking at once share the cores instead of each OBEX
+ * session thread competing for them. Requests that find the queue full are encoded on the
+ * calling session thread. Also keeps the encode and transfer counters of every remote.
+ */
+class AvrcpBipRspEncodeExecutor {
+    private static final String TAG = "AvrcpBipRspEncodeExecutor";
+    private static final boolean V = AvrcpBipRsp.V;
+
+    private static final int QUEUE_CAPACITY = 8;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mThreads;
+    private final ConcurrentHashMap<BluetoothDevice, DeviceStats> mDeviceStats =
+            new ConcurrentHashMap<BluetoothDevice, DeviceStats>();
+    private int mMaxQueueDepth;
+
+    /* Counters of one remote device, kept across its BIP sessions */
+    private static class DeviceStats {
+        long mRequests;
+        long mCancelled;
+        long mFailed;
+        long mQueueNs;
+        long mEncodeNs;
+        long mMaxEncodeNs;
+        long mBytesServed;
+
+        @Override
+        public synchronized String toString() {
+            long done = Math.max(1, mRequests - mCancelled);
+            return "requests " + mRequests + ", cancelled " + mCancelled + ", failed " + mFailed
+                    + ", avg queue " + (mQueueNs / done / 1000) + " us, avg encode "
+                    + (mEncodeNs / done / 1000) + " us, max encode " + (mMaxEncodeNs / 1000)
+                    + " us, bytes served " + mBytesServed;
+        }
+    }
+
+    AvrcpBipRspEncodeExecutor() {
+        mThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(mThreads, mThreads, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "BipEncode-" + count.incrementAndGet());
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private DeviceStats getStats(BluetoothDevice device) {
+        DeviceStats stats = mDeviceStats.get(device);
+        if (stats == null) {
+            stats = new DeviceStats();
+            DeviceStats previous = mDeviceStats.putIfAbsent(device, stats);
+            if (previous != null) {
+                stats = previous;
+            }
+        }
+        return stats;
+    }
+
+    /* Queues an encode for the device, the returned future may be cancelled by its session */
+    Future<byte[]> submit(BluetoothDevice device, final Callable<byte[]> encode) {
+        final DeviceStats stats = getStats(device);
+        final long queuedNs = System.nanoTime();
+        int depth = mExecutor.getQueue().size();
+        synchronized (this) {
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, depth);
+        }
+        if (V) Log.v(TAG, "submit " + device + " queue depth " + depth);
+        synchronized (stats) {
+            stats.mRequests++;
+        }
+        return mExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                long startNs = System.nanoTime();
+                byte[] encoded = encode.call();
+                long endNs = System.nanoTime();
+                synchronized (stats) {
+                    stats.mQueueNs += startNs - queuedNs;
+                    stats.mEncodeNs += endNs - startNs;
+                    stats.mMaxEncodeNs = Math.max(stats.mMaxEncodeNs, endNs - startNs);
+                    if (encoded == null) {
+                        stats.mFailed++;
+                    }
+                }
+                return encoded;
+            }
+        });
+    }
+
+    void recordCancelled(BluetoothDevice device) {
+        DeviceStats stats = getStats(device);
+        synchronized (stats) {
+            stats.mCancelled++;
+        }
+    }
+
+    void recordServed(BluetoothDevice device, int bytes) {
+        DeviceStats stats = getStats(device);
+        synchronized (stats) {
+            stats.mBytesServed += bytes;
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "BIP encode pool: " + mThreads + " threads, "
+                + mExecutor.getActiveCount() + " active, queue depth "
+                + mExecutor.getQueue().size() + " (max " + mMaxQueueDepth + "), completed "
+                + mExecutor.getCompletedTaskCount());
+        for (Map.Entry<BluetoothDevice, DeviceStats> entry : mDeviceStats.entrySet()) {
+            ProfileService.println(sb, "  " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+}
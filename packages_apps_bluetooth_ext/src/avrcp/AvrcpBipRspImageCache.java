@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2015-2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import android.graphics.Bitmap;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of encoded cover art shared by all BIP responder sessions. Entries are
+ * keyed by album id, encoding and pixel size, and the least recently served ones are evicted
+ * once the total size exceeds the byte budget.
+ */
+class AvrcpBipRspImageCache {
+    private static final String TAG = "AvrcpBipRspImageCache";
+    private static final boolean V = AvrcpBipRsp.V;
+
+    private static final String BUDGET_PROPERTY = "persist.vendor.btstack.avrcp.bip_cache_kb";
+    private static final int DEFAULT_BUDGET_KB = 1024;
+
+    /* encoding name used for linked thumbnails, which carry their own EXIF header */
+    static final String ENCODING_THUMBNAIL = "THM";
+    /* number of distinct GetImage variants whose request counts are kept */
+    private static final int MAX_VARIANTS = 16;
+
+    private static AvrcpBipRspImageCache sInstance;
+
+    private final LinkedHashMap<String, byte[]> mEntries =
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private final long mBudgetBytes;
+    private long mBytes;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mPreEncoded;
+    private final HashMap<String, Variant> mVariants = new HashMap<String, Variant>();
+    private Variant mPreferredVariant;
+
+    /* Encoding and pixel size of a GetImage request, with the number of times it was asked */
+    static class Variant {
+        final Bitmap.CompressFormat mFormat;
+        final int mWidth;
+        final int mHeight;
+        int mCount;
+
+        Variant(Bitmap.CompressFormat format, int width, int height) {
+            mFormat = format;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public String toString() {
+            return mFormat + " " + mWidth + "*" + mHeight + " x" + mCount;
+        }
+    }
+
+    private AvrcpBipRspImageCache(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    static synchronized AvrcpBipRspImageCache getInstance() {
+        if (sInstance == null) {
+            int budgetKb = SystemProperties.getInt(BUDGET_PROPERTY, DEFAULT_BUDGET_KB);
+            sInstance = new AvrcpBipRspImageCache(Math.max(0, budgetKb) * 1024L);
+        }
+        return sInstance;
+    }
+
+    static String getKey(long albumId, String encoding, int width, int height) {
+        return albumId + "/" + encoding + "/" + width + "*" + height;
+    }
+
+    synchronized byte[] get(String key) {
+        byte[] data = mEntries.get(key);
+        if (data == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        if (V) Log.v(TAG, "get " + key + (data == null ? " miss" : " hit"));
+        return data;
+    }
+
+    /* Lookup that is not accounted as a hit or miss, used by pre-encoding */
+    synchronized byte[] peek(String key) {
+        return mEntries.get(key);
+    }
+
+    synchronized void put(String key, byte[] data, boolean preEncoded) {
+        if (preEncoded) {
+            mPreEncoded++;
+        }
+        put(key, data);
+    }
+
+    synchronized void put(String key, byte[] data) {
+        if (data == null || data.length > mBudgetBytes) {
+            return;
+        }
+        byte[] previous = mEntries.put(key, data);
+        if (previous != null) {
+            mBytes -= previous.length;
+        }
+        mBytes += data.length;
+        Iterator<Map.Entry<String, byte[]>> it = mEntries.entrySet().iterator();
+        while (mBytes > mBudgetBytes && it.hasNext()) {
+            Map.Entry<String, byte[]> eldest = it.next();
+            mBytes -= eldest.getValue().length;
+            it.remove();
+            mEvictions++;
+        }
+        if (V) Log.v(TAG, "put " + key + " " + data.length + " bytes, total " + mBytes);
+    }
+
+    synchronized void recordVariantRequest(Bitmap.CompressFormat format, int width, int height) {
+        String key = format.name() + "/" + width + "*" + height;
+        Variant variant = mVariants.get(key);
+        if (variant == null) {
+            if (mVariants.size() >= MAX_VARIANTS) {
+                return;
+            }
+            variant = new Variant(format, width, height);
+            mVariants.put(key, variant);
+        }
+        variant.mCount++;
+        if (mPreferredVariant == null || variant.mCount > mPreferredVariant.mCount) {
+            mPreferredVariant = variant;
+        }
+    }
+
+    /* The GetImage variant requested most often so far, or null before the first request */
+    synchronized Variant getPreferredVariant() {
+        return mPreferredVariant;
+    }
+
+    /* Drops every encoding and size cached for the album */
+    synchronized void removeAlbum(long albumId) {
+        String prefix = albumId + "/";
+        Iterator<Map.Entry<String, byte[]>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, byte[]> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                mBytes -= entry.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "BIP cover art cache: " + mEntries.size() + " entries, "
+                + mBytes + "/" + mBudgetBytes + " bytes, hits " + mHits + ", misses "
+                + mMisses + ", evictions " + mEvictions + ", pre-encoded " + mPreEncoded
+                + ", preferred variant " + mPreferredVariant);
+    }
+}
@@ -21,6 +21,12 @@ package com.android.bluetooth.avrcp;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.obex.HeaderSet;
 import javax.obex.Operation;
@@ -39,8 +45,17 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
     private final int LENGTH_UUID = 16;
     private Context mContext = null;
     private AvrcpBipRspParser mAvrcpBipRspParser;
-    private boolean mAborted;
-    private boolean mConnected;
+    private volatile boolean mAborted;
+    private volatile boolean mConnected;
+    /* last handle queued for pre-encoding */
+    private String mPreEncodeHandle;
+    private final AvrcpBipRspEncodeExecutor mEncodeExecutor;
+    /* encode the session thread is waiting for, cancelled when the session is closed */
+    private volatile Future<byte[]> mEncodeFuture;
+    /* the session thread checks for abort and close this often while waiting for an encode */
+    private static final long ENCODE_POLL_MS = 100;
+    /* an encode still running after this is given up and the GET fails */
+    private static final long ENCODE_TIMEOUT_MS = 10000;
 
     // 128 bit UUID for Cover Art
     private final byte[] BIP_RESPONDER = new byte[] {
@@ -73,9 +88,11 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
 
     private AvrcpTgBipStateMachine mStateMachine;
 
-    public AvrcpBipRspObexServer(Context context, AvrcpTgBipStateMachine stateMachine) {
+    public AvrcpBipRspObexServer(Context context, AvrcpTgBipStateMachine stateMachine,
+            AvrcpBipRspEncodeExecutor encodeExecutor) {
         mContext = context;
         mStateMachine = stateMachine;
+        mEncodeExecutor = encodeExecutor;
         TAG += mStateMachine.getSmTag();
         mAvrcpBipRspParser = new AvrcpBipRspParser(mContext,
                 mStateMachine.getRemoteDevice().getAddress());
@@ -134,11 +151,14 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
         if (D) Log.d(TAG, "onDisconnect ");
         resp.responseCode = ResponseCodes.OBEX_HTTP_OK;
         mConnected = false;
+        cancelEncode();
     }
 
     @Override
     public int onAbort(HeaderSet request, HeaderSet reply) {
         if (D) Log.d(TAG, "onAbort ");
+        /* ABORT is read by the session thread itself, so it can not arrive while that thread
+         * waits for an encode; the flag only stops a GET whose response is still streaming */
         mAborted = true;
         return ResponseCodes.OBEX_HTTP_OK;
     }
@@ -148,6 +168,7 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
         if (D) Log.d(TAG, "onClose ");
         mStateMachine.sendMessage(AvrcpTgBipStateMachine.DISCONNECT);
         mConnected = false;
+        cancelEncode();
     }
 
     @Override
@@ -157,6 +178,8 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
         String imgHandle = null;
         int responseCode = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         if (D) Log.d(TAG, "onGet() start ");
+        /* an abort only applies to the operation it was received for */
+        mAborted = false;
         try {
             request = op.getReceivedHeader();
             type = (String)request.getHeader(HeaderSet.TYPE);
@@ -209,6 +232,94 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
         return mAvrcpBipRspParser.getImgHandle(albumName);
     }
 
+    /* Returns true if imgHandle was not the last handle queued for pre-encoding */
+    synchronized boolean markPreEncode(String imgHandle) {
+        if (imgHandle.equals(mPreEncodeHandle)) {
+            return false;
+        }
+        mPreEncodeHandle = imgHandle;
+        return true;
+    }
+
+    void preEncode(String imgHandle) {
+        if (!mConnected) {
+            if (D) Log.d(TAG, "preEncode, Session not established");
+            return;
+        }
+        mAvrcpBipRspParser.preEncode(imgHandle);
+    }
+
+    /* Stops waiting for the encode in progress, the worker result is dropped */
+    void cancelEncode() {
+        Future<byte[]> future = mEncodeFuture;
+        if (future != null && future.cancel(true)) {
+            if (D) Log.d(TAG, "cancelEncode: cancelled");
+            mEncodeExecutor.recordCancelled(mStateMachine.getRemoteDevice());
+        }
+    }
+
+    /*
+     * Runs the encode on the shared worker pool and waits for it, null if it failed. The wait
+     * is bounded and polls for a session closed from another thread, which cancels the encode.
+     */
+    private byte[] encodeOnWorker(Callable<byte[]> encode) {
+        Future<byte[]> future = mEncodeExecutor.submit(mStateMachine.getRemoteDevice(), encode);
+        mEncodeFuture = future;
+        try {
+            long waited = 0;
+            while (true) {
+                if (mAborted || !mConnected) {
+                    cancelEncode();
+                    return null;
+                }
+                try {
+                    return future.get(ENCODE_POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    waited += ENCODE_POLL_MS;
+                    if (waited >= ENCODE_TIMEOUT_MS) {
+                        Log.w(TAG, "encodeOnWorker: timed out after " + waited + " ms");
+                        cancelEncode();
+                        return null;
+                    }
+                }
+            }
+        } catch (CancellationException e) {
+            Log.w(TAG, "encodeOnWorker: cancelled");
+        } catch (InterruptedException e) {
+            Log.w(TAG, "encodeOnWorker: interrupted");
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "encodeOnWorker: ", e.getCause());
+        } finally {
+            mEncodeFuture = null;
+        }
+        return null;
+    }
+
+    /* Sends an already encoded image and closes the OBEX stream */
+    private boolean writeImage(Operation op, byte[] encoded) {
+        OutputStream outStream = null;
+        try {
+            outStream = op.openOutputStream();
+            outStream.write(encoded);
+            outStream.flush();
+            mEncodeExecutor.recordServed(mStateMachine.getRemoteDevice(), encoded.length);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "writeImage: " + e);
+            return false;
+        } finally {
+            if (outStream != null) {
+                try {
+                    outStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "writeImage: exception in closing stream " + e);
+                }
+            }
+        }
+    }
+
     private final void logHeader(HeaderSet hs) {
         Log.v(TAG, "Dumping HeaderSet " + hs.toString());
         try {
@@ -264,6 +375,7 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
             if(V)
                 Log.v(TAG,"getImgPropertiesRsp sent " + bytesWritten +" bytes out of "
                 + outBytes.length);
+            mEncodeExecutor.recordServed(mStateMachine.getRemoteDevice(), bytesWritten);
             if(bytesWritten == outBytes.length)
                 return ResponseCodes.OBEX_HTTP_OK;
             else
@@ -273,16 +385,15 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
 
     }
 
-    private int getImgThumbRsp(Operation op, String imgHandle) {
-        OutputStream outStream = null;
-        try {
-            outStream = op.openOutputStream();
-        } catch (IOException e) {
-            Log.w(TAG,"getImgThumbRsp: sending OBEX_HTTP_BAD_REQUEST", e);
-            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-        }
+    private int getImgThumbRsp(Operation op, final String imgHandle) {
         if (D) Log.d(TAG,"getImgThumbRsp: imgHandle = " + imgHandle);
-        if (mAvrcpBipRspParser.getImgThumb(outStream, imgHandle)) {
+        byte[] encoded = encodeOnWorker(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return mAvrcpBipRspParser.encodeImgThumb(imgHandle);
+            }
+        });
+        if (encoded != null && writeImage(op, encoded)) {
             if (!mAborted && mConnected) {
                 if (D) Log.d(TAG,"getImgThumbRsp: returning OBEX_HTTP_OK");
                 return ResponseCodes.OBEX_HTTP_OK;
@@ -293,22 +404,21 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
         }
+        mAborted = false;
         if (D) Log.w(TAG,"getImgThumbRsp: returning OBEX_HTTP_BAD_REQUEST");
         return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
     }
 
-    private int getImgRsp(Operation op, String imgHandle, String imgDescXmlString) {
-        OutputStream outStream = null;
-        try {
-            outStream = op.openOutputStream();
-        } catch (IOException e) {
-            Log.w(TAG,"getImgRsp: IOException" +
-                    " - sending OBEX_HTTP_BAD_REQUEST Exception:", e);
-            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-        }
-
+    private int getImgRsp(Operation op, final String imgHandle,
+            final String imgDescXmlString) {
         if (D) Log.d(TAG,"getImgRsp: imgHandle = " + imgHandle);
-        if (mAvrcpBipRspParser.getImg(outStream, imgHandle, imgDescXmlString)) {
+        byte[] encoded = encodeOnWorker(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return mAvrcpBipRspParser.encodeImg(imgHandle, imgDescXmlString);
+            }
+        });
+        if (encoded != null && writeImage(op, encoded)) {
             if (!mAborted && mConnected) {
                 if (V) Log.d(TAG,"getImgRsp: returning OBEX_HTTP_OK");
                 return ResponseCodes.OBEX_HTTP_OK;
@@ -318,6 +428,7 @@ public class AvrcpBipRspObexServer extends ServerRequestHandler {
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
         }
+        mAborted = false;
         if (D) Log.d(TAG,"getImgRsp: returning OBEX_HTTP_BAD_REQUEST");
         return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
     }
@@ -30,18 +30,16 @@
 package com.android.bluetooth.avrcp;
 
 import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -53,17 +51,15 @@ import com.android.internal.util.FastXmlSerializer;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import android.graphics.ImageFormat;
+import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
-import android.media.ExifInterface;
 import android.net.Uri;
-import android.os.Environment;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.text.TextUtils;
@@ -76,47 +72,73 @@ public class AvrcpBipRspParser {
     private final boolean D = true;
     private static final boolean V = AvrcpBipRsp.V;
     private Context mContext;
-    private HashMap<Long, String> mArtHandleMap = new HashMap<Long, String>();
-    private HashMap<String, AvrcpBipRspCoverArtAttributes > mCoverArtAttributesMap =
-        new HashMap<String, AvrcpBipRspCoverArtAttributes >();
+    /* also read from the pre-encode thread */
+    private Map<Long, String> mArtHandleMap = new ConcurrentHashMap<Long, String>();
+    private Map<String, AvrcpBipRspCoverArtAttributes > mCoverArtAttributesMap =
+        new ConcurrentHashMap<String, AvrcpBipRspCoverArtAttributes >();
     private final Uri URI_ALBUM = MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI;
-    private final Uri URI_MEDIA = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-    private int BIP_THUMB_WIDTH = 200;
-    private int BIP_THUMB_HEIGHT = 200;
+    private static final int BIP_THUMB_WIDTH = 200;
+    private static final int BIP_THUMB_HEIGHT = 200;
     private int MIN_SUPPORTED_WIDTH = 100;
     private int MIN_SUPPORTED_HEIGHT = 100;
     private int MAX_SUPPORTED_WIDTH = 1280;
     private int MAX_SUPPORTED_HEIGHT = 1080;
-    private int MAX_IMG_HANDLE = 10000000;
     private int COMPRESSION_QUALITY_HIGH = 75;
     /* Constants used for converting RGB -> YUV */
-    private final int COEFF1 = 19595;
-    private final int COEFF2 = 38470;
-    private final int COEFF3 = 7471;
-    private final int COEFF4 = -11059;
-    private final int COEFF5 = -21709;
-    private final int COEFF6 = 32768;
-    private final int COEFF7 = 32768;
-    private final int COEFF8 = -27439;
-    private final int COEFF9 = -5329;
-    /* Tmp path for storing file before compressing and sending to obex.
-     * This file is deleted after the operation */
-    private String mTmpFilePath = "";
-    private final String ORDER_BY = MediaStore.Audio.Albums.DEFAULT_SORT_ORDER;
-    private final String[] COL_ALBUM = new String[] {
-             MediaStore.Audio.Albums._ID,
-             MediaStore.Audio.Albums.ALBUM_ID,
+    private static final int COEFF1 = 19595;
+    private static final int COEFF2 = 38470;
+    private static final int COEFF3 = 7471;
+    private static final int COEFF4 = -11059;
+    private static final int COEFF5 = -21709;
+    private static final int COEFF6 = 32768;
+    private static final int COEFF7 = 32768;
+    private static final int COEFF8 = -27439;
+    private static final int COEFF9 = -5329;
+    /* Pixel and YUY2 buffers reused for every linked thumbnail of this session */
+    private final int[] mThumbPixels = new int[BIP_THUMB_WIDTH * BIP_THUMB_HEIGHT];
+    private final byte[] mThumbYuv = new byte[BIP_THUMB_WIDTH * BIP_THUMB_HEIGHT
+            * ImageFormat.getBitsPerPixel(ImageFormat.YUY2) / 8];
+    /* Initial size of the in memory buffer an image is compressed into */
+    private static final int JPEG_BUFFER_SIZE = 32 * 1024;
+    /* APP1 segment with a big endian TIFF IFD0 holding ImageWidth and ImageLength (LONG) */
+    private static final byte[] EXIF_HEADER = new byte[] {
+            (byte) 0xFF, (byte) 0xE1, 0x00, 0x2E,
+            'E', 'x', 'i', 'f', 0x00, 0x00,
+            'M', 'M', 0x00, 0x2A, 0x00, 0x00, 0x00, 0x08,
+            0x00, 0x02,
+            0x01, 0x00, 0x00, 0x04, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00,
+            0x01, 0x01, 0x00, 0x04, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x00, 0x00
     };
-    private final String WHERE = MediaStore.Audio.Albums.ALBUM + "=?";
+    private static final int EXIF_WIDTH_OFFSET = 28;
+    private static final int EXIF_HEIGHT_OFFSET = 40;
     private String tag = "";
+    /* encoded variants shared with the BIP sessions of other remote devices */
+    private final AvrcpBipRspImageCache mImageCache = AvrcpBipRspImageCache.getInstance();
+    /* title, album and image handle lookups shared with the other BIP sessions */
+    private final AvrcpBipRspAlbumIndex mAlbumIndex;
+    /* number of distinct raw image descriptors whose parsed and validated form is kept */
+    private static final int IMG_DESC_CACHE_MAX_ENTRIES = 8;
+    /* stands for a descriptor that failed to parse or validate */
+    private static final AvrcpBipRspImgDescriptor INVALID_IMG_DESC = new AvrcpBipRspImgDescriptor();
+    /* remotes send the same descriptor for every GetImage, shared by all sessions */
+    private static final LinkedHashMap<String, AvrcpBipRspImgDescriptor> sImgDescCache =
+            new LinkedHashMap<String, AvrcpBipRspImgDescriptor>(
+                    IMG_DESC_CACHE_MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, AvrcpBipRspImgDescriptor> eldest) {
+                    return size() > IMG_DESC_CACHE_MAX_ENTRIES;
+                }
+            };
 
     public AvrcpBipRspParser(Context context, String tag) {
         setTag(tag);
         mContext = context;
+        mAlbumIndex = AvrcpBipRspAlbumIndex.getInstance(context);
         mArtHandleMap.clear();
         mCoverArtAttributesMap.clear();
         this.tag = tag;
-        isStorageReady();
     }
 
     private void setTag(String tag){
@@ -137,6 +159,9 @@ public class AvrcpBipRspParser {
         private int mWidth = 0;
         private int mHeight = 0;
         private long albumUriId = 0;
+        /* album index generation the native properties were read at, -1 if never */
+        private int mGeneration = -1;
+        private byte[] mPropertiesXml = null;
 
         Uri getmAlbumUri() {
             if (albumId != 0) {
@@ -197,35 +222,40 @@ public class AvrcpBipRspParser {
         public String getNativeSize() {
             return mNativeSize;
         }
+        public void setGeneration(int generation) {
+            mGeneration = generation;
+        }
+        public int getGeneration() {
+            return mGeneration;
+        }
+        public void setPropertiesXml(byte[] propertiesXml) {
+            mPropertiesXml = propertiesXml;
+        }
+        public byte[] getPropertiesXml() {
+            return mPropertiesXml;
+        }
     };
 
-    private void rgb2yuv(int rgb, byte[] convArray) {
-        int a = Color.red(rgb);
-        int b = Color.green(rgb);
-        int c = Color.blue(rgb);
-        convArray[0] = (byte) ((COEFF1 * a + COEFF2 * b + COEFF3 * c) >> 16);
-        convArray[1] = (byte) (((COEFF4 * a + COEFF5 * b + COEFF6 * c) >> 16) + 128);
-        convArray[2] = (byte) (((COEFF7 * a + COEFF8 * b + COEFF9 * c) >> 16) + 128);
-    }
-
-    private byte[] convertToYuv(int[] rgb, int w, int h) {
-        byte[] convArray = new byte[w * h * ImageFormat.getBitsPerPixel(ImageFormat.YUY2)];
-        byte[] col0 = new byte[3];
-        byte[] co11 = new byte[3];
-        for (int i = 0; i < h; ++i) {
-            for (int j = 0; j < w; j += 2) {
-                int id = i * w + j;
-                rgb2yuv(rgb[id], col0);
-                rgb2yuv(rgb[id + 1], co11);
-                int index = id / 2 * 4;
-                convArray[index] = col0[0];
-                convArray[index + 1] = col0[1];
-                convArray[index + 2] = co11[0];
-                convArray[index + 3] = col0[2];
-           }
-        }
-
-        return convArray;
+    /*
+     * Converts packed ARGB pixels to YUY2 (Y0 U0 Y1 V0), taking the chroma of each pixel pair
+     * from its first pixel. The width must be even and yuv must hold 2 bytes per pixel.
+     */
+    private static void convertToYuv(int[] rgb, int w, int h, byte[] yuv) {
+        final int pixels = w * h;
+        for (int i = 0, o = 0; i < pixels; i += 2, o += 4) {
+            final int p0 = rgb[i];
+            final int p1 = rgb[i + 1];
+            final int r0 = (p0 >> 16) & 0xFF;
+            final int g0 = (p0 >> 8) & 0xFF;
+            final int b0 = p0 & 0xFF;
+            final int r1 = (p1 >> 16) & 0xFF;
+            final int g1 = (p1 >> 8) & 0xFF;
+            final int b1 = p1 & 0xFF;
+            yuv[o] = (byte) ((COEFF1 * r0 + COEFF2 * g0 + COEFF3 * b0) >> 16);
+            yuv[o + 1] = (byte) (((COEFF4 * r0 + COEFF5 * g0 + COEFF6 * b0) >> 16) + 128);
+            yuv[o + 2] = (byte) ((COEFF1 * r1 + COEFF2 * g1 + COEFF3 * b1) >> 16);
+            yuv[o + 3] = (byte) (((COEFF7 * r0 + COEFF8 * g0 + COEFF9 * b0) >> 16) + 128);
+        }
     }
 
     private Bitmap getScaledBitmap(Uri uri, int w, int h) {
@@ -257,40 +287,13 @@ public class AvrcpBipRspParser {
         return bitmap;
     }
 
-    private long getArtHandleFromAlbum (String albumName) {
-        long artHandle = -1;
-        String whereVal [] = { albumName };
-        Cursor cursor = null;
-        if (D) Log.d(TAG, "getArtHandleFromAlbum :" + albumName);
-        try {
-            cursor = mContext.getContentResolver().query(URI_ALBUM,
-                    COL_ALBUM, WHERE, whereVal, ORDER_BY);
-            if ((cursor != null) && cursor.moveToFirst()) {
-                artHandle =  cursor.getLong(1);
-                if ( !isAlbumArtPresent(artHandle) ) {
-                    artHandle = -1;
-                }
-            }
-            if (V) Log.v(TAG," artHandle :" + artHandle);
-        } catch (SQLiteException e) {
-            Log.e(TAG, "getArtHandleFromAlbum: " + e);
-        } finally {
-            if (cursor != null)
-                cursor.close();
-        }
-        return artHandle;
-    }
-
     private String getImgHandleFromArtHandle(long artHandle) {
         if (V) Log.v(TAG, "getImgHandleFromArtHandle: artHandle :"
                 + artHandle +" map : " + mArtHandleMap);
         if (mArtHandleMap.containsKey(artHandle)) {
             return mArtHandleMap.get(artHandle);
         } else {
-            Random rnd = new Random();
-            int val = rnd.nextInt(MAX_IMG_HANDLE);
-            String imgHandle = String.format("%07d", val);
-            if (V) Log.v(TAG,"imgHandle = " + imgHandle);
+            String imgHandle = mAlbumIndex.getImgHandle(artHandle);
             AvrcpBipRspCoverArtAttributes coverArtAttributes = new AvrcpBipRspCoverArtAttributes();
             coverArtAttributes.setAlbumId(artHandle);
             if (V) Log.v(TAG,"getImgHandleFromArtHandle imgHandle :"
@@ -301,23 +304,63 @@ public class AvrcpBipRspParser {
         }
     }
 
-    private void updateExifHeader(String imgHandle, int width, int height) {
+    /* Inserts an EXIF APP1 segment holding the pixel size right after the SOI marker */
+    private byte[] addExifHeader(byte[] jpeg, int width, int height) {
+        if (jpeg.length < 2 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+            Log.w(TAG, "addExifHeader: not a JPEG stream");
+            return jpeg;
+        }
+        byte[] out = new byte[jpeg.length + EXIF_HEADER.length];
+        out[0] = (byte) 0xFF;
+        out[1] = (byte) 0xD8;
+        System.arraycopy(EXIF_HEADER, 0, out, 2, EXIF_HEADER.length);
+        putInt(out, 2 + EXIF_WIDTH_OFFSET, width);
+        putInt(out, 2 + EXIF_HEIGHT_OFFSET, height);
+        System.arraycopy(jpeg, 2, out, 2 + EXIF_HEADER.length, jpeg.length - 2);
+        return out;
+    }
 
-        AvrcpBipRspCoverArtAttributes artAttributes = mCoverArtAttributesMap.get(imgHandle);
-        if (artAttributes == null) {
-            Log.e(TAG, "updateExifHeader artAttributes null");
-            return;
+    private static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >> 24);
+        buf[offset + 1] = (byte) (value >> 16);
+        buf[offset + 2] = (byte) (value >> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    /*
+     * Pixel size loadThumbnail would return for the album art when bounded by the maximum
+     * supported size, learned from the image header only. Returns null if it can't be read.
+     */
+    private Size decodeArtBounds(ContentResolver cr, Uri uri) {
+        Bundle opts = new Bundle();
+        opts.putParcelable(ContentResolver.EXTRA_SIZE,
+                new Point(MAX_SUPPORTED_WIDTH, MAX_SUPPORTED_HEIGHT));
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (AssetFileDescriptor afd = cr.openTypedAssetFileDescriptor(uri, "image/*",
+                opts, null)) {
+            if (afd == null) {
+                return null;
+            }
+            try (InputStream is = afd.createInputStream()) {
+                BitmapFactory.decodeStream(is, null, bounds);
+            }
+        } catch (IOException | IllegalArgumentException | SecurityException e) {
+            if (D) Log.d(TAG, "decodeArtBounds " + uri + " " + e);
+            return null;
         }
-        try {
-            ExifInterface newexif = new ExifInterface(mTmpFilePath);
-            //Need to update it, with your new height width
-            newexif.setAttribute(ExifInterface.TAG_IMAGE_WIDTH, width+"");
-            newexif.setAttribute(ExifInterface.TAG_IMAGE_LENGTH, height+"");
-            newexif.saveAttributes();
-        } catch (IOException e) {
-            Log.e(TAG,"readImgProperties: exception" + e);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        /* loadThumbnail only subsamples by an integer factor */
+        int sample = Math.max(bounds.outWidth / MAX_SUPPORTED_WIDTH,
+                bounds.outHeight / MAX_SUPPORTED_HEIGHT);
+        if (sample <= 1) {
+            return new Size(bounds.outWidth, bounds.outHeight);
         }
-     }
+        return new Size((bounds.outWidth + sample - 1) / sample,
+                (bounds.outHeight + sample - 1) / sample);
+    }
 
     private void readImgProperties(String imgHandle) {
         if (D) Log.d(TAG,"readImgProperties");
@@ -328,22 +371,36 @@ public class AvrcpBipRspParser {
                 + artAttributes + " cr :" + cr);
             return;
         }
-        Bitmap bitMap = null;
-        try {
-            bitMap = cr.loadThumbnail(artAttributes.getmAlbumUri(),
-                    new Size(MAX_SUPPORTED_WIDTH, MAX_SUPPORTED_HEIGHT),null);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        if (bitMap == null) {
-            Log.w(TAG,"readImgProperties bitMap null ");
+        int generation = mAlbumIndex.getGeneration();
+        if (artAttributes.getGeneration() == generation) {
+            /* already read and the audio content has not changed since */
             return;
         }
-        int w = bitMap.getWidth();
-        int h = bitMap.getHeight();
-        String size = Integer.toString(bitMap.getByteCount());
-        bitMap.recycle();
-        bitMap = null;
+        int w;
+        int h;
+        Size bounds = decodeArtBounds(cr, artAttributes.getmAlbumUri());
+        if (bounds != null) {
+            w = bounds.getWidth();
+            h = bounds.getHeight();
+        } else {
+            Bitmap bitMap = null;
+            try {
+                bitMap = cr.loadThumbnail(artAttributes.getmAlbumUri(),
+                        new Size(MAX_SUPPORTED_WIDTH, MAX_SUPPORTED_HEIGHT),null);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (bitMap == null) {
+                Log.w(TAG,"readImgProperties bitMap null ");
+                return;
+            }
+            w = bitMap.getWidth();
+            h = bitMap.getHeight();
+            bitMap.recycle();
+            bitMap = null;
+        }
+        /* byte count of the decoded ARGB_8888 bitmap */
+        String size = Integer.toString(w * h * 4);
         long albumId = artAttributes.getAlbumId();
         AvrcpBipRspCoverArtAttributes coverArtAttributes = new AvrcpBipRspCoverArtAttributes();
         coverArtAttributes.setAlbumId(albumId);
@@ -353,17 +410,21 @@ public class AvrcpBipRspParser {
         coverArtAttributes.setNativeEncoding("JPEG");
         coverArtAttributes.setNativeSize(size);
         coverArtAttributes.setNativePixel(w + "*" + h);
+        coverArtAttributes.setGeneration(generation);
         mCoverArtAttributesMap.put(imgHandle, coverArtAttributes);
         if (V) Log.v(TAG," albumId : " + albumId + " imgHandle : "
                 + imgHandle + " w : " + w + " H : " + h + " s: " + size);
     }
 
-    private class AvrcpBipRspImgDescriptor {
+    private static class AvrcpBipRspImgDescriptor {
         public String mVersion;
         public String mEncoding;
         public String mPixel;
         public String mMaxSize;
         public String mTransformation;
+        /* resolved by validateImgDescriptor when mPixel is not empty */
+        public int mWidth;
+        public int mHeight;
         public static final String DEFAULT_VERSION = "1.0";
         private String DEFAULT_ENCODING = "JPEG";
         private String DEFAULT_PIXEL = "";
@@ -548,139 +609,185 @@ public class AvrcpBipRspParser {
         if (V) Log.v(TAG, "validateImgDescriptor: before imgDesc.mPixel = " + imgDesc.mPixel);
         /* Update the pixel value now */
         imgDes.mPixel = width + "*" + height;
+        imgDes.mWidth = width;
+        imgDes.mHeight = height;
         if (D) Log.d(TAG, "validateImgDescriptor: imgDesc.mPixel = " + imgDes.mPixel);
         return imgDes;
     }
 
-    boolean getImgThumb(OutputStream out, String imgHandle) {
-        boolean retVal = false;
-        AvrcpBipRspCoverArtAttributes artAttributes = mCoverArtAttributesMap.get(imgHandle);
-        if (artAttributes == null) {
-            Log.w(TAG, "getImgThumb: imageHandle =" +  imgHandle + " is not in hashmap");
-            return false;
+    /*
+     * Parsed and validated form of a non empty image descriptor, or null if it is not valid.
+     * The result is cached by the raw descriptor string and must not be modified.
+     */
+    private AvrcpBipRspImgDescriptor getImgDescriptor(String imgDescXml) {
+        AvrcpBipRspImgDescriptor imgDesc;
+        synchronized (sImgDescCache) {
+            imgDesc = sImgDescCache.get(imgDescXml);
+        }
+        if (imgDesc != null) {
+            if (V) Log.v(TAG, "getImgDescriptor: cached " + imgDesc);
+            return imgDesc == INVALID_IMG_DESC ? null : imgDesc;
+        }
+        imgDesc = parseImgDescXml(imgDescXml);
+        if (imgDesc == null) {
+            Log.w(TAG, " getImg imgDesc null");
+        } else if (!(AvrcpBipRspImgDescriptor.DEFAULT_VERSION.equals(imgDesc.mVersion) &&
+                imgDesc.mEncoding != null && imgDesc.mPixel != null)) {
+            Log.w(TAG, " getImg imgDesc not valid :" + imgDesc);
+            imgDesc = null;
+        } else if (!imgDesc.mPixel.equals("")) {
+            imgDesc = validateImgDescriptor(imgDesc);
+        }
+        synchronized (sImgDescCache) {
+            sImgDescCache.put(imgDescXml, imgDesc == null ? INVALID_IMG_DESC : imgDesc);
         }
-        if (!isStorageReady()) {
-            Log.e(TAG, "getImgThumb: Storage not mounted ");
-            return false;
+        return imgDesc;
+    }
+
+    /* Compresses a thumbnail sized bitmap in YCC422 sampling through the pooled buffers */
+    private synchronized byte[] compressThumb(Bitmap bm) {
+        final int pixels = BIP_THUMB_WIDTH * BIP_THUMB_HEIGHT;
+        long startNs = AvrcpPerfStats_ext.start();
+        // Copy pixel data from the Bitmap into the integer pixel buffer
+        bm.getPixels(mThumbPixels, 0, BIP_THUMB_WIDTH, 0, 0, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT);
+        convertToYuv(mThumbPixels, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT, mThumbYuv);
+        AvrcpPerfStats_ext.record(AvrcpPerfStats_ext.OP_BIP_THUMB_YUV, pixels, startNs);
+
+        startNs = AvrcpPerfStats_ext.start();
+        YuvImage yuvImg = new YuvImage(mThumbYuv, ImageFormat.YUY2,
+                BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT, null);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream(JPEG_BUFFER_SIZE);
+        if (D) Log.d(TAG,"getImgThumb: compress +");
+        yuvImg.compressToJpeg(new Rect(0, 0, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT),
+                COMPRESSION_QUALITY_HIGH, jpeg);
+        if (D) Log.d(TAG,"getImgThumb: compress -");
+        AvrcpPerfStats_ext.record(AvrcpPerfStats_ext.OP_BIP_THUMB_YUV_JPEG, pixels, startNs);
+        return jpeg.toByteArray();
+    }
+
+    /*
+     * Returns the encoded linked thumbnail of an album, from the shared cache when possible.
+     * Callers for the same session serialize here, so a GET arriving while the art is being
+     * pre-encoded waits for it instead of encoding it a second time.
+     */
+    private synchronized byte[] getEncodedThumb(AvrcpBipRspCoverArtAttributes artAttributes,
+            boolean preEncode) {
+        String cacheKey = AvrcpBipRspImageCache.getKey(artAttributes.getAlbumId(),
+                AvrcpBipRspImageCache.ENCODING_THUMBNAIL, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT);
+        byte[] encoded = preEncode ? mImageCache.peek(cacheKey) : mImageCache.get(cacheKey);
+        if (encoded != null) {
+            return encoded;
         }
         Bitmap bm = getScaledBitmap(artAttributes.getmAlbumUri(),
                 BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT);
-        FileOutputStream tmp = null;
-        FileInputStream tmp1 = null;
-        if (bm != null) {
-            try {
+        if (bm == null) {
+            return null;
+        }
+        try {
+            byte[] jpeg = compressThumb(bm);
+            /* put EXIF header with the new pixel size in front of the JFIF payload */
+            encoded = addExifHeader(jpeg, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT);
+            mImageCache.put(cacheKey, encoded, preEncode);
+        } catch (Exception e) {
+            Log.w(TAG, "getEncodedThumb: Exception = " + e);
+        } finally {
+            bm.recycle();
+        }
+        return encoded;
+    }
 
-                int[] pixelArray = new int[BIP_THUMB_WIDTH * BIP_THUMB_HEIGHT];
-                // Copy pixel data from the Bitmap into integer pixelArray
-                bm.getPixels(pixelArray, 0, BIP_THUMB_WIDTH, 0, 0, BIP_THUMB_WIDTH,
-                    BIP_THUMB_HEIGHT);
-                byte[] yuvArray = convertToYuv(pixelArray, BIP_THUMB_WIDTH,
-                        BIP_THUMB_HEIGHT);
-                /* Convert Pixel Array to YuvImage */
-                YuvImage yuvImg = new YuvImage(yuvArray, ImageFormat.YUY2,
-                            BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT, null);
-                // Use temp file as ExifInterface requires absolute path of storage
-                // file to update headers
-                try {
-                    tmp = new FileOutputStream(mTmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG,"getImgThumb: unable to open tmp File for writing");
-                    return retVal;
-                }
-                if (D) Log.d(TAG,"getImgThumb: compress +");
-                /* Compress YuvImage in YCC422 sampling using JPEG compression */
-                yuvImg.compressToJpeg(new Rect(0, 0, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT),
-                    COMPRESSION_QUALITY_HIGH, tmp);
-                if (D) Log.d(TAG,"getImgThumb: compress -");
-                tmp.flush();
-                /* replace JFIF header with EXIF header and update new pixel size */
-                updateExifHeader(imgHandle, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT);
-                /* Copy the new updated header file to OutputStream */
-                try {
-                    tmp1 = new FileInputStream(mTmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG,"getImgThumb: unable to open tmp File for reading");
-                    return retVal;
-                }
-                byte[] buffer = new byte[4096]; // To hold file contents
-                int bytes_read;
-                while ((bytes_read = tmp1.read(buffer)) != -1)
-                    out.write(buffer, 0, bytes_read);
-                /* Flush the data to output stream */
-                out.flush();
-                retVal = true;
-            } catch (Exception e) {
-                Log.w(TAG, "Exception = " + e);
-            } finally {
-                try {
-                    try {
-                        if (tmp != null) {
-                            tmp.close();
-                        }
-                    } catch (IOException e) {
-                        Log.w(TAG,"getImgThumb: exception in closing file");
-                    }
-                    try {
-                        if (tmp1 != null) {
-                            tmp1.close();
-                        }
-                    } catch (IOException e) {
-                        Log.w(TAG,"getImgThumb: exception in closing file");
-                    }
-                    if (out != null) {
-                        out.close();
-                    }
-                    /* Delete the tmp file now */
-                    delTmpFile();
-                } catch (IOException e) {
-                    Log.w(TAG, "Exception = " + e);
-                }
-            }
+    /* Returns an album image scaled and compressed as requested, from the cache if possible */
+    private synchronized byte[] getEncodedImg(long albumId, Uri uri,
+            Bitmap.CompressFormat cmpFormat, int width, int height, boolean preEncode) {
+        String cacheKey = AvrcpBipRspImageCache.getKey(albumId, cmpFormat.name(), width, height);
+        byte[] encoded = preEncode ? mImageCache.peek(cacheKey) : mImageCache.get(cacheKey);
+        if (encoded != null) {
+            return encoded;
         }
-        if (D) Log.d(TAG, "getImgThumb: returning " + retVal);
-        return retVal;
+        if (D) Log.d(TAG,"getImg: getScaledBitmap ");
+        Bitmap bm = getScaledBitmap(uri, width, height);
+        if (bm == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(JPEG_BUFFER_SIZE);
+            if (D) Log.d(TAG,"getImg: compress +");
+            long startNs = AvrcpPerfStats_ext.start();
+            bm.compress(cmpFormat, COMPRESSION_QUALITY_HIGH, compressed);
+            AvrcpPerfStats_ext.record(AvrcpPerfStats_ext.OP_BIP_BITMAP_COMPRESS,
+                    width * height, startNs);
+            if (D) Log.d(TAG,"getImg: compress -");
+            encoded = compressed.toByteArray();
+            if (D) Log.d(TAG, "Image Size = " + encoded.length);
+            /* cache it for every remote device */
+            mImageCache.put(cacheKey, encoded, preEncode);
+        } catch (Exception e) {
+            Log.e(TAG, "getEncodedImg: Exception = " + e);
+        } finally {
+            bm.recycle();
+        }
+        return encoded;
     }
 
-    boolean getImg(OutputStream out, String imgHandle,
-                    String imgDescXmlString) {
+    /*
+     * Encodes the linked thumbnail and the variant remotes ask for most, so that the GET
+     * following a track change is served from memory. Runs on a background thread.
+     */
+    void preEncode(String imgHandle) {
+        AvrcpBipRspCoverArtAttributes artAttributes = mCoverArtAttributesMap.get(imgHandle);
+        if (artAttributes == null) {
+            Log.w(TAG, "preEncode: imageHandle =" +  imgHandle + " is not in hashmap");
+            return;
+        }
+        if (D) Log.d(TAG, "preEncode: imgHandle = " + imgHandle);
+        getEncodedThumb(artAttributes, true);
+        AvrcpBipRspImageCache.Variant variant = mImageCache.getPreferredVariant();
+        if (variant != null) {
+            getEncodedImg(artAttributes.getAlbumId(), artAttributes.getmAlbumUri(),
+                    variant.mFormat, variant.mWidth, variant.mHeight, true);
+        }
+    }
+
+    /* Linked thumbnail of the handle, or null if it can't be encoded */
+    byte[] encodeImgThumb(String imgHandle) {
+        AvrcpBipRspCoverArtAttributes artAttributes = mCoverArtAttributesMap.get(imgHandle);
+        if (artAttributes == null) {
+            Log.w(TAG, "encodeImgThumb: imageHandle =" +  imgHandle + " is not in hashmap");
+            return null;
+        }
+        byte[] encoded = getEncodedThumb(artAttributes, false);
+        if (D) Log.d(TAG, "encodeImgThumb: returning " + (encoded != null));
+        return encoded;
+    }
 
-        boolean retVal = false;
+    /* Image of the handle as asked by the image descriptor, or null if it can't be served */
+    byte[] encodeImg(String imgHandle, String imgDescXmlString) {
+
+        byte[] retVal = null;
 
         if (mCoverArtAttributesMap.get(imgHandle) == null) {
             Log.w(TAG, "getImg: imageHandle =" +  imgHandle + " is not in hashmap");
             return retVal;
         }
-        if (!isStorageReady()) {
-            Log.e(TAG, "getImg: Storage not mounted ");
-            return false;
-        }
         if(D) Log.d(TAG,"Enter getImg");
         AvrcpBipRspImgDescriptor imgDesc = new AvrcpBipRspImgDescriptor();
 
         /* Read the Properties of Image as per the image Handle */
         readImgProperties(imgHandle);
 
-        if (imgDescXmlString != null) {
-            /* As per SPEC, image-descriptor can be empty */
-            if (!(imgDescXmlString.equals(""))) {
-                imgDesc = parseImgDescXml(imgDescXmlString);
-                if (imgDesc == null) {
-                    Log.w(TAG, " getImg imgDesc null");
-                    return retVal;
-                }
-                if (!(imgDesc.mVersion.equals(AvrcpBipRspImgDescriptor.DEFAULT_VERSION) &&
-                    imgDesc.mEncoding != null && imgDesc.mPixel != null)) {
-                    Log.w(TAG, " getImg imgDesc not valid :" + imgDesc);
-                    return retVal;
-                }
+        /* As per SPEC, image-descriptor can be empty */
+        if (imgDescXmlString != null && !(imgDescXmlString.equals(""))) {
+            imgDesc = getImgDescriptor(imgDescXmlString);
+            if (imgDesc == null) {
+                /* Image descriptor cannot be parsed to valid fields */
+                Log.e(TAG,"getImg: imgDesc is not valid!!");
+                return retVal;
             }
         }
 
         Bitmap.CompressFormat cmpFormat;
         int width;
         int height;
-        FileOutputStream tmp = null;
-        FileInputStream tmp1 = null;
 
         if (V) Log.v(TAG,"getImg: imgDesc.mPixel = " + imgDesc.mPixel);
         if (imgDesc.mPixel.equals("")) {
@@ -689,23 +796,8 @@ public class AvrcpBipRspParser {
             width = mCoverArtAttributesMap.get(imgHandle).getWidth();
             height = mCoverArtAttributesMap.get(imgHandle).getHeigth();
         } else {
-            imgDesc = validateImgDescriptor(imgDesc);
-            if (imgDesc != null) {
-                try {
-                    //Get Width and Height from Image Descriptor Object
-                    width = Integer.parseInt(imgDesc.mPixel.substring(
-                            0, imgDesc.mPixel.indexOf("*")));
-                    height = Integer.parseInt(imgDesc.mPixel.substring(
-                            imgDesc.mPixel.lastIndexOf("*") + 1));
-                } catch (NumberFormatException e) {
-                    Log.e(TAG, "exception while parsing pixel");
-                    return retVal;
-                }
-            } else {
-                /* Image descriptor cannot be parsed to valid fields */
-                Log.e(TAG,"getImg: imgDesc is not valid!!");
-                return retVal;
-            }
+            width = imgDesc.mWidth;
+            height = imgDesc.mHeight;
         }
 
         if (D) Log.d(TAG,"getImg: imgHandle = " + imgHandle + " width = "
@@ -726,87 +818,20 @@ public class AvrcpBipRspParser {
                 return retVal;
         }
 
-        Uri uri = mCoverArtAttributesMap.get(imgHandle).getmAlbumUri();
-        if (D) Log.d(TAG,"getImg: getScaledBitmap ");
-        Bitmap bm = getScaledBitmap(uri, width, height);
-        if (bm != null) {
-            try {
-                // Use temp file as ExifInterface requires absolute path of storage
-                // file to update headers
-                try {
-                    tmp = new FileOutputStream(mTmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG,"getImg: unable to open tmp File for writing");
-                    return retVal;
-                }
-                if (D) Log.d(TAG,"getImg: compress +");
-                bm.compress(cmpFormat, COMPRESSION_QUALITY_HIGH, tmp);
-                if (D) Log.d(TAG,"getImg: compress -");
-                try {
-                    if (tmp != null) {
-                        tmp.flush();
-                        tmp.close();
-                    }
-                } catch (IOException e) {
-                     Log.e(TAG,"getImg: exception in closing file");
-                     return retVal;
-                }
-                File f = new File(mTmpFilePath);
-                if (f != null && f.isFile() && f.exists()) {
-                    if (D) Log.d(TAG, "File Size = " + f.length());
-                    /* check if the size of compressed file is within range of maxsize */
-                    if (imgDesc.mMaxSize != null &&
-                        f.length() > Long.valueOf(imgDesc.mMaxSize)) {
-                        Log.w(TAG, "Image size using compression is " +
-                            f.length() + " more than maxsize = " +
-                            imgDesc.mMaxSize + " deleting the file");
-                        f.delete();
-                        return retVal;
-                    }
-                }
-                /* Copy the new updated header file to OutputStream */
-                try {
-                    tmp1 = new FileInputStream(mTmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG,"getImg: unable to open tmp File for reading");
-                    return retVal;
-                }
-                byte[] buffer = new byte[4096]; // To hold file contents
-                int bytes_read;
-                while ((bytes_read = tmp1.read(buffer)) != -1)
-                    out.write(buffer, 0, bytes_read);
-                /* Flush the data to output stream */
-                out.flush();
-                retVal = true;
-            } catch (Exception e) {
-                Log.e(TAG, "Exception = " + e);
-            } finally {
-                try {
-                    try {
-                        if (tmp != null) {
-                            tmp.close();
-                        }
-                    } catch (IOException e) {
-                         Log.e(TAG,"getImg: exception in closing file");
-                    }
-                    try {
-                        if (tmp1 != null) {
-                            tmp1.close();
-                        }
-                    } catch (IOException e) {
-                         Log.e(TAG,"getImg: exception in closing file");
-                    }
-                    if (out != null) {
-                        out.close();
-                    }
-                    /* Delete the tmp file now */
-                    delTmpFile();
-                } catch (IOException e) {
-                    Log.e(TAG, "Exception = " + e);
-                }
+        mImageCache.recordVariantRequest(cmpFormat, width, height);
+        AvrcpBipRspCoverArtAttributes artAttributes = mCoverArtAttributesMap.get(imgHandle);
+        byte[] encoded = getEncodedImg(artAttributes.getAlbumId(), artAttributes.getmAlbumUri(),
+                cmpFormat, width, height, false);
+        if (encoded != null) {
+            /* check if the size of compressed image is within range of maxsize */
+            if (imgDesc.mMaxSize != null && encoded.length > Long.valueOf(imgDesc.mMaxSize)) {
+                Log.w(TAG, "Image size using compression is " + encoded.length
+                        + " more than maxsize = " + imgDesc.mMaxSize);
+            } else {
+                retVal = encoded;
             }
         }
-        if (D) Log.d(TAG,"getImg: returning " + retVal);
+        if (D) Log.d(TAG,"getImg: returning " + (retVal != null));
         return retVal;
     }
 
@@ -818,7 +843,7 @@ public class AvrcpBipRspParser {
     }
 
     String getImgHandleFromTitle(String title) {
-        String albumName = getAlbumName(title);
+        String albumName = mAlbumIndex.getAlbumName(title);
         if (!TextUtils.isEmpty(albumName)) {
             return getImgHandle(albumName);
         }
@@ -828,8 +853,8 @@ public class AvrcpBipRspParser {
 
     String getImgHandle(String albumName) {
         try {
-            long artHandle = getArtHandleFromAlbum(albumName);
-            if (artHandle != -1) {
+            long artHandle = mAlbumIndex.getAlbumIdWithArt(albumName);
+            if (artHandle != AvrcpBipRspAlbumIndex.INVALID_ALBUM_ID) {
                 String imgHandle = getImgHandleFromArtHandle(artHandle);
                 if (D) Log.d(TAG,"getImgHandle: imgHandle = " + imgHandle);
                 return imgHandle;
@@ -841,38 +866,6 @@ public class AvrcpBipRspParser {
         return "";
     }
 
-    private String getAlbumName (String songName) {
-        String albumName = null;
-        String[] mCursorCols = new String[] {
-                        MediaStore.Audio.Media._ID,
-                        MediaStore.Audio.Media.ALBUM,
-                        MediaStore.Audio.Media.TITLE,
-        };
-
-        String where = MediaStore.Audio.Media.IS_MUSIC + "=? AND " +
-                MediaStore.Audio.Media.TITLE + "= ? ";
-
-        String queryValues[]= {"1", songName};
-
-        Cursor cursor = null;
-
-        try {
-            cursor = mContext.getContentResolver().query(
-            URI_MEDIA, mCursorCols,
-            where, queryValues, ORDER_BY);
-            if (cursor != null && cursor.moveToFirst()) {
-                albumName = cursor.getString(1);
-            }
-        } catch (IllegalArgumentException | SQLiteException e) {
-            Log.e(TAG, "getAlbumName: exception = " + e);
-        } finally {
-            if (cursor != null)
-                cursor.close();
-        }
-        if (D) Log.d(TAG, "albumName : " + albumName);
-        return albumName;
-    }
-
     /* Encode the Image Properties into the StringBuilder reference.
      * */
     byte[] encode(String imgHandle)
@@ -886,6 +879,9 @@ public class AvrcpBipRspParser {
             Log.w(TAG, "encode: imageHandle =" +  imgHandle + " is not in hashmap");
             return null;
         }
+        if (artAttributes.getPropertiesXml() != null) {
+            return artAttributes.getPropertiesXml();
+        }
         StringWriter sw = new StringWriter();
         XmlSerializer xmlMsgElement = new FastXmlSerializer();
         // construct the XML tag for a single msg in the msglisting
@@ -917,61 +913,9 @@ public class AvrcpBipRspParser {
             Log.w(TAG, "encode :" + e);
         }
         if (V) Log.v(TAG, "Image properties XML = " + sw.toString());
-        return sw.toString().getBytes("UTF-8");
-    }
-
-    private synchronized void delTmpFile() {
-        if (TextUtils.isEmpty(mTmpFilePath)) {
-            Log.e(TAG," delTmpFile storage not mounted yet");
-            return;
-        }
-        File f = new File(mTmpFilePath);
-        boolean isDeleted = false;
-        if (f != null && f.isFile() && f.exists()) {
-            // delete the file now, may be due to battery removal or some exception
-            isDeleted = f.delete();
-        }
-        if (V) Log.v(TAG," delTmpFile :" + f.getAbsolutePath() + " isDeleted :" + isDeleted);
-    }
-
-    private void setTmpPath(String tag) {
-        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-            mTmpFilePath = mContext.getExternalFilesDir(null).getAbsolutePath()
-                + "/tmpBtBip" + tag.replaceAll(":","") + ".jpg";
-            if (V) Log.v(TAG," mTmpFilePath :" + mTmpFilePath);
-        } else {
-            Log.e(TAG, "getStorageDirectory state=" + Environment.getExternalStorageState());
-        }
-    }
-
-    private boolean isAlbumArtPresent(long albumId){
-        boolean albumFound = false;
-        Uri albumUri = ContentUris.withAppendedId(URI_ALBUM, albumId);
-        Bitmap bitmap = null;
-        try {
-            bitmap = mContext.getContentResolver().loadThumbnail(albumUri,
-                    new Size(MIN_SUPPORTED_HEIGHT, MIN_SUPPORTED_HEIGHT), null);
-        } catch (IOException e) {
-            if (V) {
-                e.printStackTrace();
-            } else {
-                if (D) Log.d(TAG," "+e.toString());
-            }
-        }
-        if (bitmap != null) {
-            albumFound = true;
-            bitmap.recycle();
-            bitmap = null;
-        }
-        if (V) Log.v(TAG, " isAlbumArtPresent " + albumFound);
-        return  albumFound;
-    }
-
-    private boolean isStorageReady() {
-        if (TextUtils.isEmpty(mTmpFilePath)) {
-            setTmpPath(tag);
-            delTmpFile();
-        }
-        return !TextUtils.isEmpty(mTmpFilePath);
+        byte[] propertiesXml = sw.toString().getBytes("UTF-8");
+        /* kept until readImgProperties replaces the attributes */
+        artAttributes.setPropertiesXml(propertiesXml);
+        return propertiesXml;
     }
 }
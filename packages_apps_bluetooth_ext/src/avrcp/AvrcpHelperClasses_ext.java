@@ -18,12 +18,20 @@ package com.android.bluetooth.avrcp;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.media.MediaDescription;
+import android.media.session.MediaSession;
+import android.os.SystemProperties;
+import android.text.TextUtils;
 
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.btservice.ProfileService;
 
 import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
 
 /*************************************************************************************************
  * Helper classes used for callback/response of browsing commands:-
@@ -181,6 +189,118 @@ class FolderItemsRsp_ext {
     }
 }
 
+/*
+ * Scratch buffers for building GetFolderItems responses, kept per browsing session so large
+ * folders do not grow temporary lists on every request. Also tracks the encoded size of the
+ * response so that items which would not fit in the browse MTU are dropped up front.
+ */
+class FolderItemsEncoder_ext {
+    /* pdu id, parameter length, status, uid counter and number of items */
+    private static final int RSP_HEADER_SIZE = 8;
+    /* item type, item length, uid, type, playable/media type, charset and name length */
+    private static final int FOLDER_ITEM_HEADER_SIZE = 17;
+    /* same as above plus the number of attributes */
+    private static final int MEDIA_ITEM_HEADER_SIZE = 17;
+    /* attribute id, charset and value length */
+    private static final int ATTR_HEADER_SIZE = 8;
+
+    private int[] mAttrIds = new int[64];
+    private String[] mAttrValues = new String[64];
+    private int mAttrCount;
+    private int mItemAttrStart;
+    private int mBudget;
+    private int mUsed;
+
+    void reset(int mtu) {
+        Arrays.fill(mAttrValues, 0, mAttrCount, null);
+        mAttrCount = 0;
+        mItemAttrStart = 0;
+        mBudget = mtu - RSP_HEADER_SIZE;
+        mUsed = 0;
+    }
+
+    void startItem() {
+        mItemAttrStart = mAttrCount;
+    }
+
+    void addAttr(int attrId, String value) {
+        if (mAttrCount == mAttrIds.length) {
+            mAttrIds = Arrays.copyOf(mAttrIds, mAttrCount * 2);
+            mAttrValues = Arrays.copyOf(mAttrValues, mAttrCount * 2);
+        }
+        mAttrIds[mAttrCount] = attrId;
+        mAttrValues[mAttrCount] = value;
+        mAttrCount++;
+    }
+
+    int getItemAttrCount() {
+        return mAttrCount - mItemAttrStart;
+    }
+
+    /*
+     * Accounts the current item against the MTU budget. Returns false and drops the
+     * attributes added for it if the item does not fit, the first item is always kept.
+     */
+    boolean commitItem(boolean isFolder, String name, boolean isFirst) {
+        int size = (isFolder ? FOLDER_ITEM_HEADER_SIZE : MEDIA_ITEM_HEADER_SIZE) + utf8Length(name);
+        for (int i = mItemAttrStart; i < mAttrCount; i++) {
+            size += ATTR_HEADER_SIZE + utf8Length(mAttrValues[i]);
+        }
+        if (!isFirst && mUsed + size > mBudget) {
+            Arrays.fill(mAttrValues, mItemAttrStart, mAttrCount, null);
+            mAttrCount = mItemAttrStart;
+            return false;
+        }
+        mUsed += size;
+        return true;
+    }
+
+    int[] getAttrIds() {
+        return Arrays.copyOf(mAttrIds, mAttrCount);
+    }
+
+    String[] getAttrValues() {
+        return Arrays.copyOf(mAttrValues, mAttrCount);
+    }
+
+    int getEncodedSize() {
+        return RSP_HEADER_SIZE + mUsed;
+    }
+
+    static void writeUid(int uid, byte[] dst, int offset) {
+        dst[offset] = 0;
+        dst[offset + 1] = 0;
+        dst[offset + 2] = 0;
+        dst[offset + 3] = 0;
+        dst[offset + 4] = (byte) (uid >> 24);
+        dst[offset + 5] = (byte) (uid >> 16);
+        dst[offset + 6] = (byte) (uid >> 8);
+        dst[offset + 7] = (byte) uid;
+    }
+
+    static int utf8Length(String s) {
+        if (s == null) {
+            return 0;
+        }
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                len += 1;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+}
+
 class ItemAttrRsp_ext {
     byte mStatus;
     byte mNumAttr;
@@ -392,6 +512,484 @@ class FolderItemsData_ext {
         mAttrIds = null; /* array of attr ids */
         mAttrValues = null; /* array of attr values */
     }
+
+    /* drops the items from numItems onwards, used when the response is trimmed */
+    void truncate(int numItems) {
+        if (numItems >= mNumItems) {
+            return;
+        }
+        mNumItems = numItems;
+        mAttributesNum = Arrays.copyOf(mAttributesNum, numItems);
+        mFolderTypes = Arrays.copyOf(mFolderTypes, numItems);
+        mItemTypes = Arrays.copyOf(mItemTypes, numItems);
+        mPlayable = Arrays.copyOf(mPlayable, numItems);
+        mItemUid = Arrays.copyOf(mItemUid, numItems * AvrcpConstants_ext.UID_SIZE);
+        mDisplayNames = Arrays.copyOf(mDisplayNames, numItems);
+    }
+}
+
+/*
+ * Maps connected remote devices to their device feature slot. Keys are the 48 bit Bluetooth
+ * address packed into a long, stored in a linear probing table so lookups from native byte
+ * addresses or BluetoothDevice strings need neither allocation nor boxing.
+ */
+class AvrcpDeviceTable_ext {
+    static final int INVALID_SLOT = -1;
+    private static final long EMPTY = -1L;
+
+    private final long[] mKeys;
+    private final int[] mSlots;
+    private final int mMask;
+    private int mSize;
+
+    AvrcpDeviceTable_ext(int maxDevices) {
+        int capacity = 8;
+        while (capacity < maxDevices * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new long[capacity];
+        mSlots = new int[capacity];
+        mMask = capacity - 1;
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    /* Packs "AA:BB:CC:DD:EE:FF" into a long, returns -1 if the address is malformed */
+    static long packAddress(String address) {
+        if (address == null || address.length() != 17) {
+            return EMPTY;
+        }
+        long key = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return EMPTY;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) return EMPTY;
+            key = (key << 4) | digit;
+        }
+        return key;
+    }
+
+    static long packAddress(byte[] address) {
+        if (address == null || address.length != 6) {
+            return EMPTY;
+        }
+        long key = 0;
+        for (int i = 0; i < 6; i++) {
+            key = (key << 8) | (address[i] & 0xFF);
+        }
+        return key;
+    }
+
+    private int probe(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+
+    synchronized int get(long key) {
+        if (key == EMPTY) {
+            return INVALID_SLOT;
+        }
+        for (int i = probe(key); mKeys[i] != EMPTY; i = (i + 1) & mMask) {
+            if (mKeys[i] == key) {
+                return mSlots[i];
+            }
+        }
+        return INVALID_SLOT;
+    }
+
+    synchronized void put(long key, int slot) {
+        if (key == EMPTY) {
+            return;
+        }
+        int i = probe(key);
+        while (mKeys[i] != EMPTY && mKeys[i] != key) {
+            i = (i + 1) & mMask;
+        }
+        if (mKeys[i] == EMPTY) {
+            mSize++;
+        }
+        mKeys[i] = key;
+        mSlots[i] = slot;
+    }
+
+    synchronized void remove(long key) {
+        if (key == EMPTY) {
+            return;
+        }
+        int i = probe(key);
+        while (mKeys[i] != key) {
+            if (mKeys[i] == EMPTY) {
+                return;
+            }
+            i = (i + 1) & mMask;
+        }
+        mKeys[i] = EMPTY;
+        mSize--;
+        // Shift back following entries of the probe run so lookups never stop early
+        for (int j = (i + 1) & mMask; mKeys[j] != EMPTY; j = (j + 1) & mMask) {
+            int home = probe(mKeys[j]);
+            if (((j - home) & mMask) >= ((j - i) & mMask)) {
+                mKeys[i] = mKeys[j];
+                mSlots[i] = mSlots[j];
+                mKeys[j] = EMPTY;
+                i = j;
+            }
+        }
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+}
+
+/*
+ * Indexed view of a now playing queue, built once per queue update. Positions map to items
+ * through the list and queue ids map to positions through an open addressed table.
+ */
+class NowPlayingQueueIndex_ext {
+    static final int INVALID_POSITION = -1;
+
+    private final List<MediaSession.QueueItem> mItems;
+    private final long[] mQueueIds;
+    /* probe table of queue ids, mPositions holds position + 1 so that 0 marks a free slot */
+    private final long[] mKeys;
+    private final int[] mPositions;
+    private final int mMask;
+
+    NowPlayingQueueIndex_ext(@NonNull List<MediaSession.QueueItem> items) {
+        int size = items.size();
+        int capacity = 8;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        mItems = items;
+        mQueueIds = new long[size];
+        mKeys = new long[capacity];
+        mPositions = new int[capacity];
+        mMask = capacity - 1;
+        for (int pos = 0; pos < size; pos++) {
+            long qid = items.get(pos).getQueueId();
+            mQueueIds[pos] = qid;
+            int i = probe(qid);
+            while (mPositions[i] != 0 && mKeys[i] != qid) {
+                i = (i + 1) & mMask;
+            }
+            /* duplicated ids resolve to their first position, as a linear scan did */
+            if (mPositions[i] == 0) {
+                mKeys[i] = qid;
+                mPositions[i] = pos + 1;
+            }
+        }
+    }
+
+    private int probe(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+
+    @NonNull
+    List<MediaSession.QueueItem> getItems() {
+        return mItems;
+    }
+
+    int size() {
+        return mQueueIds.length;
+    }
+
+    int indexOf(long qid) {
+        for (int i = probe(qid); mPositions[i] != 0; i = (i + 1) & mMask) {
+            if (mKeys[i] == qid) {
+                return mPositions[i] - 1;
+            }
+        }
+        return INVALID_POSITION;
+    }
+
+    @Nullable
+    MediaSession.QueueItem find(long qid) {
+        int pos = indexOf(qid);
+        return (pos == INVALID_POSITION) ? null : mItems.get(pos);
+    }
+
+    /* Items from startItem to endItem inclusive, clamped to the queue, or null if empty */
+    @Nullable
+    List<MediaSession.QueueItem> subList(long startItem, long endItem) {
+        int size = size();
+        if (startItem < 0 || startItem >= size || endItem < startItem) {
+            return null;
+        }
+        return mItems.subList((int) startItem, (int) Math.min(size - 1, endItem) + 1);
+    }
+
+    /* Same ids in the same order with the same displayed description */
+    boolean sameContent(@Nullable NowPlayingQueueIndex_ext other) {
+        if (other == null || !Arrays.equals(mQueueIds, other.mQueueIds)) {
+            return false;
+        }
+        for (int pos = 0; pos < mQueueIds.length; pos++) {
+            MediaDescription desc = mItems.get(pos).getDescription();
+            MediaDescription otherDesc = other.mItems.get(pos).getDescription();
+            if (desc == otherDesc) continue;
+            if (desc == null || otherDesc == null
+                    || !Objects.equals(desc.getMediaId(), otherDesc.getMediaId())
+                    || !TextUtils.equals(desc.getTitle(), otherDesc.getTitle())
+                    || !TextUtils.equals(desc.getSubtitle(), otherDesc.getSubtitle())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+/* Accumulates queueing delay and handling time per message type for one Avrcp handler lane */
+class AvrcpMsgLatencyStats_ext {
+    private static final int MAX_MSG_TYPES = 64;
+
+    private final String mName;
+    private final long[] mCount = new long[MAX_MSG_TYPES];
+    private final long[] mTotalWaitMs = new long[MAX_MSG_TYPES];
+    private final long[] mMaxWaitMs = new long[MAX_MSG_TYPES];
+    private final long[] mTotalHandleMs = new long[MAX_MSG_TYPES];
+    private final long[] mMaxHandleMs = new long[MAX_MSG_TYPES];
+
+    AvrcpMsgLatencyStats_ext(String name) {
+        mName = name;
+    }
+
+    synchronized void record(int what, long waitMs, long handleMs) {
+        if (what < 0 || what >= MAX_MSG_TYPES) {
+            return;
+        }
+        if (waitMs < 0) {
+            waitMs = 0;
+        }
+        mCount[what]++;
+        mTotalWaitMs[what] += waitMs;
+        mTotalHandleMs[what] += handleMs;
+        if (waitMs > mMaxWaitMs[what]) {
+            mMaxWaitMs[what] = waitMs;
+        }
+        if (handleMs > mMaxHandleMs[what]) {
+            mMaxHandleMs[what] = handleMs;
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "Handler lane " + mName + ":");
+        for (int what = 0; what < MAX_MSG_TYPES; what++) {
+            if (mCount[what] == 0) {
+                continue;
+            }
+            ProfileService.println(sb, "  msg " + what + ": count " + mCount[what]
+                    + ", wait avg " + (mTotalWaitMs[what] / mCount[what])
+                    + "ms max " + mMaxWaitMs[what]
+                    + "ms, handle avg " + (mTotalHandleMs[what] / mCount[what])
+                    + "ms max " + mMaxHandleMs[what] + "ms");
+        }
+    }
+}
+
+/*
+ * GetElementAttributes responses for the current metadata snapshot, keyed by the mask of
+ * requested attribute IDs. Entries are shared by all connected devices and dropped as soon
+ * as a lookup or store is made for a newer snapshot version.
+ */
+class ElementAttrRspCache_ext {
+    private static final int MAX_ENTRIES = 8;
+    private static final int BLACKLIST_KEY_BIT = 1 << 31;
+
+    private final HashMap<Integer, Entry> mEntries = new HashMap<Integer, Entry>();
+    private long mVersion = -1;
+    private long mHits;
+    private long mMisses;
+    private long mInvalidations;
+
+    private static class Entry {
+        final int[] mAttrIds;
+        final String[] mValues;
+
+        Entry(int[] attrIds, String[] values) {
+            mAttrIds = attrIds;
+            mValues = values;
+        }
+    }
+
+    /* Returns the cache key for the requested attributes, or -1 if it can not be cached */
+    static int getKey(int[] attrIds, int numAttr, boolean blacklisted) {
+        if (attrIds == null || numAttr > attrIds.length) {
+            return -1;
+        }
+        int mask = 0;
+        for (int i = 0; i < numAttr; i++) {
+            if (attrIds[i] < 0 || attrIds[i] >= 31) {
+                return -1;
+            }
+            mask |= (1 << attrIds[i]);
+        }
+        return blacklisted ? (mask | BLACKLIST_KEY_BIT) : mask;
+    }
+
+    synchronized String[] get(long version, int key, int[] attrIds, int numAttr) {
+        checkVersion(version);
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.mAttrIds.length != numAttr
+                || !Arrays.equals(entry.mAttrIds, Arrays.copyOf(attrIds, numAttr))) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.mValues;
+    }
+
+    synchronized void put(long version, int key, int[] attrIds, int numAttr, String[] values) {
+        checkVersion(version);
+        if (version != mVersion) {
+            return;
+        }
+        if (mEntries.size() >= MAX_ENTRIES && !mEntries.containsKey(key)) {
+            mEntries.clear();
+        }
+        mEntries.put(key, new Entry(Arrays.copyOf(attrIds, numAttr), values));
+    }
+
+    private void checkVersion(long version) {
+        if (version > mVersion) {
+            if (!mEntries.isEmpty()) {
+                mInvalidations++;
+            }
+            mEntries.clear();
+            mVersion = version;
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "GetElementAttributes response cache: hits " + mHits
+                + ", misses " + mMisses + ", invalidations " + mInvalidations
+                + ", entries " + mEntries.size() + " for version " + mVersion);
+    }
+}
+
+/* Fixed bucket latency histogram, upper bounds in ms with a final overflow bucket */
+class AvrcpLatencyHistogram_ext {
+    private static final long[] BUCKET_BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    private final long[] mBuckets = new long[BUCKET_BOUNDS_MS.length + 1];
+    private long mCount;
+    private long mTotalMs;
+    private long mMaxMs;
+
+    synchronized void record(long latencyMs) {
+        if (latencyMs < 0) {
+            latencyMs = 0;
+        }
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MS.length && latencyMs > BUCKET_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        mBuckets[bucket]++;
+        mCount++;
+        mTotalMs += latencyMs;
+        if (latencyMs > mMaxMs) {
+            mMaxMs = latencyMs;
+        }
+    }
+
+    synchronized void dump(StringBuilder sb, String title) {
+        ProfileService.println(sb, title + ": count " + mCount
+                + (mCount == 0 ? "" : ", avg " + (mTotalMs / mCount) + "ms max " + mMaxMs + "ms"));
+        for (int i = 0; i < mBuckets.length; i++) {
+            if (mBuckets[i] == 0) {
+                continue;
+            }
+            String range = (i < BUCKET_BOUNDS_MS.length) ? "<= " + BUCKET_BOUNDS_MS[i] + "ms"
+                    : "> " + BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1] + "ms";
+            ProfileService.println(sb, "  " + range + ": " + mBuckets[i]);
+        }
+    }
+}
+
+/*
+ * Process wide timing of the AVRCP target hot paths, bucketed by the number of devices, items
+ * or pixels handled so that changes to metadata, browse and cover art handling can be compared
+ * on a running device. Off unless persist.vendor.btstack.avrcp.perf_stats is set, so the
+ * paths are not timed in normal use.
+ */
+class AvrcpPerfStats_ext {
+    static final boolean ENABLED =
+            SystemProperties.getBoolean("persist.vendor.btstack.avrcp.perf_stats", false);
+
+    static final int OP_METADATA_UPDATE = 0;
+    static final int OP_BROWSED_FOLDER_ITEMS = 1;
+    static final int OP_NOW_PLAYING_FOLDER_ITEMS = 2;
+    static final int OP_FOLDER_ITEMS_RSP = 3;
+    /* cover art encoding, sized in pixels */
+    static final int OP_BIP_THUMB_YUV = 4;
+    static final int OP_BIP_THUMB_YUV_JPEG = 5;
+    static final int OP_BIP_BITMAP_COMPRESS = 6;
+    private static final String[] OP_NAMES = {
+        "metadata update", "browsed folder items", "now playing folder items", "folder items rsp",
+        "bip thumbnail rgb to yuy2", "bip thumbnail yuy2 to jpeg", "bip bitmap compress"
+    };
+    /* what the size passed to record() counts, per op */
+    private static final String[] OP_UNITS = {
+        "devices", "items", "items", "items", "pixels", "pixels", "pixels"
+    };
+    private static final int[] SIZE_BOUNDS = {10, 100, 1000, 10000};
+
+    private static final long[][] sCount = new long[OP_NAMES.length][SIZE_BOUNDS.length + 1];
+    private static final long[][] sTotalNs = new long[OP_NAMES.length][SIZE_BOUNDS.length + 1];
+    private static final long[][] sMaxNs = new long[OP_NAMES.length][SIZE_BOUNDS.length + 1];
+    private static final long[][] sItems = new long[OP_NAMES.length][SIZE_BOUNDS.length + 1];
+
+    private AvrcpPerfStats_ext() {}
+
+    /* Start time to pass to record(), 0 when timing is disabled */
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    static synchronized void record(int op, int items, long startNs) {
+        if (!ENABLED) {
+            return;
+        }
+        long elapsed = System.nanoTime() - startNs;
+        int bucket = 0;
+        while (bucket < SIZE_BOUNDS.length && items > SIZE_BOUNDS[bucket]) {
+            bucket++;
+        }
+        sCount[op][bucket]++;
+        sTotalNs[op][bucket] += elapsed;
+        sItems[op][bucket] += items;
+        if (elapsed > sMaxNs[op][bucket]) {
+            sMaxNs[op][bucket] = elapsed;
+        }
+    }
+
+    static synchronized void dump(StringBuilder sb) {
+        if (!ENABLED) {
+            ProfileService.println(sb, "Hot path timings: disabled");
+            return;
+        }
+        ProfileService.println(sb, "Hot path timings:");
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            for (int bucket = 0; bucket <= SIZE_BOUNDS.length; bucket++) {
+                long count = sCount[op][bucket];
+                if (count == 0) {
+                    continue;
+                }
+                String range = (bucket < SIZE_BOUNDS.length) ? "<=" + SIZE_BOUNDS[bucket]
+                        : ">" + SIZE_BOUNDS[SIZE_BOUNDS.length - 1];
+                ProfileService.println(sb, "  " + OP_NAMES[op] + " (" + range + " "
+                        + OP_UNITS[op] + "): count " + count + ", avg "
+                        + (sTotalNs[op][bucket] / count / 1000) + "us max "
+                        + (sMaxNs[op][bucket] / 1000) + "us, avg " + OP_UNITS[op] + " "
+                        + (sItems[op][bucket] / count));
+            }
+        }
+    }
 }
 
 /** A queue that evicts the first element when you add an element to the end when it reaches a
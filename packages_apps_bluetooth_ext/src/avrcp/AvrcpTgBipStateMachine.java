@@ -65,15 +65,17 @@ public class AvrcpTgBipStateMachine extends StateMachine {
     private BluetoothSocket mConnSocket;
     private ServerSession mServerSession = null;
     private AvrcpBipRspObexServer mAvrcpBipRspServer;
+    private AvrcpBipRspEncodeExecutor mEncodeExecutor;
     private String mTag;
 
     private AvrcpTgBipStateMachine(Context context, Looper looper,
             @NonNull BluetoothDevice device, @NonNull BluetoothSocket connSocket,
-            Handler handler) {
+            Handler handler, AvrcpBipRspEncodeExecutor encodeExecutor) {
         super("AvrcpTGBipStateMachine", looper);
         mRemoteDevice = device;
         mCtx = context;
         mServiceHandler = handler;
+        mEncodeExecutor = encodeExecutor;
         mConnSocket = connSocket;
         setTag();
         addState(mFinished);
@@ -83,9 +85,9 @@ public class AvrcpTgBipStateMachine extends StateMachine {
 
     static AvrcpTgBipStateMachine make(Context context, Looper looper,
             BluetoothDevice device, BluetoothSocket connSocket,
-             Handler handler) {
+             Handler handler, AvrcpBipRspEncodeExecutor encodeExecutor) {
         AvrcpTgBipStateMachine stateMachine = new AvrcpTgBipStateMachine(context,
-                looper, device, connSocket, handler);
+                looper, device, connSocket, handler, encodeExecutor);
         stateMachine.start();
         return stateMachine;
     }
@@ -186,6 +188,10 @@ public class AvrcpTgBipStateMachine extends StateMachine {
         public void enter() {
             super.enter();
             if (DEBUG) Log.d(TAG, "Finished Enter");
+            if (mAvrcpBipRspServer != null) {
+                /* release the session thread if it is waiting for an encode */
+                mAvrcpBipRspServer.cancelEncode();
+            }
             mAvrcpBipRspServer = null;
             stopObexServerSession();
             closeConnectionSocket();
@@ -253,7 +259,7 @@ public class AvrcpTgBipStateMachine extends StateMachine {
     private synchronized void startObexServerSession(BluetoothSocket socket)
             throws IOException {
         if (DEBUG) Log.d(TAG, "startObexServerSession");
-        mAvrcpBipRspServer = new AvrcpBipRspObexServer(mCtx, this);
+        mAvrcpBipRspServer = new AvrcpBipRspObexServer(mCtx, this, mEncodeExecutor);
         BluetoothObexTransport transport = new BluetoothObexTransport(socket);
         mServerSession = new ServerSession(transport, mAvrcpBipRspServer, null);
         if (DEBUG) Log.d(TAG, "startObexServerSession success");
@@ -80,6 +80,7 @@ import com.android.bluetooth.ReflectionUtils;
 import com.android.bluetooth.hearingaid.HearingAidService;
 
 import com.android.internal.util.ArrayUtils;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -94,6 +95,7 @@ import java.util.Objects;
 import com.android.bluetooth.hfp.HeadsetService;
 import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 /******************************************************************************
  * support Bluetooth AVRCP profile. support metadata, play status, event
  * notifications, address player selection and browse feature implementation.
@@ -106,11 +108,21 @@ public final class Avrcp_ext {
     private static final String AVRCP_VERSION_PROPERTY = "persist.bluetooth.avrcpversion";
     private static final String AVRCP_1_6_STRING = "avrcp16";
     private static final String AVRCP_NOTIFICATION_ID = "avrcp_notification";
+    private static final String AVRCP_PRIORITY_CTRL_PROPERTY =
+            "persist.vendor.btstack.avrcp.priority_ctrl";
 
     private static Avrcp_ext mAvrcp = null;
     private Context mContext;
     private final AudioManager mAudioManager;
     private AvrcpMessageHandler mHandler;
+    /* Per device lanes for browse and metadata requests, indexed like deviceFeatures */
+    private AvrcpMessageHandler[] mDeviceLaneHandlers;
+    /* Passthrough and volume commands which overtake queued browse and metadata work */
+    private boolean mPriorityCtrlEnabled;
+    private final ArrayDeque<PriorityCmd> mPriorityCmdQueue = new ArrayDeque<PriorityCmd>();
+    private final EvictingQueue_ext<MediaKeyLog> mPassthroughLogs =
+            new EvictingQueue_ext<MediaKeyLog>(PASSTHROUGH_LOG_MAX_SIZE);
+    private final AvrcpLatencyHistogram_ext mPassthroughLatency = new AvrcpLatencyHistogram_ext();
     private final BluetoothAdapter mAdapter;
     private A2dpService mA2dpService;
     private Handler mAudioManagerPlaybackHandler;
@@ -118,7 +130,15 @@ public final class Avrcp_ext {
     private MediaSessionManager mMediaSessionManager;
     private @Nullable MediaController mMediaController;
     private MediaControllerListener mMediaControllerCb;
-    private MediaAttributes mMediaAttributes;
+    private volatile MediaAttributes mMediaAttributes;
+    private final AtomicLong mMediaAttributesVersion = new AtomicLong();
+    /* Uptime of the pending shared play position tick, -1 if none is scheduled */
+    private long mPlayPosTickTimeMs = -1;
+    private final Object mPlayPosTickLock = new Object();
+    private boolean mInPlayPosTick = false;
+    private long mPlayPosTicks;
+    private long mPlayPosTimeouts;
+    private final ElementAttrRspCache_ext mElementAttrRspCache = new ElementAttrRspCache_ext();
     private long mLastQueueId;
     private PackageManager mPackageManager;
     private int mTransportControlFlags;
@@ -169,10 +189,6 @@ public final class Avrcp_ext {
     private boolean avrcp_playstatus_blacklist = false;
     private static final String [] BlacklistDeviceAddrToMediaAttr = {"00:17:53"/*Toyota Etios*/};
     private boolean ignore_play;
-    private byte changePathFolderType;
-    private FolderItemsRsp_ext saveRspObj;
-    private int changePathDepth;
-    private byte changePathDirection;
     HashMap<BluetoothDevice, Integer> mVolumeMap = new HashMap();
     HashMap<BluetoothDevice, Boolean> mDeviceAbsVolMap = new HashMap();
     public static final String VOLUME_MAP = "bluetooth_volume_map";
@@ -228,7 +244,6 @@ public final class Avrcp_ext {
     private static final int MSG_SET_A2DP_AUDIO_STATE = 18;
     private static final int MSG_NOW_PLAYING_CHANGED_RSP = 19;
     private static final int MESSAGE_DEVICE_RC_CLEANUP = 21;
-    private static final int MSG_PLAY_INTERVAL_TIMEOUT_2 = 22;
     private final static int MESSAGE_PLAYERSETTINGS_TIMEOUT = 23;
     private final static int MESSAGE_SET_MEDIA_SESSION = 24;
     private final static int MSG_SET_AVRCP_CONNECTED_DEVICE = 25;
@@ -237,8 +252,29 @@ public final class Avrcp_ext {
     private final static int MESSAGE_START_SHO = 34;
     private static final int MSG_SET_ACTIVE_DEVICE = 35;
     private static final int MSG_LONG_PRESS_PT_CMD_TIMEOUT = 36;
+    private static final int MSG_PROCESS_PRIORITY_CMDS = 37;
+
+    /* Connection and state messages a priority command must never overtake */
+    private static final int[] PRIORITY_ORDERED_MSGS = {
+        MSG_NATIVE_REQ_GET_RC_FEATURES,
+        MSG_NATIVE_REQ_REGISTER_NOTIFICATION,
+        MSG_NATIVE_REQ_SET_ADDR_PLAYER,
+        MSG_ADJUST_VOLUME,
+        MSG_SET_ABSOLUTE_VOLUME,
+        MSG_SET_A2DP_AUDIO_STATE,
+        MSG_NOW_PLAYING_CHANGED_RSP,
+        MESSAGE_DEVICE_RC_CLEANUP,
+        MESSAGE_SET_MEDIA_SESSION,
+        MSG_SET_AVRCP_CONNECTED_DEVICE,
+        MESSAGE_UPDATE_ABS_VOLUME_STATUS,
+        MESSAGE_START_SHO,
+        MSG_SET_ACTIVE_DEVICE,
+    };
 
     private static final int LONG_PRESS_PT_CMD_TIMEOUT_DELAY = 600;
+    private static final int PASSTHROUGH_LOG_MAX_SIZE = 20;
+    /* Play position timeouts expiring this close together are answered in one tick */
+    private static final long PLAY_POS_COALESCE_WINDOW_MS = 50;
     private static final int CMD_TIMEOUT_DELAY = 2000;
     private static final int MAX_ERROR_RETRY_TIMES = 6;
     private static final int AVRCP_MAX_VOL = 127;
@@ -296,6 +332,10 @@ public final class Avrcp_ext {
             return true;
         }
 
+        public long getDispatchLatency() {
+            return mTimeProcessed - mTimeSent;
+        }
+
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append(android.text.format.DateFormat.format("MM-dd HH:mm:ss", mTimeSent));
@@ -322,12 +362,15 @@ public final class Avrcp_ext {
         private long mNextPosMs;
         private long mPrevPosMs;
         private long mPlaybackIntervalMs;
+        private long mPlayPosDeadlineMs;
         private int mPlayerStatusChangeNT;
         private long mLastReportedPosition;
         private int mPlayPosChangedNT;
         private int mFeatures;
         private int mLastDirection;
-        private HashMap<Integer, Integer> mMusicAppCmdResponsePending;
+        /* Pending player application setting responses, indexed by command type */
+        private final int[] mMusicAppCmdResponsePending =
+                new int[AvrcpConstants_ext.SET_ATTRIBUTE_VALUES + 1];
         private int mAbsoluteVolume;
         private int mLastSetVolume;
         private boolean mVolCmdSetInProgress;
@@ -357,6 +400,11 @@ public final class Avrcp_ext {
         private int mReportedPlayerID;
         private boolean mTwsPairDisconnected;
         private boolean cache_play_cmd;
+        /* Browse position of this remote, kept per device as browse requests run on its lane */
+        private byte mChangePathFolderType;
+        private FolderItemsRsp_ext mSaveRspObj;
+        private int mChangePathDepth;
+        private byte mChangePathDirection;
         public DeviceDependentFeature(Context context) {
             mContext = context;
             mCurrentDevice = null;
@@ -369,6 +417,7 @@ public final class Avrcp_ext {
             mNextPosMs = -1;
             mPrevPosMs = -1;
             mPlaybackIntervalMs = 0L;
+            mPlayPosDeadlineMs = -1;
             mLastReportedPosition = -1;
             mPlayPosChangedNT = AvrcpConstants_ext.NOTIFICATION_TYPE_CHANGED;
             mFeatures = 0;
@@ -382,7 +431,6 @@ public final class Avrcp_ext {
             mAbsVolRetryTimes = 0;
             keyPressState = AvrcpConstants_ext.KEY_STATE_RELEASE; //Key release state
             mRemoteVolume = -1;
-            mMusicAppCmdResponsePending = new HashMap<Integer, Integer>();
             mAvailablePlayersChangedNT = AvrcpConstants_ext.NOTIFICATION_TYPE_CHANGED;
             mAddrPlayerChangedNT = AvrcpConstants_ext.NOTIFICATION_TYPE_CHANGED;
             mUidsChangedNT = AvrcpConstants_ext.NOTIFICATION_TYPE_CHANGED;
@@ -401,9 +449,18 @@ public final class Avrcp_ext {
             mReportedPlayerID = NO_PLAYER_ID;
             mTwsPairDisconnected = false;
             cache_play_cmd = false;
+            resetChangePath();
+        }
+
+        private void resetChangePath() {
+            mChangePathDepth = 0;
+            mChangePathFolderType = 0;
+            mChangePathDirection = 0;
         }
     };
     DeviceDependentFeature[] deviceFeatures;
+    /* Packed address to deviceFeatures index for connected devices */
+    private AvrcpDeviceTable_ext mDeviceTable;
 
     private static class SHOQueue {
         static BluetoothDevice device;
@@ -457,6 +514,7 @@ public final class Avrcp_ext {
         for(int i = 0; i < maxAvrcpConnections; i++) {
             deviceFeatures[i] = new DeviceDependentFeature(mContext);
         }
+        mDeviceTable = new AvrcpDeviceTable_ext(maxAvrcpConnections);
         mFastforward = false;
         mRewind = false;
         mCurrentBrowsingDevice = null;
@@ -488,6 +546,7 @@ public final class Avrcp_ext {
         context.registerReceiver(mBootReceiver, bootFilter);
         pts_test = SystemProperties.getBoolean("vendor.bluetooth.avrcpct-passthrough.pts", false);
         avrcp_playstatus_blacklist = SystemProperties.getBoolean("persist.vendor.btstack.avrcp-playstatus.blacklist", false);
+        mPriorityCtrlEnabled = SystemProperties.getBoolean(AVRCP_PRIORITY_CTRL_PROPERTY, true);
 
         IntentFilter shutdownFilter = new IntentFilter();
         shutdownFilter.addAction(Intent.ACTION_SHUTDOWN);
@@ -522,7 +581,17 @@ public final class Avrcp_ext {
         HandlerThread thread = new HandlerThread("BluetoothAvrcpHandler");
         thread.start();
         Looper looper = thread.getLooper();
-        mHandler = new AvrcpMessageHandler(looper);
+        mHandler = new AvrcpMessageHandler(looper, "shared");
+        mDeviceLaneHandlers = new AvrcpMessageHandler[maxAvrcpConnections];
+        for (int i = 0; i < maxAvrcpConnections; i++) {
+            if (maxAvrcpConnections > 1) {
+                HandlerThread laneThread = new HandlerThread("BluetoothAvrcpLane" + i);
+                laneThread.start();
+                mDeviceLaneHandlers[i] = new AvrcpMessageHandler(laneThread.getLooper(), "device" + i);
+            } else {
+                mDeviceLaneHandlers[i] = mHandler;
+            }
+        }
         mAudioManagerPlaybackHandler = new Handler(looper);
         mAudioManagerPlaybackCb = new AudioManagerPlaybackListener();
         mMediaControllerCb = new MediaControllerListener();
@@ -589,9 +658,9 @@ public final class Avrcp_ext {
 
         mAudioManager.registerAudioPlaybackCallback(
                 mAudioManagerPlaybackCb, mAudioManagerPlaybackHandler);
-        changePathDepth = 0;
-        changePathFolderType = 0;
-        changePathDirection = 0;
+        for (int i = 0; i < maxAvrcpConnections; i++) {
+            deviceFeatures[i].resetChangePath();
+        }
         Avrcp_extVolumeManager();
         Log.v(TAG, "Exit start");
     }
@@ -636,10 +705,19 @@ public final class Avrcp_ext {
 
         mAudioManagerPlaybackHandler.removeCallbacksAndMessages(null);
         mHandler.removeCallbacksAndMessages(null);
+        synchronized (mPriorityCmdQueue) {
+            mPriorityCmdQueue.clear();
+        }
         Looper looper = mHandler.getLooper();
         if (looper != null) {
             looper.quit();
         }
+        for (int i = 0; i < maxAvrcpConnections; i++) {
+            if (mDeviceLaneHandlers[i] != mHandler) {
+                mDeviceLaneHandlers[i].removeCallbacksAndMessages(null);
+                mDeviceLaneHandlers[i].getLooper().quit();
+            }
+        }
 
         if (mAvrcpBipRsp != null) {
             mAvrcpBipRsp.stop();
@@ -659,9 +737,9 @@ public final class Avrcp_ext {
         mPreActiveDeviceIndex = INVALID_DEVICE_INDEX;
         if (mNotificationManager != null )
             mNotificationManager.deleteNotificationChannel(AVRCP_NOTIFICATION_ID);
-        changePathDepth = 0;
-        changePathFolderType = 0;
-        changePathDirection = 0;
+        for (int i = 0; i < maxAvrcpConnections; i++) {
+            deviceFeatures[i].resetChangePath();
+        }
         Log.d(TAG, "Exit doQuit");
     }
 
@@ -670,8 +748,7 @@ public final class Avrcp_ext {
         for (int i = 0; i < maxAvrcpConnections; i++) {
             deviceFeatures[i].keyPressState =
                 AvrcpConstants_ext.KEY_STATE_RELEASE; //Key release state
-            if (deviceFeatures[i].mMusicAppCmdResponsePending != null)
-                deviceFeatures[i].mMusicAppCmdResponsePending.clear();
+            Arrays.fill(deviceFeatures[i].mMusicAppCmdResponsePending, 0);
         }
         Log.d(TAG, "Exit clearDeviceDependentFeature()");
     }
@@ -755,6 +832,7 @@ public final class Avrcp_ext {
 
         @Override
         public void onQueueChanged(List<MediaSession.QueueItem> queue) {
+            if (mAddressedMediaPlayer != null) mAddressedMediaPlayer.onQueueChanged();
             if (queue == null) {
                 Log.v(TAG, "onQueueChanged: received null queue");
                 return;
@@ -786,14 +864,118 @@ public final class Avrcp_ext {
         }
         return false;
     }
+
+    /* Feature state of a connected remote, null if the address is not connected */
+    private DeviceDependentFeature getDeviceFeature(byte[] address) {
+        if (address == null) {
+            return null;
+        }
+        int index = getIndexForAddress(address);
+        return (index == INVALID_DEVICE_INDEX) ? null : deviceFeatures[index];
+    }
+
+    /**
+     * Returns the lane handler for requests of the given remote. Browse and metadata requests of
+     * one device are serialized on its own lane so that a slow browse of one remote does not hold
+     * up passthrough, volume and notifications, which stay on the shared lane.
+     */
+    private AvrcpMessageHandler getDeviceLaneHandler(byte[] address) {
+        if (mDeviceLaneHandlers == null || address == null) {
+            return mHandler;
+        }
+        int index = getIndexForAddress(address);
+        if (index == INVALID_DEVICE_INDEX) {
+            return mHandler;
+        }
+        return mDeviceLaneHandlers[index];
+    }
+
+    private static final class PriorityCmd {
+        final Message mMsg;
+        final long mEnqueueTime;
+
+        PriorityCmd(Message msg, long enqueueTime) {
+            mMsg = msg;
+            mEnqueueTime = enqueueTime;
+        }
+    }
+
+    /*
+     * Posts user perceived control messages (passthrough and volume) ahead of queued
+     * browse and metadata work on the shared lane. The command only jumps the queue while
+     * no connection or state message is pending, otherwise it is queued in order behind it.
+     * Commands are kept in their own FIFO and each token runs the oldest one, so a
+     * press/release pair is never reordered by sendMessageAtFrontOfQueue.
+     */
+    private void sendPriorityMessage(Message msg) {
+        if (!mPriorityCtrlEnabled) {
+            mHandler.sendMessage(msg);
+            return;
+        }
+        synchronized (mPriorityCmdQueue) {
+            mPriorityCmdQueue.addLast(new PriorityCmd(msg, SystemClock.uptimeMillis()));
+        }
+        Message token = mHandler.obtainMessage(MSG_PROCESS_PRIORITY_CMDS);
+        if (hasPendingOrderedMessage()) {
+            mHandler.sendMessage(token);
+        } else {
+            mHandler.sendMessageAtFrontOfQueue(token);
+        }
+    }
+
+    private boolean hasPendingOrderedMessage() {
+        for (int what : PRIORITY_ORDERED_MSGS) {
+            if (mHandler.hasMessages(what)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /** Handles Avrcp messages. */
     private final class AvrcpMessageHandler extends Handler {
-        private AvrcpMessageHandler(Looper looper) {
+        private final AvrcpMsgLatencyStats_ext mLatencyStats;
+
+        private AvrcpMessageHandler(Looper looper, String laneName) {
             super(looper);
+            mLatencyStats = new AvrcpMsgLatencyStats_ext(laneName);
         }
 
         @Override
         public void handleMessage(Message msg) {
+            long dispatchTime = SystemClock.uptimeMillis();
+            long when = msg.getWhen();
+            int what = msg.what;
+            try {
+                processMessage(msg);
+            } finally {
+                /* front of queue tokens carry no post time, their wait is recorded per command */
+                if (what != MSG_PROCESS_PRIORITY_CMDS && when != 0) {
+                    mLatencyStats.record(what, dispatchTime - when,
+                            SystemClock.uptimeMillis() - dispatchTime);
+                }
+            }
+        }
+
+        /* one token per command, so a command never runs ahead of its own token's position */
+        private void processPriorityCmd() {
+            PriorityCmd cmd;
+            synchronized (mPriorityCmdQueue) {
+                cmd = mPriorityCmdQueue.pollFirst();
+            }
+            if (cmd == null) {
+                return;
+            }
+            long dispatchTime = SystemClock.uptimeMillis();
+            try {
+                processMessage(cmd.mMsg);
+            } finally {
+                mLatencyStats.record(cmd.mMsg.what, dispatchTime - cmd.mEnqueueTime,
+                        SystemClock.uptimeMillis() - dispatchTime);
+            }
+        }
+
+        private void processMessage(Message msg) {
             int deviceIndex  = INVALID_DEVICE_INDEX;
             if (DEBUG) Log.v(TAG, "AvrcpMessageHandler: received message=" + msg.what);
 
@@ -1050,14 +1232,35 @@ public final class Avrcp_ext {
                         break;
                     }
                 }
-                StringBuilder responseDebug = new StringBuilder();
-                responseDebug.append("getElementAttr response: ");
                 BluetoothDevice device = null;
                 if (mAvrcpBipRsp != null) {
                     device = mAvrcpBipRsp.getBluetoothDevice(remoteAddr);
                 }
+                MediaAttributes attributes = mMediaAttributes;
+                int cacheKey = ElementAttrRspCache_ext.getKey(attrIds, numAttr, blacklistAttr);
+                if (cacheKey != -1) {
+                    String[] cached = mElementAttrRspCache.get(attributes.getVersion(),
+                            cacheKey, attrIds, numAttr);
+                    if (cached != null) {
+                        // Cover art handle depends on the BIP connection of this device
+                        if ((cacheKey & (1 << MediaAttributes.ATTR_COVER_ART)) != 0) {
+                            cached = cached.clone();
+                            for (int i = 0; i < numAttr; ++i) {
+                                if (attrIds[i] == MediaAttributes.ATTR_COVER_ART) {
+                                    cached[i] = attributes.getString(device,
+                                            MediaAttributes.ATTR_COVER_ART);
+                                }
+                            }
+                        }
+                        Log.v(TAG, "getElementAttr response from cache, numAttr=" + numAttr);
+                        getElementAttrRspNative(elem.mAddress, numAttr, attrIds, cached);
+                        break;
+                    }
+                }
+                StringBuilder responseDebug = new StringBuilder();
+                responseDebug.append("getElementAttr response: ");
                 for (int i = 0; i < numAttr; ++i) {
-                    textArray[i] = mMediaAttributes.getString(device, attrIds[i]);
+                    textArray[i] = attributes.getString(device, attrIds[i]);
                     if(blacklistAttr) {
                         if(attrIds[i] == MediaAttributes.ATTR_MEDIA_NUMBER
                            && textArray[i].equals("0"))
@@ -1076,6 +1279,10 @@ public final class Avrcp_ext {
                     }
                 }
                 Log.v(TAG, responseDebug.toString());
+                if (cacheKey != -1) {
+                    mElementAttrRspCache.put(attributes.getVersion(), cacheKey, attrIds, numAttr,
+                            textArray);
+                }
                 byte[] bdaddr = elem.mAddress;
                 getElementAttrRspNative(bdaddr, numAttr, attrIds, textArray);
                 break;
@@ -1094,15 +1301,8 @@ public final class Avrcp_ext {
                 break;
 
             case MSG_PLAY_INTERVAL_TIMEOUT:
-            case MSG_PLAY_INTERVAL_TIMEOUT_2:
                 if (DEBUG) Log.v(TAG, "MSG_PLAY_INTERVAL_TIMEOUT");
-                Log.v(TAG, "event for device address " + (BluetoothDevice)msg.obj);
-                deviceIndex = getIndexForDevice((BluetoothDevice) msg.obj);
-                if (deviceIndex == INVALID_DEVICE_INDEX) {
-                    Log.e(TAG,"invalid index for device");
-                    break;
-                }
-                sendPlayPosNotificationRsp(false, deviceIndex);
+                processPlayPosTick();
                 break;
 
             case MSG_NATIVE_REQ_VOLUME_CHANGE:
@@ -1230,7 +1430,7 @@ public final class Avrcp_ext {
                             deviceFeatures[deviceIndex].mBlackListVolume);
                         Message msg1 = mHandler.obtainMessage(MSG_SET_ABSOLUTE_VOLUME,
                         deviceFeatures[deviceIndex].mBlackListVolume, 0);
-                        mHandler.sendMessage(msg1);
+                        sendPriorityMessage(msg1);
                         deviceFeatures[deviceIndex].mRemoteVolume = absVol;
                         /*copying blacklisted volume beacuse already streaming is going on same volume*/
                         deviceFeatures[deviceIndex].mLocalVolume = deviceFeatures[deviceIndex].mBlackListVolume;
@@ -1501,33 +1701,42 @@ public final class Avrcp_ext {
 
             case MSG_NATIVE_REQ_CHANGE_PATH:
             {
-                if (DEBUG) Log.v(TAG, "MSG_NATIVE_REQ_CHANGE_PATH" + " changePathDepth " +
-                            changePathDepth + " changePathFolderType " + changePathFolderType);
                 Bundle data = msg.getData();
                 byte[] bdaddr = data.getByteArray("BdAddress");
                 byte[] folderUid = data.getByteArray("folderUid");
                 byte direction = data.getByte("direction");
                 byte[] tempUid = new byte[AvrcpConstants_ext.UID_SIZE];
+                DeviceDependentFeature feature = getDeviceFeature(bdaddr);
+                if (feature == null) {
+                    Log.e(TAG, "MSG_NATIVE_REQ_CHANGE_PATH: device not connected");
+                    changePathRspNative(bdaddr, AvrcpConstants_ext.RSP_INTERNAL_ERR, 0);
+                    break;
+                }
+                if (DEBUG) Log.v(TAG, "MSG_NATIVE_REQ_CHANGE_PATH" + " changePathDepth " +
+                            feature.mChangePathDepth + " changePathFolderType " +
+                            feature.mChangePathFolderType);
                 if (mAvrcpBrowseManager.getBrowsedMediaPlayer(bdaddr) != null) {
-                    changePathDirection = direction;
+                    feature.mChangePathDirection = direction;
                     if(direction == 1)
-                       changePathDepth++;
+                       feature.mChangePathDepth++;
                     mAvrcpBrowseManager.getBrowsedMediaPlayer(bdaddr).changePath(folderUid,
                         direction);
-                    if ((direction == 1) && (changePathDepth > 0)) {
+                    FolderItemsRsp_ext saveRspObj = feature.mSaveRspObj;
+                    if ((direction == 1) && (feature.mChangePathDepth > 0)
+                            && saveRspObj != null) {
                        for (int index=0; index<saveRspObj.mDisplayNames.length; index++) {
                             for (int size=0; size < AvrcpConstants_ext.UID_SIZE; size++)
                                 tempUid[size] = saveRspObj.mItemUid[index* AvrcpConstants_ext.UID_SIZE + size];
                             if (Arrays.equals(folderUid, tempUid)) {
-                                changePathFolderType = saveRspObj.mFolderTypes[index];
+                                feature.mChangePathFolderType = saveRspObj.mFolderTypes[index];
                                 break;
                             }
                        }
                     }
-                    else if ((direction == 0) && (changePathDepth>0)) {
-                       changePathDepth--;
-                       if (changePathDepth == 0)
-                            changePathFolderType = 0;
+                    else if ((direction == 0) && (feature.mChangePathDepth>0)) {
+                       feature.mChangePathDepth--;
+                       if (feature.mChangePathDepth == 0)
+                            feature.mChangePathFolderType = 0;
                     }
 
                 } else {
@@ -1559,16 +1768,20 @@ public final class Avrcp_ext {
             case MSG_NATIVE_REQ_PASS_THROUGH:
             {
                 Log.v(TAG, "MSG_NATIVE_REQ_PASS_THROUGH: id = " + msg.arg1 + " st = " + msg.arg2);
-                // argument 1 is id, argument 2 is keyState
+                // argument 1 is id, argument 2 is keyState, object is the key log if any
                 mHandler.removeMessages(MSG_LONG_PRESS_PT_CMD_TIMEOUT);
                 Bundle data = msg.getData();
                 byte[] bdaddr = data.getByteArray("BdAddress");
                 String address = Utils.getAddressStringFromByte(bdaddr);
                 Log.v(TAG, "MSG_NATIVE_REQ_PASS_THROUGH " + address);
-                handlePassthroughCmd(bdaddr, msg.arg1, msg.arg2);
+                handlePassthroughCmd(bdaddr, msg.arg1, msg.arg2, (MediaKeyLog) msg.obj);
                 break;
             }
 
+            case MSG_PROCESS_PRIORITY_CMDS:
+                processPriorityCmd();
+                break;
+
             case MSG_LONG_PRESS_PT_CMD_TIMEOUT:
             {
                 Bundle data = msg.getData();
@@ -1949,14 +2162,7 @@ public final class Avrcp_ext {
     }
 
     private boolean areMultipleDevicesConnected() {
-        int connections = 0;
-        for (int deviceIndex = 0; deviceIndex < maxAvrcpConnections; deviceIndex++) {
-            if (deviceFeatures[deviceIndex].mCurrentDevice != null) {
-                connections++;
-            }
-        }
-        if (connections > 1) return true;
-        else return false;
+        return mDeviceTable.size() > 1;
     }
     private void updatePlayerStateAndPosition(PlaybackState state) {
         if (DEBUG) Log.v(TAG, "updatePlayerStateAndPosition, old=" +
@@ -2057,16 +2263,24 @@ public final class Avrcp_ext {
         mTransportControlFlags = transportControlFlags;
     }
 
+    /*
+     * Immutable snapshot of the current track metadata. A new snapshot gets a new version,
+     * and the per attribute values are resolved once at construction so GetElementAttributes
+     * can be answered from any handler lane without locking.
+     */
     class MediaAttributes {
-        private boolean exists;
-        private String title;
-        private String artistName;
-        private String albumName;
-        private String mediaNumber;
-        private String mediaTotalNumber;
-        private String genre;
-        private long playingTimeMs;
-        private String coverArt;
+        private final boolean exists;
+        private final String title;
+        private final String artistName;
+        private final String albumName;
+        private final String mediaNumber;
+        private final String mediaTotalNumber;
+        private final String genre;
+        private final long playingTimeMs;
+        private final String coverArt;
+        private final long version;
+        /* Attribute values indexed by AVRCP attribute ID, cover art is resolved per device */
+        private final String[] attrValues = new String[ATTR_COVER_ART + 1];
 
         private static final int ATTR_TITLE = 1;
         private static final int ATTR_ARTIST_NAME = 2;
@@ -2076,112 +2290,125 @@ public final class Avrcp_ext {
         private static final int ATTR_GENRE = 6;
         private static final int ATTR_PLAYING_TIME_MS = 7;
         private static final int ATTR_COVER_ART = 8;
+        private static final int ATTR_MASK_ALL = 0x1FE;
 
 
         public MediaAttributes(BluetoothDevice device, MediaMetadata data) {
-            synchronized (this) {
-                exists = data != null;
-                if (!exists) {
-                    return;
-                }
-                String CurrentPackageName = (mMediaController != null) ? mMediaController.getPackageName():null;
-                artistName = stringOrBlank(data.getString(MediaMetadata.METADATA_KEY_ARTIST));
-                albumName = stringOrBlank(data.getString(MediaMetadata.METADATA_KEY_ALBUM));
-                if (albumName.isEmpty()) {
-                  albumName =
-                      stringOrBlank(data.getString(MediaMetadata.METADATA_KEY_ALBUM_ARTIST));
-                  Log.d(TAG,"overwrite album_artist :" + albumName + "if album is blank");
-                }
-                if (CurrentPackageName != null && !(CurrentPackageName.equals("com.android.music"))) {
-                    mediaNumber = longStringOrBlank((data.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER)));
-                } else {
-                    /* playlist starts with 0 for default player*/
-                    mediaNumber = longStringOrBlank((data.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER) + 1L));
-                }
-                mediaTotalNumber = longStringOrBlank(data.getLong(MediaMetadata.METADATA_KEY_NUM_TRACKS));
-                genre = stringOrBlank(data.getString(MediaMetadata.METADATA_KEY_GENRE));
-                playingTimeMs = data.getLong(MediaMetadata.METADATA_KEY_DURATION);
-                Log.d(TAG," albumName :" + albumName + " device :" + device);
-                if (mAvrcpBipRsp != null && device != null)
-                    coverArt = stringOrBlank(mAvrcpBipRsp.getImgHandle(device, albumName));
-                else coverArt = stringOrBlank(null);
-
-                // Try harder for the title.
-                title = data.getString(MediaMetadata.METADATA_KEY_TITLE);
-
-                if (title == null) {
-                    MediaDescription desc = data.getDescription();
-                    if (desc != null) {
-                        CharSequence val = desc.getDescription();
-                        if (val != null)
-                            title = val.toString();
-                    }
-                }
+            version = mMediaAttributesVersion.incrementAndGet();
+            exists = data != null;
+            if (!exists) {
+                title = artistName = albumName = mediaNumber = mediaTotalNumber = genre =
+                        coverArt = new String();
+                playingTimeMs = 0L;
+                Arrays.fill(attrValues, title);
+                return;
+            }
+            String CurrentPackageName = (mMediaController != null) ? mMediaController.getPackageName():null;
+            artistName = stringOrBlank(data.getString(MediaMetadata.METADATA_KEY_ARTIST));
+            String album = stringOrBlank(data.getString(MediaMetadata.METADATA_KEY_ALBUM));
+            if (album.isEmpty()) {
+              album =
+                  stringOrBlank(data.getString(MediaMetadata.METADATA_KEY_ALBUM_ARTIST));
+              Log.d(TAG,"overwrite album_artist :" + album + "if album is blank");
+            }
+            albumName = album;
+            if (CurrentPackageName != null && !(CurrentPackageName.equals("com.android.music"))) {
+                mediaNumber = longStringOrBlank((data.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER)));
+            } else {
+                /* playlist starts with 0 for default player*/
+                mediaNumber = longStringOrBlank((data.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER) + 1L));
+            }
+            mediaTotalNumber = longStringOrBlank(data.getLong(MediaMetadata.METADATA_KEY_NUM_TRACKS));
+            genre = stringOrBlank(data.getString(MediaMetadata.METADATA_KEY_GENRE));
+            playingTimeMs = data.getLong(MediaMetadata.METADATA_KEY_DURATION);
+            Log.d(TAG," albumName :" + albumName + " device :" + device);
+            coverArt = getCoverArtHandle(device);
+
+            // Try harder for the title.
+            String trackTitle = data.getString(MediaMetadata.METADATA_KEY_TITLE);
 
-                if (title != null && CurrentPackageName != null &&
-                        CurrentPackageName.equals("com.tencent.qqmusic")) {
-                    title = title.trim();
+            if (trackTitle == null) {
+                MediaDescription desc = data.getDescription();
+                if (desc != null) {
+                    CharSequence val = desc.getDescription();
+                    if (val != null)
+                        trackTitle = val.toString();
                 }
+            }
 
-                if (title == null)
-                    title = new String();
+            if (trackTitle != null && CurrentPackageName != null &&
+                    CurrentPackageName.equals("com.tencent.qqmusic")) {
+                trackTitle = trackTitle.trim();
             }
+
+            if (trackTitle == null)
+                trackTitle = new String();
+            title = trackTitle;
+
+            attrValues[0] = new String();
+            attrValues[ATTR_TITLE] = title;
+            attrValues[ATTR_ARTIST_NAME] = artistName;
+            attrValues[ATTR_ALBUM_NAME] = albumName;
+            attrValues[ATTR_MEDIA_NUMBER] = mediaNumber;
+            attrValues[ATTR_MEDIA_TOTAL_NUMBER] = mediaTotalNumber;
+            attrValues[ATTR_GENRE] = genre;
+            attrValues[ATTR_PLAYING_TIME_MS] = Long.toString(playingTimeMs);
+            attrValues[ATTR_COVER_ART] = coverArt;
         }
 
-        public synchronized long getLength() {
+        public long getLength() {
             if (!exists) return 0L;
             return playingTimeMs;
         }
 
-        public synchronized boolean equals(MediaAttributes other) {
-            if (other == null)
-                return false;
+        public long getVersion() {
+            return version;
+        }
 
-            if (exists != other.exists)
-                return false;
+        /*
+         * Returns a mask with bit (1 << attrId) set for every attribute which differs from
+         * the other snapshot. Cover art is not compared as its handle depends on the device.
+         */
+        public int getChangedAttributes(MediaAttributes other) {
+            if (other == null || exists != other.exists)
+                return ATTR_MASK_ALL;
 
             if (exists == false)
-                return true;
+                return 0;
 
-            return (title.equals(other.title)) && (artistName.equals(other.artistName))
-                    && (albumName.equals(other.albumName))
-                    && (mediaNumber.equals(other.mediaNumber))
-                    && (mediaTotalNumber.equals(other.mediaTotalNumber))
-                    && (genre.equals(other.genre))
-                    && (playingTimeMs == other.playingTimeMs);
+            int changed = 0;
+            for (int attrId = ATTR_TITLE; attrId < ATTR_COVER_ART; attrId++) {
+                if (!attrValues[attrId].equals(other.attrValues[attrId])) {
+                    changed |= (1 << attrId);
+                }
+            }
+            return changed;
         }
 
-        public synchronized String getString(BluetoothDevice device, int attrId) {
+        public boolean equals(MediaAttributes other) {
+            return getChangedAttributes(other) == 0;
+        }
+
+        public String getString(BluetoothDevice device, int attrId) {
             if (!exists)
                 return new String();
 
-            switch (attrId) {
-                case ATTR_TITLE:
-                    return title;
-                case ATTR_ARTIST_NAME:
-                    return artistName;
-                case ATTR_ALBUM_NAME:
-                    return albumName;
-                case ATTR_MEDIA_NUMBER:
-                    return mediaNumber;
-                case ATTR_MEDIA_TOTAL_NUMBER:
-                    return mediaTotalNumber;
-                case ATTR_GENRE:
-                    return genre;
-                case ATTR_PLAYING_TIME_MS:
-                    return Long.toString(playingTimeMs);
-                case ATTR_COVER_ART:
-                    if (mAvrcpBipRsp != null && device != null) {
-                        /* Fetch coverArt Handle now in case OBEX channel is established just
-                        * before retrieving get element attribute. */
-                        coverArt = stringOrBlank(mAvrcpBipRsp.getImgHandle(device, albumName));
-                    } else {
-                        coverArt = stringOrBlank(null);
-                    }
-                    return coverArt;
-                default:
-                    return new String();
+            if (attrId == ATTR_COVER_ART) {
+                /* Fetch coverArt Handle now in case OBEX channel is established just
+                 * before retrieving get element attribute. */
+                return getCoverArtHandle(device);
             }
+            if (attrId < ATTR_TITLE || attrId > ATTR_COVER_ART) {
+                return new String();
+            }
+            return attrValues[attrId];
+        }
+
+        private String getCoverArtHandle(BluetoothDevice device) {
+            if (mAvrcpBipRsp != null && device != null) {
+                return stringOrBlank(mAvrcpBipRsp.getImgHandle(device, albumName));
+            }
+            return stringOrBlank(null);
         }
 
         private String stringOrBlank(String s) {
@@ -2199,7 +2426,7 @@ public final class Avrcp_ext {
 
             return "[MediaAttributes: " + title + " - " + albumName + " by " + artistName + " ("
                     + playingTimeMs + " " + mediaNumber + "/" + mediaTotalNumber + ") " + genre
-                    + " - " + coverArt + "]";
+                    + " - " + coverArt + " v" + version + "]";
         }
 
         public String toRedactedString() {
@@ -2215,6 +2442,7 @@ public final class Avrcp_ext {
     }
 
     private void updateCurrentMediaState(BluetoothDevice device) {
+        long startNs = AvrcpPerfStats_ext.start();
         // Only do player updates when we aren't registering for track changes.
         MediaAttributes currentAttributes;
         boolean isPlaying = false;
@@ -2374,9 +2602,10 @@ public final class Avrcp_ext {
             // Notify track changed if:
             //  - The CT is registered for the notification
             //  - Queue ID is UNKNOWN and MediaMetadata is different
-            if (((newQueueId == -1 || newQueueId != mLastQueueId)
-                    && !currentAttributes.equals(mMediaAttributes))) {
-                Log.v(TAG, "Send track changed");
+            int changedAttrs = currentAttributes.getChangedAttributes(mMediaAttributes);
+            if (((newQueueId == -1 || newQueueId != mLastQueueId) && changedAttrs != 0)) {
+                Log.v(TAG, "Send track changed, changed attributes: 0x"
+                        + Integer.toHexString(changedAttrs));
                 mMediaAttributes = currentAttributes;
                 mLastQueueId = newQueueId;
                 for (int i = 0; i < maxAvrcpConnections; i++) {
@@ -2418,6 +2647,8 @@ public final class Avrcp_ext {
                     sendPlayPosNotificationRsp(false, i);
             }
         }
+        AvrcpPerfStats_ext.record(AvrcpPerfStats_ext.OP_METADATA_UPDATE, mDeviceTable.size(),
+                startNs);
     }
 
     private void getRcFeaturesRequestFromNative(byte[] address, int features) {
@@ -2440,9 +2671,10 @@ public final class Avrcp_ext {
         if (DEBUG) Log.v(TAG, "getElementAttrRequestFromNative: numAttr=" + numAttr);
         AvrcpCmd_ext avrcpCmdobj = new AvrcpCmd_ext();
         AvrcpCmd_ext.ElementAttrCmd elemAttr = avrcpCmdobj.new ElementAttrCmd(address, numAttr, attrs);
-        Message msg = mHandler.obtainMessage(MSG_NATIVE_REQ_GET_ELEM_ATTRS);
+        AvrcpMessageHandler handler = getDeviceLaneHandler(address);
+        Message msg = handler.obtainMessage(MSG_NATIVE_REQ_GET_ELEM_ATTRS);
         msg.obj = elemAttr;
-        mHandler.sendMessage(msg);
+        handler.sendMessage(msg);
         Log.v(TAG, "Exit getElementAttrRequestFromNative");
     }
 
@@ -2456,8 +2688,7 @@ public final class Avrcp_ext {
 
     private void processRegisterNotification(byte[] address, int eventId, int param) {
 
-        BluetoothDevice device = mAdapter.getRemoteDevice(address);
-        int deviceIndex = getIndexForDevice(device);
+        int deviceIndex = getIndexForAddress(address);
         Log.v(TAG, "Enter processRegisterNotification");
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.v(TAG,"device entry not present, bailing out");
@@ -2577,7 +2808,8 @@ public final class Avrcp_ext {
                 deviceFeatures[deviceIndex].mPlayerStatusChangeNT =
                         AvrcpConstants_ext.NOTIFICATION_TYPE_INTERIM;
                 mAvrcpPlayerAppSettings.sendPlayerAppChangedRsp(
-                        deviceFeatures[deviceIndex].mPlayerStatusChangeNT, device);
+                        deviceFeatures[deviceIndex].mPlayerStatusChangeNT,
+                        deviceFeatures[deviceIndex].mCurrentDevice);
                 break;
 
             case EVT_AVBL_PLAYERS_CHANGED:
@@ -2648,7 +2880,13 @@ public final class Avrcp_ext {
         Log.d(TAG, "Enter handlePassthroughCmdRequestFromNative");
         data.putByteArray("BdAddress" , address);
         msg.setData(data);
-        mHandler.sendMessage(msg);
+        int code = avrcpPassthroughToKeyCode(id);
+        if (code != KeyEvent.KEYCODE_UNKNOWN) {
+            int action = (keyState == AvrcpConstants_ext.KEY_STATE_RELEASE) ?
+                    KeyEvent.ACTION_UP : KeyEvent.ACTION_DOWN;
+            msg.obj = new MediaKeyLog(System.currentTimeMillis(), new KeyEvent(action, code));
+        }
+        sendPriorityMessage(msg);
         Log.d(TAG, "Exit handlePassthroughCmdRequestFromNative");
     }
 
@@ -2803,6 +3041,83 @@ public final class Avrcp_ext {
         if (state == null) return false;
         return (state != null) && (state.getState() == PlaybackState.STATE_PAUSED);
     }
+
+    /*
+     * Handles the shared play position tick: every device whose interval has expired is
+     * answered in this pass, and devices sharing the same play state reuse one position.
+     */
+    private void processPlayPosTick() {
+        synchronized (mPlayPosTickLock) {
+            mPlayPosTickTimeMs = -1;
+        }
+        mPlayPosTicks++;
+        long now = SystemClock.uptimeMillis();
+        long[] positions = new long[maxAvrcpConnections];
+        Arrays.fill(positions, Long.MIN_VALUE);
+        mInPlayPosTick = true;
+        try {
+            for (int i = 0; i < maxAvrcpConnections; i++) {
+                if (deviceFeatures[i].mPlayPosDeadlineMs == -1
+                        || deviceFeatures[i].mPlayPosDeadlineMs > now) {
+                    continue;
+                }
+                deviceFeatures[i].mPlayPosDeadlineMs = -1;
+                if (deviceFeatures[i].mPlayPosChangedNT !=
+                        AvrcpConstants_ext.NOTIFICATION_TYPE_INTERIM) {
+                    continue;
+                }
+                mPlayPosTimeouts++;
+                for (int j = 0; j < i; j++) {
+                    if (positions[j] != Long.MIN_VALUE
+                            && deviceFeatures[j].mCurrentPlayState == deviceFeatures[i].mCurrentPlayState
+                            && deviceFeatures[j].mLastStateUpdate == deviceFeatures[i].mLastStateUpdate) {
+                        positions[i] = positions[j];
+                        break;
+                    }
+                }
+                if (positions[i] == Long.MIN_VALUE) {
+                    positions[i] = getPlayPosition(deviceFeatures[i].mCurrentDevice);
+                }
+                sendPlayPosNotificationRsp(false, i, positions[i]);
+            }
+        } finally {
+            mInPlayPosTick = false;
+        }
+        schedulePlayPosTick();
+    }
+
+    /*
+     * Arms the shared play position tick for the earliest device deadline. Deadlines which
+     * follow within PLAY_POS_COALESCE_WINDOW_MS delay the tick so that they fire together,
+     * devices are never answered before their own deadline.
+     */
+    private void schedulePlayPosTick() {
+        if (mInPlayPosTick && Looper.myLooper() == mHandler.getLooper()) return;
+        long earliest = -1;
+        for (int i = 0; i < maxAvrcpConnections; i++) {
+            long deadline = deviceFeatures[i].mPlayPosDeadlineMs;
+            if (deadline != -1 && (earliest == -1 || deadline < earliest)) {
+                earliest = deadline;
+            }
+        }
+        long tickTime = earliest;
+        for (int i = 0; i < maxAvrcpConnections && earliest != -1; i++) {
+            long deadline = deviceFeatures[i].mPlayPosDeadlineMs;
+            if (deadline > tickTime && deadline <= earliest + PLAY_POS_COALESCE_WINDOW_MS) {
+                tickTime = deadline;
+            }
+        }
+        synchronized (mPlayPosTickLock) {
+            if (tickTime == mPlayPosTickTimeMs) return;
+            mHandler.removeMessages(MSG_PLAY_INTERVAL_TIMEOUT);
+            mPlayPosTickTimeMs = tickTime;
+            if (tickTime != -1) {
+                mHandler.sendMessageAtTime(mHandler.obtainMessage(MSG_PLAY_INTERVAL_TIMEOUT),
+                        tickTime);
+            }
+        }
+    }
+
     /**
      * Sends a play position notification, or schedules one to be
      * sent later at an appropriate time. If |requested| is true,
@@ -2810,15 +3125,21 @@ public final class Avrcp_ext {
      * TG.
      */
     private void sendPlayPosNotificationRsp(boolean requested, int i) {
+        if (!requested && deviceFeatures[i].mPlayPosChangedNT != AvrcpConstants_ext.NOTIFICATION_TYPE_INTERIM) {
+            if (DEBUG) Log.d(TAG, "sendPlayPosNotificationRsp: Not registered or requesting.");
+            return;
+        }
+        sendPlayPosNotificationRsp(requested, i, getPlayPosition(deviceFeatures[i].mCurrentDevice));
+    }
+
+    private void sendPlayPosNotificationRsp(boolean requested, int i, long playPositionMs) {
         Log.d(TAG, "Enter sendPlayPosNotificationRsp");
         if (!requested && deviceFeatures[i].mPlayPosChangedNT != AvrcpConstants_ext.NOTIFICATION_TYPE_INTERIM) {
             if (DEBUG) Log.d(TAG, "sendPlayPosNotificationRsp: Not registered or requesting.");
             return;
         }
-        long playPositionMs = getPlayPosition(deviceFeatures[i].mCurrentDevice);
         int currPlayStatus = convertPlayStateToPlayStatus(deviceFeatures[i].mCurrentPlayState);
         String debugLine = "sendPlayPosNotificationRsp: ";
-        int currMsgPlayIntervalTimeout = (i == 0) ? MSG_PLAY_INTERVAL_TIMEOUT : MSG_PLAY_INTERVAL_TIMEOUT_2;
 
         // Some remote devices are going to bad state when sending play position
         // as ffff for non-playing state
@@ -2864,20 +3185,19 @@ public final class Avrcp_ext {
             }
         }
 
-        mHandler.removeMessages(currMsgPlayIntervalTimeout);
+        deviceFeatures[i].mPlayPosDeadlineMs = -1;
         if ((deviceFeatures[i].mCurrentDevice != null) &&
             (deviceFeatures[i].mPlayPosChangedNT == AvrcpConstants_ext.NOTIFICATION_TYPE_INTERIM) &&
             (isPlayingState(deviceFeatures[i].mCurrentPlayState)) &&
              !isPlayerPaused() && deviceFeatures[i].isActiveDevice) {
-            Message msg = mHandler.obtainMessage(currMsgPlayIntervalTimeout, 0, 0,
-                                                 deviceFeatures[i].mCurrentDevice);
             long delay = deviceFeatures[i].mPlaybackIntervalMs;
             if (deviceFeatures[i].mNextPosMs != -1) {
                 delay = deviceFeatures[i].mNextPosMs - (playPositionMs > 0 ? playPositionMs : 0);
             }
             if (DEBUG) debugLine += " Timeout " + delay + "ms";
-            mHandler.sendMessageDelayed(msg, delay);
+            deviceFeatures[i].mPlayPosDeadlineMs = SystemClock.uptimeMillis() + Math.max(delay, 0);
         }
+        schedulePlayPosTick();
         if (DEBUG) Log.d(TAG, debugLine);
         Log.d(TAG, "Exit sendPlayPosNotificationRsp");
     }
@@ -2980,7 +3300,7 @@ public final class Avrcp_ext {
         } else {
             mHandler.removeMessages(MSG_ADJUST_VOLUME);
             Message msg = mHandler.obtainMessage(MSG_SET_ABSOLUTE_VOLUME, volume, 0);
-            mHandler.sendMessage(msg);
+            sendPriorityMessage(msg);
             Log.v(TAG, "Exit setAbsoluteVolume");
         }
     }
@@ -2998,7 +3318,7 @@ public final class Avrcp_ext {
         Log.v(TAG, "Enter volumeChangeRequestFromNative");
         data.putByteArray("BdAddress" , address);
         msg.setData(data);
-        mHandler.sendMessage(msg);
+        sendPriorityMessage(msg);
         Log.v(TAG, "Exit volumeChangeRequestFromNative");
     }
 
@@ -3009,9 +3329,10 @@ public final class Avrcp_ext {
         Log.v(TAG, "Enter getFolderItemsRequestFromNative");
         AvrcpCmd_ext.FolderItemsCmd folderObj = avrcpCmdobj.new FolderItemsCmd(address, scope,
                 startItem, endItem, numAttr, attrIds);
-        Message msg = mHandler.obtainMessage(MSG_NATIVE_REQ_GET_FOLDER_ITEMS, 0, 0);
+        AvrcpMessageHandler handler = getDeviceLaneHandler(address);
+        Message msg = handler.obtainMessage(MSG_NATIVE_REQ_GET_FOLDER_ITEMS, 0, 0);
         msg.obj = folderObj;
-        mHandler.sendMessage(msg);
+        handler.sendMessage(msg);
         Log.v(TAG, "Exit getFolderItemsRequestFromNative");
     }
 
@@ -3025,21 +3346,23 @@ public final class Avrcp_ext {
 
     private void setBrowsedPlayerRequestFromNative(byte[] address, int playerId) {
         if (DEBUG) Log.v(TAG, "setBrPlayerRequestFromNative: playerId=" + playerId);
-        Message msg = mHandler.obtainMessage(MSG_NATIVE_REQ_SET_BR_PLAYER, playerId, 0);
+        AvrcpMessageHandler handler = getDeviceLaneHandler(address);
+        Message msg = handler.obtainMessage(MSG_NATIVE_REQ_SET_BR_PLAYER, playerId, 0);
         msg.obj = address;
-        mHandler.sendMessage(msg);
+        handler.sendMessage(msg);
         Log.v(TAG, "Exit setBrowsedPlayerRequestFromNative");
     }
 
     private void changePathRequestFromNative(byte[] address, byte direction, byte[] folderUid) {
         if (DEBUG) Log.v(TAG, "changePathRequestFromNative: direction=" + direction);
         Bundle data = new Bundle();
-        Message msg = mHandler.obtainMessage(MSG_NATIVE_REQ_CHANGE_PATH);
+        AvrcpMessageHandler handler = getDeviceLaneHandler(address);
+        Message msg = handler.obtainMessage(MSG_NATIVE_REQ_CHANGE_PATH);
         data.putByteArray("BdAddress" , address);
         data.putByteArray("folderUid" , folderUid);
         data.putByte("direction" , direction);
         msg.setData(data);
-        mHandler.sendMessage(msg);
+        handler.sendMessage(msg);
         Log.v(TAG, "Exit changePathRequestFromNative");
     }
 
@@ -3049,9 +3372,10 @@ public final class Avrcp_ext {
         Log.v(TAG, "Enter getItemAttrRequestFromNative");
         AvrcpCmd_ext.ItemAttrCmd itemAttr = avrcpCmdobj.new ItemAttrCmd(address, scope,
                 itemUid, uidCounter, numAttr, attrs);
-        Message msg = mHandler.obtainMessage(MSG_NATIVE_REQ_GET_ITEM_ATTR);
+        AvrcpMessageHandler handler = getDeviceLaneHandler(address);
+        Message msg = handler.obtainMessage(MSG_NATIVE_REQ_GET_ITEM_ATTR);
         msg.obj = itemAttr;
-        mHandler.sendMessage(msg);
+        handler.sendMessage(msg);
         Log.v(TAG, "Exit getItemAttrRequestFromNative");
     }
 
@@ -3064,13 +3388,15 @@ public final class Avrcp_ext {
     private void playItemRequestFromNative(byte[] address, byte scope, int uidCounter, byte[] uid) {
         if (DEBUG) Log.v(TAG, "playItemRequestFromNative: scope=" + scope);
         Bundle data = new Bundle();
-        Message msg = mHandler.obtainMessage(MSG_NATIVE_REQ_PLAY_ITEM);
+        /* play item resolves uids handed out by the browse requests, keep it on the same lane */
+        AvrcpMessageHandler handler = getDeviceLaneHandler(address);
+        Message msg = handler.obtainMessage(MSG_NATIVE_REQ_PLAY_ITEM);
         data.putByteArray("BdAddress" , address);
         data.putByteArray("uid" , uid);
         data.putInt("uidCounter" , uidCounter);
         data.putByte("scope" , scope);
         msg.setData(data);
-        mHandler.sendMessage(msg);
+        handler.sendMessage(msg);
         Log.v(TAG, "Exit playItemRequestFromNative");
     }
 
@@ -3083,10 +3409,11 @@ public final class Avrcp_ext {
     private void getTotalNumOfItemsRequestFromNative(byte[] address, byte scope) {
         if (DEBUG) Log.v(TAG, "getTotalNumOfItemsRequestFromNative: scope=" + scope);
         Bundle data = new Bundle();
-        Message msg = mHandler.obtainMessage(MSG_NATIVE_REQ_GET_TOTAL_NUM_OF_ITEMS);
+        AvrcpMessageHandler handler = getDeviceLaneHandler(address);
+        Message msg = handler.obtainMessage(MSG_NATIVE_REQ_GET_TOTAL_NUM_OF_ITEMS);
         msg.arg1 = scope;
         msg.obj = address;
-        mHandler.sendMessage(msg);
+        handler.sendMessage(msg);
         Log.v(TAG, "Exit getTotalNumOfItemsRequestFromNative");
     }
 
@@ -3230,44 +3557,33 @@ public final class Avrcp_ext {
         mHandler.sendMessageDelayed(msg, delay_interval);
     }
 
-    private void CreateMusicSettingsAppCmdLookupOrUpdate(Integer cmd,
+    private void CreateMusicSettingsAppCmdLookupOrUpdate(int cmd,
             int deviceIndex, boolean entry_new) {
         if (deviceIndex == INVALID_DEVICE_INDEX) {
            Log.e(TAG,"invalid index for device");
            return;
         }
         Log.v(TAG,"Cmd = " + cmd + "on index = " + deviceIndex + "new entry" + entry_new);
+        int[] pending = deviceFeatures[deviceIndex].mMusicAppCmdResponsePending;
+        if (cmd < 0 || cmd >= pending.length) {
+            Log.e(TAG,"Invalid Player Setting Cmd type " + cmd);
+            return;
+        }
 
         if (entry_new) {
-            if (deviceFeatures[deviceIndex].mMusicAppCmdResponsePending.
-                    containsKey(cmd)) {
-                int cmdCount =
-                        deviceFeatures[deviceIndex].mMusicAppCmdResponsePending.get(cmd);
-                Log.v(TAG,"cmdCount = " + cmdCount + "for command type = " + cmd);
-                deviceFeatures[deviceIndex].mMusicAppCmdResponsePending.put
-                        (cmd, cmdCount + 1);
-            } else {
-                deviceFeatures[deviceIndex].mMusicAppCmdResponsePending.put
-                        (cmd, 1);
-            }
-        } else {
-            if (deviceFeatures[deviceIndex].mMusicAppCmdResponsePending.
-                    containsKey(cmd)) {
-                int PendingCmds =
-                        deviceFeatures[deviceIndex].mMusicAppCmdResponsePending.get(cmd);
-                Log.v(TAG,"PendingCmds = " + PendingCmds + "for resoponse type = " + cmd);
-                if (PendingCmds > 1) {
-                    deviceFeatures[deviceIndex].mMusicAppCmdResponsePending
-                            .put(cmd, PendingCmds - 1);
-                } else if (PendingCmds == 1) {
-                    deviceFeatures[deviceIndex].mMusicAppCmdResponsePending.remove(cmd);
-                } else {
-                    Log.e(TAG,"Invalid Player Setting Cmd count entry in lookup");
-                }
-            }
+            Log.v(TAG,"cmdCount = " + pending[cmd] + "for command type = " + cmd);
+            pending[cmd]++;
+        } else if (pending[cmd] > 0) {
+            Log.v(TAG,"PendingCmds = " + pending[cmd] + "for resoponse type = " + cmd);
+            pending[cmd]--;
         }
     }
 
+    private boolean isMusicSettingsAppCmdPending(int cmd, int deviceIndex) {
+        int[] pending = deviceFeatures[deviceIndex].mMusicAppCmdResponsePending;
+        return cmd >= 0 && cmd < pending.length && pending[cmd] > 0;
+    }
+
     private void blackListCurrentDevice(int i) {
         String mAddress = null;
         if (deviceFeatures[i].mCurrentDevice == null) {
@@ -3375,6 +3691,7 @@ public final class Avrcp_ext {
         for (int i = 0; i < maxAvrcpConnections; i++ ) {
             if (deviceFeatures[i].mCurrentDevice == null) {
                 deviceFeatures[i].mCurrentDevice = device;
+                mDeviceTable.put(AvrcpDeviceTable_ext.packAddress(device.getAddress()), i);
                 if ((device.isTwsPlusDevice()) &&
                      !twsShoEnabled) {
                     Log.v(TAG,"TWS+ device connected, set it to active");
@@ -3519,8 +3836,9 @@ public final class Avrcp_ext {
             Log.v(TAG,"BT device is matched with browsing device:");
             mAvrcpBrowseManager.cleanup();
             mCurrentBrowsingDevice = null;
-            changePathDepth = 0;
-            changePathFolderType = 0;
+        }
+        if (deviceIndex != INVALID_DEVICE_INDEX) {
+            deviceFeatures[deviceIndex].resetChangePath();
         }
         Log.v(TAG,"Exit setAvrcpDisconnectedDevice");
     }
@@ -4599,6 +4917,10 @@ public final class Avrcp_ext {
 
     public void cleanupDeviceFeaturesIndex (int index) {
         Log.i(TAG,"cleanupDeviceFeaturesIndex index:" + index);
+        if (deviceFeatures[index].mCurrentDevice != null) {
+            mDeviceTable.remove(AvrcpDeviceTable_ext.packAddress(
+                    deviceFeatures[index].mCurrentDevice.getAddress()));
+        }
         deviceFeatures[index].mCurrentDevice = null;
         deviceFeatures[index].mCurrentPlayState = new PlaybackState.Builder().setState(PlaybackState.STATE_NONE, -1L, 0.0f).build();;
         deviceFeatures[index].mNowPlayingListChangedNT = AvrcpConstants_ext.NOTIFICATION_TYPE_CHANGED;
@@ -4671,6 +4993,7 @@ public final class Avrcp_ext {
             ProfileService.println(sb, "mPlayPosChangedNT: " + deviceFeatures[i].mPlayPosChangedNT);
             ProfileService.println(sb, "mNextPosMs: " + deviceFeatures[i].mNextPosMs);
             ProfileService.println(sb, "mPrevPosMs: " + deviceFeatures[i].mPrevPosMs);
+            ProfileService.println(sb, "mPlayPosDeadlineMs: " + deviceFeatures[i].mPlayPosDeadlineMs);
             ProfileService.println(sb, "mFeatures: " + deviceFeatures[i].mFeatures);
             ProfileService.println(sb, "mRemoteVolume: " + deviceFeatures[i].mRemoteVolume);
             ProfileService.println(sb, "mLastRemoteVolume: " + deviceFeatures[i].mLastRemoteVolume);
@@ -4704,6 +5027,34 @@ public final class Avrcp_ext {
         ProfileService.println(sb, "");
         mAddressedMediaPlayer.dump(sb, mMediaController);
 
+        ProfileService.println(sb, "");
+        mElementAttrRspCache.dump(sb);
+        if (mAvrcpBipRsp != null) mAvrcpBipRsp.dump(sb);
+        for (BrowsedMediaPlayer_ext player : mAvrcpBrowseManager.getConnList().values()) {
+            player.dump(sb);
+        }
+        AvrcpPerfStats_ext.dump(sb);
+        ProfileService.println(sb, "Play position ticks: " + mPlayPosTicks
+                + ", device timeouts answered: " + mPlayPosTimeouts);
+        ProfileService.println(sb, "Priority control queue: "
+                + (mPriorityCtrlEnabled ? "enabled" : "disabled"));
+        mPassthroughLatency.dump(sb, "Passthrough press-to-dispatch latency");
+        synchronized (mPassthroughLogs) {
+            ProfileService.println(sb, "Passthrough keys (last " + mPassthroughLogs.size() + "):");
+            for (MediaKeyLog log : mPassthroughLogs) {
+                ProfileService.println(sb, "  " + log);
+            }
+        }
+
+        ProfileService.println(sb, "");
+        ProfileService.println(sb, "Handler latency per message type:");
+        mHandler.mLatencyStats.dump(sb);
+        for (int i = 0; i < maxAvrcpConnections; i++) {
+            if (mDeviceLaneHandlers[i] != mHandler) {
+                mDeviceLaneHandlers[i].mLatencyStats.dump(sb);
+            }
+        }
+
         // Print the blacklisted devices (for absolute volume control)
         SharedPreferences pref =
                 mContext.getSharedPreferences(ABSOLUTE_VOLUME_BLACKLIST, Context.MODE_PRIVATE);
@@ -4852,8 +5203,7 @@ public final class Avrcp_ext {
             BluetoothDevice device = null;
             mHandler.removeMessages(MESSAGE_PLAYERSETTINGS_TIMEOUT);
             for (int i = 0; i < maxAvrcpConnections; i++) {
-                if ((deviceFeatures[i].mMusicAppCmdResponsePending
-                        .containsKey(reponse))) {
+                if (isMusicSettingsAppCmdPending(reponse, i)) {
                     CreateMusicSettingsAppCmdLookupOrUpdate(reponse, i, false);
                     device = deviceFeatures[i].mCurrentDevice;
                     break;
@@ -4887,9 +5237,10 @@ public final class Avrcp_ext {
                     mCurrentBrowsingDevice = mAdapter.getRemoteDevice(address);
                     Log.e(TAG, "setBrowsedRsp successfully sent to " + mCurrentBrowsingDevice);
                 }
-                if (depth == 0) {
-                    changePathDepth = 0;
-                    changePathFolderType = 0;
+                DeviceDependentFeature feature = getDeviceFeature(address);
+                if (depth == 0 && feature != null) {
+                    feature.mChangePathDepth = 0;
+                    feature.mChangePathFolderType = 0;
                 }
             }
         }
@@ -4910,6 +5261,9 @@ public final class Avrcp_ext {
         }
 
         public void folderItemsRsp(byte[] address, int rspStatus, FolderItemsRsp_ext rspObj) {
+            DeviceDependentFeature feature = getDeviceFeature(address);
+            byte changePathFolderType = (feature != null) ? feature.mChangePathFolderType : 0;
+            int changePathDepth = (feature != null) ? feature.mChangePathDepth : 0;
             if (rspObj != null && rspStatus == AvrcpConstants_ext.RSP_NO_ERROR) {
                 String Album = new String("Albums");
                 String Artist = new String("Artists");
@@ -4930,9 +5284,9 @@ public final class Avrcp_ext {
                 }
                 Log.v(TAG, " changePathDepth " + changePathDepth +
                         " changePathFolderType " + changePathFolderType);
-                if (changePathDepth == 0) {
-                    saveRspObj = rspObj;
-                    changePathFolderType = 0;
+                if (changePathDepth == 0 && feature != null) {
+                    feature.mSaveRspObj = rspObj;
+                    feature.mChangePathFolderType = 0;
                 }
                 if (!getFolderItemsRspNative(address, rspStatus, sUIDCounter, rspObj.mScope,
                         rspObj.mNumItems, rspObj.mFolderTypes, rspObj.mPlayable, rspObj.mItemTypes,
@@ -4950,11 +5304,13 @@ public final class Avrcp_ext {
 
         public void changePathRsp(byte[] address, int rspStatus, int numItems) {
             /*to handle changePath invalid uid scenario or any error sceanrio */
-            if (rspStatus != AvrcpConstants_ext.RSP_NO_ERROR && changePathDepth>0) {
-                if(changePathDirection == 1)
-                    changePathDepth--;
+            DeviceDependentFeature feature = getDeviceFeature(address);
+            if (rspStatus != AvrcpConstants_ext.RSP_NO_ERROR && feature != null
+                    && feature.mChangePathDepth > 0) {
+                if(feature.mChangePathDirection == 1)
+                    feature.mChangePathDepth--;
                 else
-                    changePathDepth++;
+                    feature.mChangePathDepth++;
             }
             if (!changePathRspNative(address, rspStatus, numItems))
                 Log.e(TAG, "changePathRspNative failed!");
@@ -5019,6 +5375,10 @@ public final class Avrcp_ext {
         public void uidsChangedRsp(int type) {
             byte[] addr = null;
             int index = INVALID_DEVICE_INDEX;
+            /* folder uids handed out before are stale, drop cached folder contents */
+            for (BrowsedMediaPlayer_ext player : mAvrcpBrowseManager.getConnList().values()) {
+                player.invalidateFolderCache();
+            }
             for (int i = 0; i < maxAvrcpConnections; i++) {
                 if ((deviceFeatures[i].mCurrentDevice != null) &&
                     deviceFeatures[i].isActiveDevice) {
@@ -5097,15 +5457,25 @@ public final class Avrcp_ext {
     }
 
     private int getIndexForDevice(BluetoothDevice device) {
-        for (int i = 0; i < maxAvrcpConnections; i++) {
-            if (deviceFeatures[i].mCurrentDevice != null && device != null &&
-                    Objects.equals(deviceFeatures[i].mCurrentDevice, device)) {
-                Log.i(TAG,"device found at index " + i);
-                return i;
-            }
+        if (device == null) {
+            Log.e(TAG, "returning invalid index");
+            return INVALID_DEVICE_INDEX;
         }
-        Log.e(TAG, "returning invalid index");
-        return INVALID_DEVICE_INDEX;
+        return getIndexForPackedAddress(AvrcpDeviceTable_ext.packAddress(device.getAddress()));
+    }
+
+    private int getIndexForAddress(byte[] address) {
+        return getIndexForPackedAddress(AvrcpDeviceTable_ext.packAddress(address));
+    }
+
+    private int getIndexForPackedAddress(long key) {
+        int i = mDeviceTable.get(key);
+        if (i == AvrcpDeviceTable_ext.INVALID_SLOT) {
+            Log.e(TAG, "returning invalid index");
+            return INVALID_DEVICE_INDEX;
+        }
+        Log.i(TAG,"device found at index " + i);
+        return i;
     }
 
     private int getActiveDeviceIndex() {
@@ -5383,6 +5753,15 @@ public final class Avrcp_ext {
     /* PASSTHROUGH COMMAND MANAGEMENT */
 
     void handlePassthroughCmd(byte[] bdaddr, int op, int state) {
+        handlePassthroughCmd(bdaddr, op, state, null);
+    }
+
+    private void handlePassthroughCmd(byte[] bdaddr, int op, int state, MediaKeyLog keyLog) {
+        if (keyLog != null) {
+            synchronized (mPassthroughLogs) {
+                mPassthroughLogs.addLast(keyLog);
+            }
+        }
         int code = avrcpPassthroughToKeyCode(op);
         if (code == KeyEvent.KEYCODE_UNKNOWN) {
             Log.w(TAG, "Ignoring passthrough of unknown key " + op + " state " + state);
@@ -5576,6 +5955,14 @@ public final class Avrcp_ext {
             deviceFeatures[deviceIndex].mLastPassthroughcmd = code;
 
         mMediaSessionManager.dispatchMediaKeyEvent(event);
+        if (keyLog != null) {
+            String pkg = (mMediaController != null) ? mMediaController.getPackageName() : "unknown";
+            synchronized (mPassthroughLogs) {
+                if (keyLog.addDispatch(System.currentTimeMillis(), event, pkg)) {
+                    mPassthroughLatency.record(keyLog.getDispatchLatency());
+                }
+            }
+        }
     }
 
     private int avrcpPassthroughToKeyCode(int operation) {
@@ -25,12 +25,17 @@ import android.media.browse.MediaBrowser;
 import android.media.browse.MediaBrowser.MediaItem;
 import android.media.session.MediaSession;
 import android.os.Bundle;
+import android.os.SystemProperties;
 import android.util.Log;
 
+import com.android.bluetooth.btservice.ProfileService;
+
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 
 /*************************************************************************************************
@@ -50,7 +55,13 @@ class BrowsedMediaPlayer_ext {
 
     private static final int BROWSED_ITEM_ID_INDEX = 2;
     private static final int BROWSED_FOLDER_ID_INDEX = 4;
+    /* Browse channel MTU of the stack, responses larger than this can not be sent */
+    private static final String BROWSE_MTU_PROPERTY = "persist.vendor.btstack.avrcp.browse_mtu";
+    private static final int DEFAULT_BROWSE_MTU = 4093;
     private static final String[] ROOT_FOLDER = {"root"};
+    /* number of folders whose children are kept, and prefetched per paged window */
+    private static final int FOLDER_CACHE_MAX_ENTRIES = 16;
+    private static final int FOLDER_PREFETCH_PER_WINDOW = 4;
     private static boolean mPlayerRoot = false;
 
     private boolean mNeedToSendGetFolderItem = false;
@@ -87,9 +98,16 @@ class BrowsedMediaPlayer_ext {
 
     /* store mapping between uid(Avrcp) and mediaId(Media Player) for Media Item */
     private HashMap<Integer, String> mMediaHmap = new HashMap<Integer, String>();
+    private HashMap<String, Integer> mMediaUidMap = new HashMap<String, Integer>();
 
     /* store mapping between uid(Avrcp) and mediaId(Media Player) for Folder Item */
     private HashMap<Integer, String> mFolderHmap = new HashMap<Integer, String>();
+    private HashMap<String, Integer> mFolderUidMap = new HashMap<String, Integer>();
+
+    /* reused to build GetFolderItems responses for this browsing session */
+    private final FolderItemsEncoder_ext mFolderItemsEncoder = new FolderItemsEncoder_ext();
+    private final int mBrowseMtu =
+            SystemProperties.getInt(BROWSE_MTU_PROPERTY, DEFAULT_BROWSE_MTU);
 
     /* command objects from avrcp handler */
     private AvrcpCmd_ext.FolderItemsCmd mFolderItemsReqObj;
@@ -97,6 +115,31 @@ class BrowsedMediaPlayer_ext {
     /* store result of getfolderitems with scope="vfs" */
     private List<MediaBrowser.MediaItem> mFolderItems = null;
 
+    /* children of recently loaded folders keyed on mediaId, valid for mFolderCacheUidCounter */
+    private final LinkedHashMap<String, List<MediaBrowser.MediaItem>> mFolderCache =
+            new LinkedHashMap<String, List<MediaBrowser.MediaItem>>(
+                    FOLDER_CACHE_MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, List<MediaBrowser.MediaItem>> eldest) {
+                    return size() > FOLDER_CACHE_MAX_ENTRIES;
+                }
+            };
+    private int mFolderCacheUidCounter = -1;
+    private int mFolderCacheHits = 0;
+    private int mFolderCacheMisses = 0;
+    private int mFolderPrefetches = 0;
+    private int mFolderPrefetchLoads = 0;
+
+    /* folder subscribed through mFolderItemsCb and through mFolderPrefetchCb */
+    private String mPendingChangePath = null;
+    private String mPendingPrefetch = null;
+    /* last GetFolderItems window, used to detect sequential paging */
+    private long mLastEndItem = -1;
+    private long mPrefetchStart = 0;
+    private long mPrefetchEnd = -1;
+    private int mPrefetchBudget = 0;
+
     /* Connection state callback handler */
     class MediaConnectionCallback extends MediaBrowser.ConnectionCallback {
         private String mCallbackPackageName;
@@ -159,6 +202,8 @@ class BrowsedMediaPlayer_ext {
                     if (DEBUG) {
                         Log.d(TAG, "OnChildren Loaded folder items: childrens= " + children.size());
                     }
+                    mPendingChangePath = null;
+                    putCachedChildren(parentId, children);
 
                     /*
                      * cache current folder items and send as rsp when remote requests
@@ -184,6 +229,7 @@ class BrowsedMediaPlayer_ext {
                     } else {
                         mFolderItems = children;
                         mCurrFolderNumItems = mFolderItems.size();
+                        mLastEndItem = -1;
                         mMediaInterface.changePathRsp(mBDAddr, AvrcpConstants_ext.RSP_NO_ERROR,
                                 mCurrFolderNumItems);
                     }
@@ -194,6 +240,7 @@ class BrowsedMediaPlayer_ext {
                 /* UID is invalid */
                 @Override
                 public void onError(String id) {
+                    mPendingChangePath = null;
                     RespondPendingGetFolderItemsVFS();
                     Log.e(TAG, "set browsed player rsp. Could not get root folder items");
                     mMediaInterface.setBrowsedPlayerRsp(mBDAddr, AvrcpConstants_ext.RSP_INTERNAL_ERR,
@@ -213,10 +260,17 @@ class BrowsedMediaPlayer_ext {
 
         @Override
         public void onChildrenLoaded(String parentId, List<MediaBrowser.MediaItem> children) {
-            String logprefix = "ItemAttribSubscriber(" + mMediaId + "): ";
             if (DEBUG) {
-                Log.d(TAG, logprefix + "OnChildren Loaded");
+                Log.d(TAG, "ItemAttribSubscriber(" + mMediaId + "): OnChildren Loaded");
             }
+            putCachedChildren(parentId, children);
+            sendItemAttr(parentId, children);
+            mMediaBrowser.unsubscribe(parentId);
+        }
+
+        /* find the requested item in the children of parentId and send its attributes */
+        void sendItemAttr(String parentId, List<MediaBrowser.MediaItem> children) {
+            String logprefix = "ItemAttribSubscriber(" + mMediaId + "): ";
             int status = AvrcpConstants_ext.RSP_INV_ITEM;
 
             if (children == null) {
@@ -239,7 +293,6 @@ class BrowsedMediaPlayer_ext {
                 Log.e(TAG, logprefix + "not able to find item from " + parentId);
                 mMediaInterface.getItemAttrRsp(mBDAddr, status, null);
             }
-            mMediaBrowser.unsubscribe(parentId);
         }
 
         @Override
@@ -303,6 +356,28 @@ class BrowsedMediaPlayer_ext {
         }
     }
 
+    /* loads children of a folder in the window the remote is paging towards */
+    private MediaBrowser.SubscriptionCallback mFolderPrefetchCb =
+            new MediaBrowser.SubscriptionCallback() {
+                @Override
+                public void onChildrenLoaded(String parentId,
+                        List<MediaBrowser.MediaItem> children) {
+                    if (DEBUG) Log.d(TAG, "prefetched " + parentId + ": " + children.size());
+                    putCachedChildren(parentId, children);
+                    if (mMediaBrowser != null) mMediaBrowser.unsubscribe(parentId);
+                    if (parentId.equals(mPendingPrefetch)) {
+                        mPendingPrefetch = null;
+                        prefetchNextFolder();
+                    }
+                }
+
+                @Override
+                public void onError(String id) {
+                    Log.w(TAG, "prefetch of " + id + " failed");
+                    if (id.equals(mPendingPrefetch)) mPendingPrefetch = null;
+                }
+            };
+
     /* Constructor */
     BrowsedMediaPlayer_ext(byte[] address, Context context,
             AvrcpMediaRspInterface_ext mAvrcpMediaRspInterface, Avrcp_ext mAvrcp_ext) {
@@ -509,8 +584,11 @@ class BrowsedMediaPlayer_ext {
             if (mMediaBrowser != null) mMediaBrowser.disconnect();
         }
 
+        invalidateFolderCache();
         mMediaHmap = null;
         mFolderHmap = null;
+        mMediaUidMap = null;
+        mFolderUidMap = null;
         mMediaController = null;
         mMediaBrowser = null;
         mPathStack = null;
@@ -562,7 +640,6 @@ class BrowsedMediaPlayer_ext {
                 Log.e(TAG, "new_folder is same as current folder, Invalid direction!");
                 mMediaInterface.changePathRsp(mBDAddr, AvrcpConstants_ext.RSP_INV_DIRN, 0);
             } else {
-                mMediaBrowser.subscribe(newPath, mFolderItemsCb);
                 String [] ExternalPath = newPath.split("/");
                 if (ExternalPath != null) {
                     Log.d(TAG,"external path length: " + ExternalPath.length);
@@ -585,6 +662,7 @@ class BrowsedMediaPlayer_ext {
                 }
                 /* assume that call is success and update stack with new folder path */
                 mPathStack.push(newPath);
+                loadFolder(newPath);
             }
         } else if (direction == AvrcpConstants_ext.DIR_UP) { /* move up */
             if (mPathStack == null || mPathStack.isEmpty()) {
@@ -601,7 +679,7 @@ class BrowsedMediaPlayer_ext {
                 mPathStack.pop();
                 mLocalPathCache.pop();
                 newPath = mPathStack.peek();
-                mMediaBrowser.subscribe(newPath, mFolderItemsCb);
+                loadFolder(newPath);
             }
         } else { /* invalid direction */
             Log.w(TAG, "changePath : Invalid direction " + direction);
@@ -637,7 +715,14 @@ class BrowsedMediaPlayer_ext {
         }
 
         /* Subscribe to the parent to list items and retrieve the right one */
-        mMediaBrowser.subscribe(mPathStack.peek(), new ItemAttribSubscriber(itemAttr, mediaID));
+        String parentId = mPathStack.peek();
+        ItemAttribSubscriber subscriber = new ItemAttribSubscriber(itemAttr, mediaID);
+        List<MediaBrowser.MediaItem> children = getCachedChildren(parentId);
+        if (children != null) {
+            subscriber.sendItemAttr(parentId, children);
+            return;
+        }
+        mMediaBrowser.subscribe(parentId, subscriber);
     }
 
     public void getTotalNumOfItems(byte scope) {
@@ -689,6 +774,15 @@ class BrowsedMediaPlayer_ext {
             getFolderItemsFilterAttr(mBDAddr, reqObj, mFolderItems,
                     AvrcpConstants_ext.BTRC_SCOPE_FILE_SYSTEM, mFolderItemsReqObj.mStartItem,
                     mFolderItemsReqObj.mEndItem);
+            /* remote is paging through the folder, warm up the folders of its next window */
+            if (reqObj.mStartItem == mLastEndItem + 1 && reqObj.mEndItem >= reqObj.mStartItem) {
+                long window = reqObj.mEndItem - reqObj.mStartItem + 1;
+                mPrefetchStart = reqObj.mEndItem + 1;
+                mPrefetchEnd = reqObj.mEndItem + window;
+                mPrefetchBudget = FOLDER_PREFETCH_PER_WINDOW;
+                prefetchNextFolder();
+            }
+            mLastEndItem = reqObj.mEndItem;
         } else {
             mNeedToSendGetFolderItem = true;
             Log.w(TAG, "Need to send getFolderItemsVFS after obtaing VFS post SetBrowse Rsp");
@@ -771,8 +865,6 @@ class BrowsedMediaPlayer_ext {
                     "getFolderItemsFilterAttr: startItem =" + startItem + ", endItem = " + endItem);
         }
 
-        List<MediaBrowser.MediaItem> resultItems = new ArrayList<MediaBrowser.MediaItem>();
-
         if (children == null) {
             Log.e(TAG, "Error: children are null in getFolderItemsFilterAttr");
             mMediaInterface.folderItemsRsp(bdaddr, AvrcpConstants_ext.RSP_INV_RANGE, null);
@@ -780,28 +872,55 @@ class BrowsedMediaPlayer_ext {
         }
 
         /* check for index out of bound errors */
-        resultItems = checkIndexOutofBounds(bdaddr, children, startItem, endItem);
+        List<MediaBrowser.MediaItem> resultItems =
+                checkIndexOutofBounds(bdaddr, children, startItem, endItem);
         if (resultItems == null) {
             Log.w(TAG, "resultItems is null.");
             mMediaInterface.folderItemsRsp(bdaddr, AvrcpConstants_ext.RSP_INV_RANGE, null);
             return;
         }
+        long startNs = AvrcpPerfStats_ext.start();
         FolderItemsData_ext folderDataNative = new FolderItemsData_ext(resultItems.size());
+        FolderItemsEncoder_ext encoder = mFolderItemsEncoder;
+        encoder.reset(mBrowseMtu);
+
+        int maxAttributesRequested = 0;
+        boolean isAllAttribRequested = false;
+        if (mFolderItemsReqObj.mNumAttr == AvrcpConstants_ext.NUM_ATTR_ALL) {
+            isAllAttribRequested = true;
+            maxAttributesRequested = AvrcpConstants_ext.MAX_NUM_ATTR;
+        } else if (mFolderItemsReqObj.mNumAttr != AvrcpConstants_ext.NUM_ATTR_NONE) {
+            /* get only the requested attribute ids from the request */
+            maxAttributesRequested = mFolderItemsReqObj.mNumAttr;
+        }
 
-        /* variables to temperorily add attrs */
-        ArrayList<String> attrArray = new ArrayList<String>();
-        ArrayList<Integer> attrId = new ArrayList<Integer>();
-
+        int numItems = 0;
         for (int itemIndex = 0; itemIndex < resultItems.size(); itemIndex++) {
             /* item type. Needs to be set by media player */
             MediaBrowser.MediaItem item = resultItems.get(itemIndex);
             int flags = item.getFlags();
-            if ((flags & MediaBrowser.MediaItem.FLAG_BROWSABLE) != 0) {
-                folderDataNative.mItemTypes[itemIndex] = AvrcpConstants_ext.BTRC_ITEM_FOLDER;
-            } else {
-                folderDataNative.mItemTypes[itemIndex] = AvrcpConstants_ext.BTRC_ITEM_MEDIA;
+            boolean isFolder = (flags & MediaBrowser.MediaItem.FLAG_BROWSABLE) != 0;
+            String displayName = getAttrValue(bdaddr, AvrcpConstants_ext.ATTRID_TITLE, item);
+
+            /* lookup and copy values of attributes requested by remote, folder items
+             * carry no attributes and native only consumes them for media items */
+            encoder.startItem();
+            for (int idx = 0; !isFolder && idx < maxAttributesRequested; idx++) {
+                int attribId =
+                        isAllAttribRequested ? (idx + 1) : mFolderItemsReqObj.mAttrIDs[idx];
+                String value = getAttrValue(bdaddr, attribId, item);
+                if (value != null) {
+                    encoder.addAttr(attribId, value);
+                }
+            }
+            if (!encoder.commitItem(isFolder, displayName, itemIndex == 0)) {
+                Log.i(TAG, "getFolderItemsFilterAttr: trimmed to " + itemIndex + " of "
+                        + resultItems.size() + " items to fit browse MTU " + mBrowseMtu);
+                break;
             }
 
+            folderDataNative.mItemTypes[itemIndex] = isFolder ?
+                    AvrcpConstants_ext.BTRC_ITEM_FOLDER : AvrcpConstants_ext.BTRC_ITEM_MEDIA;
             /* set playable */
             if ((flags & MediaBrowser.MediaItem.FLAG_PLAYABLE) != 0) {
                 folderDataNative.mPlayable[itemIndex] = AvrcpConstants_ext.ITEM_PLAYABLE;
@@ -809,62 +928,31 @@ class BrowsedMediaPlayer_ext {
                 folderDataNative.mPlayable[itemIndex] = AvrcpConstants_ext.ITEM_NOT_PLAYABLE;
             }
             /* set uid for current item */
-            byte[] uid;
-            if (folderDataNative.mItemTypes[itemIndex] == AvrcpConstants_ext.BTRC_ITEM_MEDIA)
-                uid = stringToByteMedia(item.getDescription().getMediaId(), BROWSED_ITEM_ID_INDEX);
-            else
-                uid = stringToByteFolder(item.getDescription().getMediaId());
-
-            for (int idx = 0; idx < AvrcpConstants_ext.UID_SIZE; idx++) {
-                folderDataNative.mItemUid[itemIndex * AvrcpConstants_ext.UID_SIZE + idx] = uid[idx];
-            }
+            String mediaId = item.getDescription().getMediaId();
+            int uid = isFolder ? stringToUidFolder(mediaId)
+                    : stringToUidMedia(mediaId, BROWSED_ITEM_ID_INDEX);
+            FolderItemsEncoder_ext.writeUid(uid, folderDataNative.mItemUid,
+                    itemIndex * AvrcpConstants_ext.UID_SIZE);
 
             /* Set display name for current item */
-            folderDataNative.mDisplayNames[itemIndex] =
-                    getAttrValue(bdaddr, AvrcpConstants_ext.ATTRID_TITLE, item);
-
-            int maxAttributesRequested = 0;
-            boolean isAllAttribRequested = false;
-            /* check if remote requested for attributes */
-            if (mFolderItemsReqObj.mNumAttr != AvrcpConstants_ext.NUM_ATTR_NONE) {
-                int attrCnt = 0;
-
-                /* add requested attr ids to a temp array */
-                if (mFolderItemsReqObj.mNumAttr == AvrcpConstants_ext.NUM_ATTR_ALL) {
-                    isAllAttribRequested = true;
-                    maxAttributesRequested = AvrcpConstants_ext.MAX_NUM_ATTR;
-                } else {
-                    /* get only the requested attribute ids from the request */
-                    maxAttributesRequested = mFolderItemsReqObj.mNumAttr;
-                }
-
-                /* lookup and copy values of attributes for ids requested above */
-                for (int idx = 0; idx < maxAttributesRequested; idx++) {
-                    /* check if media player provided requested attributes */
-                    String value = null;
-
-                    int attribId =
-                            isAllAttribRequested ? (idx + 1) : mFolderItemsReqObj.mAttrIDs[idx];
-                    value = getAttrValue(bdaddr, attribId, resultItems.get(itemIndex));
-                    if (value != null) {
-                        attrArray.add(value);
-                        attrId.add(attribId);
-                        attrCnt++;
-                    }
-                }
-                /* add num attr actually received from media player for a particular item */
-                folderDataNative.mAttributesNum[itemIndex] = attrCnt;
-            }
+            folderDataNative.mDisplayNames[itemIndex] = displayName;
+            /* add num attr actually received from media player for a particular item */
+            folderDataNative.mAttributesNum[itemIndex] = encoder.getItemAttrCount();
+            numItems++;
         }
 
+        long rspStartNs = AvrcpPerfStats_ext.start();
+        folderDataNative.truncate(numItems);
         /* copy filtered attr ids and attr values to response parameters */
-        if (attrId.size() > 0) {
-            folderDataNative.mAttrIds = new int[attrId.size()];
-            for (int attrIndex = 0; attrIndex < attrId.size(); attrIndex++) {
-                folderDataNative.mAttrIds[attrIndex] = attrId.get(attrIndex);
+        if (maxAttributesRequested > 0) {
+            folderDataNative.mAttrIds = encoder.getAttrIds();
+            folderDataNative.mAttrValues = encoder.getAttrValues();
+            if (folderDataNative.mAttrIds.length == 0) {
+                folderDataNative.mAttrIds = null;
+                folderDataNative.mAttrValues = null;
             }
-            folderDataNative.mAttrValues = attrArray.toArray(new String[attrArray.size()]);
         }
+        encoder.reset(mBrowseMtu);
 
         /* create rsp object and send response to remote device */
         FolderItemsRsp_ext rspObj =
@@ -874,6 +962,10 @@ class BrowsedMediaPlayer_ext {
                         folderDataNative.mItemUid, folderDataNative.mDisplayNames,
                         folderDataNative.mAttributesNum, folderDataNative.mAttrIds,
                         folderDataNative.mAttrValues);
+        AvrcpPerfStats_ext.record(AvrcpPerfStats_ext.OP_FOLDER_ITEMS_RSP, resultItems.size(),
+                rspStartNs);
+        AvrcpPerfStats_ext.record(AvrcpPerfStats_ext.OP_BROWSED_FOLDER_ITEMS, children.size(),
+                startNs);
         mMediaInterface.folderItemsRsp(bdaddr, AvrcpConstants_ext.RSP_NO_ERROR, rspObj);
     }
 
@@ -1009,44 +1101,146 @@ class BrowsedMediaPlayer_ext {
 
     /* convert mediaId to uid for Media item*/
     private byte[] stringToByteMedia(String mediaId, int id) {
+        return intToByteArray(stringToUidMedia(mediaId, id));
+    }
+
+    private int stringToUidMedia(String mediaId, int id) {
         /* check if this mediaId already exists in hashmap */
-        if (!mMediaHmap.containsValue(mediaId)) { /* add to hashmap */
-            int uid;
-            String queueId = parseQueueId(mediaId, id);
-            if (queueId == null) {
-                uid = mMediaHmap.size() + 1;
-            } else {
-                uid = Integer.valueOf(queueId).intValue();
+        Integer known = mMediaUidMap.get(mediaId);
+        if (known != null) {
+            return known;
+        }
+        int uid;
+        String queueId = parseQueueId(mediaId, id);
+        if (queueId == null) {
+            uid = mMediaHmap.size() + 1;
+        } else {
+            uid = Integer.valueOf(queueId).intValue();
+        }
+        putUid(mMediaHmap, mMediaUidMap, uid, mediaId);
+        return uid;
+    }
+
+    /* convert mediaId to uid for Folder item*/
+    private int stringToUidFolder(String mediaId) {
+        /* check if this mediaId already exists in hashmap */
+        Integer known = mFolderUidMap.get(mediaId);
+        if (known != null) {
+            return known;
+        }
+        // Offset by one as uid 0 is reserved
+        int uid = mFolderHmap.size() + 1;
+        putUid(mFolderHmap, mFolderUidMap, uid, mediaId);
+        return uid;
+    }
+
+    /* keeps the uid to mediaId map and its reverse index in step */
+    private static void putUid(HashMap<Integer, String> uidMap, HashMap<String, Integer> idMap,
+            int uid, String mediaId) {
+        String previous = uidMap.put(uid, mediaId);
+        if (previous != null && !previous.equals(mediaId)) {
+            Integer previousUid = idMap.get(previous);
+            if (previousUid != null && previousUid == uid) {
+                idMap.remove(previous);
             }
+        }
+        idMap.put(mediaId, uid);
+    }
 
-            mMediaHmap.put(uid, mediaId);
-            return intToByteArray(uid);
-        } else { /* search key for give mediaId */
-            for (int uid : mMediaHmap.keySet()) {
-                if (mMediaHmap.get(uid).equals(mediaId)) {
-                    return intToByteArray(uid);
-                }
+    /* serve changePath from the folder cache, or subscribe for the children of newPath */
+    private void loadFolder(String newPath) {
+        List<MediaBrowser.MediaItem> children = getCachedChildren(newPath);
+        if (children == null) {
+            if (newPath.equals(mPendingPrefetch)) {
+                /* subscribing again replaces the prefetch callback of this folder */
+                mPendingPrefetch = null;
             }
+            mPendingChangePath = newPath;
+            mMediaBrowser.subscribe(newPath, mFolderItemsCb);
+            return;
         }
-        return null;
+        mFolderItems = children;
+        mCurrFolderNumItems = mFolderItems.size();
+        refreshFolderItems(mFolderItems);
+        mLastEndItem = -1;
+        mMediaInterface.changePathRsp(mBDAddr, AvrcpConstants_ext.RSP_NO_ERROR,
+                mCurrFolderNumItems);
     }
 
-    /* convert mediaId to uid for Folder item*/
-    private byte[] stringToByteFolder(String mediaId) {
-        /* check if this mediaId already exists in hashmap */
-        if (!mFolderHmap.containsValue(mediaId)) { /* add to hashmap */
-            // Offset by one as uid 0 is reserved
-            int uid = mFolderHmap.size() + 1;
-            mFolderHmap.put(uid, mediaId);
-            return intToByteArray(uid);
-        } else { /* search key for give mediaId */
-            for (int uid : mFolderHmap.keySet()) {
-                if (mFolderHmap.get(uid).equals(mediaId)) {
-                    return intToByteArray(uid);
-                }
+    /* subscribe to one uncached browsable folder of the prefetch window at a time */
+    private void prefetchNextFolder() {
+        if (mMediaBrowser == null || mFolderItems == null || mPendingPrefetch != null
+                || mPendingChangePath != null) {
+            return;
+        }
+        long end = Math.min(mPrefetchEnd, mFolderItems.size() - 1);
+        while (mPrefetchBudget > 0 && mPrefetchStart <= end) {
+            MediaBrowser.MediaItem item = mFolderItems.get((int) mPrefetchStart++);
+            if ((item.getFlags() & MediaBrowser.MediaItem.FLAG_BROWSABLE) == 0) continue;
+            String mediaId = item.getMediaId();
+            if (mediaId == null || isFolderCached(mediaId)) continue;
+            mPrefetchBudget--;
+            mFolderPrefetches++;
+            mPendingPrefetch = mediaId;
+            mMediaBrowser.subscribe(mediaId, mFolderPrefetchCb);
+            return;
+        }
+    }
+
+    private List<MediaBrowser.MediaItem> getCachedChildren(String mediaId) {
+        synchronized (mFolderCache) {
+            List<MediaBrowser.MediaItem> children = null;
+            if (mFolderCacheUidCounter == Avrcp_ext.sUIDCounter) {
+                children = mFolderCache.get(mediaId);
             }
+            if (children != null) {
+                mFolderCacheHits++;
+            } else {
+                mFolderCacheMisses++;
+            }
+            return children;
+        }
+    }
+
+    private boolean isFolderCached(String mediaId) {
+        synchronized (mFolderCache) {
+            return mFolderCacheUidCounter == Avrcp_ext.sUIDCounter
+                    && mFolderCache.containsKey(mediaId);
+        }
+    }
+
+    private void putCachedChildren(String mediaId, List<MediaBrowser.MediaItem> children) {
+        if (mediaId == null || children == null) return;
+        synchronized (mFolderCache) {
+            if (mFolderCacheUidCounter != Avrcp_ext.sUIDCounter) {
+                mFolderCache.clear();
+                mFolderCacheUidCounter = Avrcp_ext.sUIDCounter;
+            }
+            if (mediaId.equals(mPendingPrefetch)) mFolderPrefetchLoads++;
+            mFolderCache.put(mediaId, children);
+        }
+    }
+
+    /* folder contents are no longer valid once the player reported UIDs changed */
+    public void invalidateFolderCache() {
+        synchronized (mFolderCache) {
+            mFolderCache.clear();
+            mFolderCacheUidCounter = -1;
+        }
+        mPendingChangePath = null;
+        mPendingPrefetch = null;
+        mLastEndItem = -1;
+        mPrefetchBudget = 0;
+    }
+
+    public void dump(StringBuilder sb) {
+        synchronized (mFolderCache) {
+            ProfileService.println(sb, "Browsed player " + mPackageName + ": folder cache "
+                    + mFolderCache.size() + "/" + FOLDER_CACHE_MAX_ENTRIES + " uidCounter="
+                    + mFolderCacheUidCounter + " hits=" + mFolderCacheHits + " misses="
+                    + mFolderCacheMisses + " prefetched=" + mFolderPrefetches + " ("
+                    + mFolderPrefetchLoads + " loaded)");
         }
-        return null;
     }
 
     private void refreshFolderItems(List<MediaBrowser.MediaItem> folderItems) {
@@ -1085,6 +1279,7 @@ class BrowsedMediaPlayer_ext {
         mFolderItems = null;
         mMediaId = null;
         mRootFolderUid = null;
+        invalidateFolderCache();
         mPlayerRoot = false;
         mBrowseRoot = false;
 
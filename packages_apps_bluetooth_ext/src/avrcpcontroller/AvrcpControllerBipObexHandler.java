@@ -34,7 +34,8 @@ import android.os.Process;
 import android.os.Bundle;
 import android.os.Looper;
 import android.os.Message;
-import android.os.Environment;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.Log;
 import javax.obex.ClientSession;
 import javax.obex.ClientOperation;
@@ -98,10 +99,19 @@ class AvrcpControllerBipObexHandler extends Handler {
     private static int mL2capPsm = L2CAP_INVALID_PSM;
     /** Where we store temp Bluetooth received files on the external storage */
     public static final String DEFAULT_STORE_SUBDIR = "/bluetooth";
-    /** Default prefix for thumnail files stored on external storage */
-    final private String THUMB_PREFIX = "AVRCP_BIP_THUMB_";
-    /** Default prefix for image files stored on external storage */
-    final private String IMG_PREFIX = "AVRCP_BIP_IMG_";
+    /** Skip GetImageProperties when a descriptor was already accepted by the remote */
+    private static final boolean DIRECT_GET_IMAGE = SystemProperties.getBoolean(
+            "persist.vendor.service.bt.avrcpct.direct_img", true);
+    /** Descriptor last used for a successful GetImage, per remote address and requested
+        encoding and pixel size. Kept across connections. */
+    private static final HashMap<String, AvrcpBipImgDescriptor> sPreferredImgDesc =
+            new HashMap<String, AvrcpBipImgDescriptor>();
+    /** Minimum gap between two prefetch requests, and after a foreground fetch */
+    private static final long PREFETCH_INTERVAL_MS = 500;
+    private long mLastForegroundFetchTime;
+    /** Fetched images, kept across BIP sessions */
+    private final AvrcpControllerCoverArtCache mCoverArtCache =
+            AvrcpControllerCoverArtCache.getInstance();
     /** Default Transformation supported for Image retreival */
     final private String DEF_TRANSFORMATION_SUPPORTED = "stretch";
 
@@ -123,6 +133,8 @@ class AvrcpControllerBipObexHandler extends Handler {
             case AvrcpControllerBipStateMachine.MESSAGE_OBEX_CONNECT:
                 mL2capPsm = (int)msg.arg1;
                 mDevice = (BluetoothDevice)msg.obj;
+                /* images left by an earlier session carry handles of that session */
+                mCoverArtCache.removeDevice(mDevice);
                 connectBip();
                 if (mConnected) {
                     mAvrcpBipSMHandler
@@ -142,6 +154,25 @@ class AvrcpControllerBipObexHandler extends Handler {
                         .sendToTarget();
                 break;
 
+            case AvrcpControllerBipStateMachine.MESSAGE_OBEX_THUMBNAIL_PREFETCH:
+                ArrayList<String> pending = (ArrayList<String>) msg.obj;
+                if (pending == null || pending.isEmpty()) {
+                    break;
+                }
+                long now = SystemClock.uptimeMillis();
+                if (hasMessages(AvrcpControllerBipStateMachine.MESSAGE_OBEX_THUMBNAIL_FETCH)
+                        || hasMessages(AvrcpControllerBipStateMachine.MESSAGE_OBEX_IMAGE_FETCH)
+                        || now - mLastForegroundFetchTime < PREFETCH_INTERVAL_MS) {
+                    // Foreground fetches go first, try again once the link is idle.
+                    sendMessageDelayed(obtainMessage(msg.what, pending), PREFETCH_INTERVAL_MS);
+                    break;
+                }
+                prefetchLinkedThumbnail(pending.remove(0));
+                if (!pending.isEmpty()) {
+                    sendMessageDelayed(obtainMessage(msg.what, pending), PREFETCH_INTERVAL_MS);
+                }
+                break;
+
             case AvrcpControllerBipStateMachine.MESSAGE_OBEX_THUMBNAIL_FETCH:
                 String imgThmbNailHandle = (String)msg.obj;
                 imageData = new Bundle();
@@ -153,6 +184,7 @@ class AvrcpControllerBipObexHandler extends Handler {
                     getLinkedThumbnail(imgThmbNailHandle));
                 message.setData(imageData);
                 message.sendToTarget();
+                mLastForegroundFetchTime = SystemClock.uptimeMillis();
                 break;
 
             case AvrcpControllerBipStateMachine.MESSAGE_OBEX_IMAGE_FETCH:
@@ -175,6 +207,7 @@ class AvrcpControllerBipObexHandler extends Handler {
                     .obtainMessage(AvrcpControllerBipStateMachine.MESSAGE_OBEX_IMAGE_FETCHED);
                 message.setData(imageData);
                 message.sendToTarget();
+                mLastForegroundFetchTime = SystemClock.uptimeMillis();
                 break;
         }
     }
@@ -266,6 +299,9 @@ class AvrcpControllerBipObexHandler extends Handler {
         // Close L2Cap Channel.
         closeSocket();
         mConnected = false;
+        if (mDevice != null) {
+            mCoverArtCache.removeDevice(mDevice);
+        }
     }
 
     /** Disconnect L2Cap channel.
@@ -291,8 +327,8 @@ class AvrcpControllerBipObexHandler extends Handler {
         mConnected = false;
     }
 
-    /** Handle disconnect BIP and remove all temp images on external storage
-        to Cleanup AvrcpControllerBipObexHandler.
+    /** Handle disconnect BIP to Cleanup AvrcpControllerBipObexHandler.
+        Fetched images of the device are dropped from the cover art cache.
      */
     public void cleanup() {
         if(DBG) Log.d(TAG,"Cleanup");
@@ -300,28 +336,6 @@ class AvrcpControllerBipObexHandler extends Handler {
        /** Obex Disc is ignored  from obex layer for any ongoing GET Request.
             Hence, only obex session close and socket close are  performed in later case. */
         disconnectBip();
-        clearCoverArtMapFromLocalPath();
-    }
-
-    /** Remove all temp images fetched and stored on external storage during BIP Session.
-     */
-    private void clearCoverArtMapFromLocalPath() {
-        /*
-        * In this case hashmap of handle and images has to be cleared.
-        */
-        String fileToBeDeletedPrefix = "AVRCP_BIP_";
-        File btDir = checkForBluetoothDir();
-        if (btDir != null) {
-            File file[] = btDir.listFiles();
-            if (file != null) {
-                for (int i = 0; i < file.length; i++) {
-                    if (file[i].getName().startsWith(fileToBeDeletedPrefix)) {
-                        Log.e(TAG, "file is deleted  @ " + file[i].getAbsolutePath());
-                        file[i].delete();
-                    }
-                }
-            }
-        }
     }
 
     /** Execute BIP Obex Client Request and
@@ -348,66 +362,24 @@ class AvrcpControllerBipObexHandler extends Handler {
         }
     }
 
-    /** Check and return file location if image already exists on external storage.
-     *  @param imgHandle handle or name of image to be searched.
-     *  @param imgPrefix prefix of filename to be searched.
-     *  @return absolute file path location of image under bluetooth dir on external storage,
-     *          null  if image is not already fetched.
-     */
-    private String checkCoverArtOnLocalPath(String imgPrefix,String imgHandle) {
-        String fileToBeSearch = imgPrefix + imgHandle;
-        File btDir = checkForBluetoothDir();
-        if (btDir != null) {
-            File file[] = btDir.listFiles();
-            if (file != null) {
-                for (int i = 0; i < file.length; i++) {
-                    if (file[i].getName().startsWith(fileToBeSearch)) {
-                        if(DBG) Log.d(TAG, "file is present @ " + file[i].getAbsolutePath());
-                        return file[i].getAbsolutePath();
-                    }
-                }
-            }
-        }
-        return null;
-    }
-
-    /** Check for bluetooth dir access on external storage.
-     *  @return default bluetooh dir if storage accessible,
-     *          null if not accessible.
-     */
-    private File checkForBluetoothDir() {
-        File btDir = null;
-        if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
-            String root = Environment.getExternalStorageDirectory().getPath();
-            btDir = new File(root + DEFAULT_STORE_SUBDIR);
-            if (!btDir.isDirectory() && !btDir.mkdir()) {
-                if (DBG) Log.d(TAG, "Receive File aborted - can't create base directory "
-                            + btDir.getPath());
-                return null;
-            }
-            return btDir;
-        } else {
-            if (DBG) Log.d(TAG, "Receive File aborted - no external storage");
-            return btDir;
-        }
-    }
-
     /** Compose GETLinkedThumbnail Request to retreive thumbnail version of the image.
         @param imgHandle handle for the image to be retreived.
         @return location for thumbnail file on external storage.
      */
     public String getLinkedThumbnail(String imgHandle){
         // Check and return Image location if already exists
-        String localPath = checkCoverArtOnLocalPath(THUMB_PREFIX,imgHandle);
+        String key = AvrcpControllerCoverArtCache.getKey(mDevice, imgHandle,
+                AvrcpControllerCoverArtCache.DESC_THUMBNAIL);
+        String localPath = mCoverArtCache.get(key);
         if (DBG) Log.d(TAG, "getLinkedThumbnil: localPath " + localPath + " ImgHandle: "
             + imgHandle);
         if (localPath == null) {
-            AvrcpBipRequest request = new AvrcpBipGetLinkedThumbnail(imgHandle);
+            AvrcpBipRequest request = new AvrcpBipGetLinkedThumbnail(imgHandle,
+                    mCoverArtCache.getTempFile(key, "jpeg"));
             // GET Request Image Thumbnail
             processBipRequest(request);
-            if (request.isSuccess()) {
-                localPath = request.mReceiveFilePath;
-            } else {
+            localPath = commitRequest(key, request);
+            if (localPath == null) {
                 Log.w(TAG, "getLinkedThumbnail request: failure");
             }
         } else {
@@ -417,13 +389,33 @@ class AvrcpControllerBipObexHandler extends Handler {
         return localPath;
     }
 
+    /** Fetch the thumbnail of an upcoming track into the cover art cache.
+        @param imgHandle handle for the image to be retreived.
+     */
+    private void prefetchLinkedThumbnail(String imgHandle) {
+        String key = AvrcpControllerCoverArtCache.getKey(mDevice, imgHandle,
+                AvrcpControllerCoverArtCache.DESC_THUMBNAIL);
+        if (mCoverArtCache.contains(key)) {
+            return;
+        }
+        if (DBG) Log.d(TAG, "prefetchLinkedThumbnail: ImgHandle: " + imgHandle);
+        AvrcpBipRequest request = new AvrcpBipGetLinkedThumbnail(imgHandle,
+                mCoverArtCache.getTempFile(key, "jpeg"));
+        processBipRequest(request);
+        if (commitRequest(key, request) != null) {
+            mCoverArtCache.recordPrefetched(key);
+        } else {
+            Log.w(TAG, "prefetchLinkedThumbnail: failure for " + imgHandle);
+        }
+    }
+
     /** GETFinalImageFromProperties Request to retreive image from the image properties,
         supply image description along with handle for the image to be fetched.
         @param imgHandle handle for the image to be retreived.
         @param prop ImageProperties object required to compose image description.
         @return Processed BIP response including location for Image fetched.
      */
-    private AvrcpBipRequest getFinalImageFromProperties(String imgHandle,
+    private AvrcpBipRequest getFinalImageFromProperties(String imgHandle, String key,
             AvrcpBipGetImageProperties prop) {
         AvrcpBipImgDescriptor imgDesc;
         try {
@@ -433,13 +425,37 @@ class AvrcpControllerBipObexHandler extends Handler {
             // recieve file is set to null, to indicate failure;
             return null;
         }
+        return getImageWithDescriptor(imgHandle, key, imgDesc);
+    }
+
+    /** GetImage Request for the image with a known image description.
+        @return Processed BIP response including location for Image fetched.
+     */
+    private AvrcpBipRequest getImageWithDescriptor(String imgHandle, String key,
+            AvrcpBipImgDescriptor imgDesc) {
         byte[] imgDescXmL = createXmlFromImgDescriptor(imgDesc);
-        AvrcpBipRequest request = new AvrcpBipGetImage(imgHandle, imgDesc, imgDescXmL);
+        AvrcpBipRequest request = new AvrcpBipGetImage(imgHandle, imgDesc, imgDescXmL,
+                mCoverArtCache.getTempFile(key, imgDesc.mEncoding));
         //GET Request Image
         processBipRequest(request);
         return request;
     }
 
+    private String getPreferredImgDescKey(String encoding, String pixel) {
+        return (mDevice == null ? "" : mDevice.getAddress()) + "/" + encoding + "/" + pixel;
+    }
+
+    /** Move the image received by a request into the cover art cache.
+        @return location of the cached image, null if the request failed.
+     */
+    private String commitRequest(String key, AvrcpBipRequest request) {
+        if (request.isSuccess() && request.mReceiveFilePath != null) {
+            return mCoverArtCache.commit(key, request.mReceiveFile);
+        }
+        mCoverArtCache.discard(request.mReceiveFile);
+        return null;
+    }
+
     /** GetImage Request to retreive image properties and trigger complete image request.
         @param imgHandle handle for the image to be retreived.
         @param encoding for image to be fetched, provided from BIPSM.
@@ -451,20 +467,55 @@ class AvrcpControllerBipObexHandler extends Handler {
         Bundle imageData = new Bundle();
         imageData.putString(AvrcpControllerBipStateMachine.COVER_ART_HANDLE, imgHandle);
         // Check and return Image location if already exists
-        String localPath = checkCoverArtOnLocalPath(IMG_PREFIX,imgHandle);
+        String key = AvrcpControllerCoverArtCache.getKey(mDevice, imgHandle,
+                encoding + pixel);
+        String localPath = mCoverArtCache.get(key);
         if (DBG) Log.d(TAG, "getImage: localPath " + localPath + " maxSize: "
             + maxSize + " Pixel: "+ pixel);
+        if (localPath != null) {
+            imageData.putString(AvrcpControllerBipStateMachine.COVER_ART_FETCH_PATH,
+                    AvrcpControllerBipStateMachine.FETCH_PATH_CACHE);
+        }
+        String descKey = getPreferredImgDescKey(encoding, pixel);
+        AvrcpBipImgDescriptor preferred;
+        synchronized (sPreferredImgDesc) {
+            preferred = sPreferredImgDesc.get(descKey);
+        }
+        if (localPath == null && DIRECT_GET_IMAGE && preferred != null) {
+            // Single round trip with the descriptor the remote accepted before.
+            localPath = commitRequest(key, getImageWithDescriptor(imgHandle, key, preferred));
+            if (localPath != null) {
+                imageData.putString(AvrcpControllerBipStateMachine.COVER_ART_FETCH_PATH,
+                        AvrcpControllerBipStateMachine.FETCH_PATH_DIRECT);
+            } else {
+                Log.w(TAG, "getImage: direct GetImage failed, using image properties");
+                synchronized (sPreferredImgDesc) {
+                    sPreferredImgDesc.remove(descKey);
+                }
+            }
+        }
         if (localPath == null) {
             AvrcpBipRequest prop = new AvrcpBipGetImageProperties(imgHandle,
                 new AvrcpBipImgDescriptor(encoding, pixel, Long.toString(maxSize),
                     DEF_TRANSFORMATION_SUPPORTED));
             // GETImageProperties request for image handle.
             if (processBipRequest(prop)) {
-                AvrcpBipRequest req  = getFinalImageFromProperties(imgHandle,
+                AvrcpBipRequest req  = getFinalImageFromProperties(imgHandle, key,
                         (AvrcpBipGetImageProperties)prop);
                 if (req !=  null) {
+                    String location = commitRequest(key, req);
+                    AvrcpBipImgDescriptor used = ((AvrcpBipGetImage) req).mImgDesc;
+                    // Remember only descriptors built from our request, not a native fallback
+                    // that is specific to this image.
+                    if (location != null && pixel.equals(used.mPixel)) {
+                        synchronized (sPreferredImgDesc) {
+                            sPreferredImgDesc.put(descKey, used);
+                        }
+                    }
                     imageData.putString(AvrcpControllerBipStateMachine.COVER_ART_IMAGE_LOCATION,
-                        req.isSuccess() ? req.mReceiveFilePath:null);
+                        location);
+                    imageData.putString(AvrcpControllerBipStateMachine.COVER_ART_FETCH_PATH,
+                            AvrcpControllerBipStateMachine.FETCH_PATH_PROPERTIES);
                 } else {
                     if (DBG) Log.d(TAG, "image fetch failed ");
                     return null;
@@ -655,7 +706,7 @@ class AvrcpControllerBipObexHandler extends Handler {
 
     /** This class is implementation for Image Descriptor Object.
      */
-    private class AvrcpBipImgDescriptor {
+    private static class AvrcpBipImgDescriptor {
            public String mVersion;
            public String mEncoding;
            public String mPixel;
@@ -700,6 +751,8 @@ class AvrcpControllerBipObexHandler extends Handler {
         protected HeaderSet mHeaderSet;
         protected int mResponseCode;
         public  String mReceiveFilePath = null;
+        /* cache temp file the response body is written to, null if nothing is saved */
+        protected File mReceiveFile = null;
 
         public AvrcpBipRequest() {
             mHeaderSet = new HeaderSet();
@@ -739,6 +792,36 @@ class AvrcpControllerBipObexHandler extends Handler {
         protected void readResponseHeaders(HeaderSet headerset) {
             /* nothing here by default */
         }
+
+        /* Write the response body to mReceiveFile */
+        protected void readResponseToFile(InputStream is) throws IOException {
+            byte[] buffer = new byte[4096]; // To hold file contents
+            int bytes_read;
+            FileOutputStream tmp = null;
+            if (DBG) Log.d(TAG, "mResponseCode: " + mResponseCode + " file: " + mReceiveFile);
+            if (mReceiveFile == null) {
+                return;
+            }
+            try {
+                if (DBG) Log.d(TAG,"readResponse: opening " + mReceiveFile +
+                    " file for writing image");
+                tmp = new FileOutputStream(mReceiveFile);
+            } catch (FileNotFoundException e) {
+                Log.e(TAG,"readResponse: unable to open tmp File for writing");
+                throw e;
+            }
+            try {
+                while ((bytes_read = is.read(buffer)) != -1) {
+                    if (VDBG) Log.v(TAG,"bytes_read: " + bytes_read);
+                    tmp.write(buffer, 0, bytes_read);
+                }
+                /* Flush the data to output stream */
+                tmp.flush();
+                mReceiveFilePath = mReceiveFile.getAbsolutePath();
+            } finally {
+                tmp.close();
+            }
+        }
     }
 
     /** This class is implementation for LinkedThumbnail Object.
@@ -747,11 +830,11 @@ class AvrcpControllerBipObexHandler extends Handler {
 
         private static final String TAG = "AvrcpBipGetLinkedThumbnail";
         private static final String TYPE = "x-bt/img-thm";
-        private String tmpFilePath ;
         String mImgHandle;
 
-        public AvrcpBipGetLinkedThumbnail(String handle) {
+        public AvrcpBipGetLinkedThumbnail(String handle, File receiveFile) {
             mImgHandle = handle;
+            mReceiveFile = receiveFile;
             mHeaderSet.setHeader(HeaderSet.TYPE, TYPE);
             mHeaderSet.setHeader(OAP_TAGID_IMG_HANDLE, mImgHandle);
         }
@@ -763,36 +846,7 @@ class AvrcpControllerBipObexHandler extends Handler {
 
         @Override
         protected void readResponse(InputStream is) throws IOException {
-            byte[] buffer = new byte[4096]; // To hold file contents
-            int bytes_read;
-            String tmpFilePath ;
-            File btDir;
-            FileOutputStream tmp = null;
-            btDir = checkForBluetoothDir();
-            if (DBG) Log.d(TAG, "mResponseCode: " + mResponseCode + "btDir: " + btDir);
-            if (btDir != null) {
-                tmpFilePath = btDir.getPath() + "/" + THUMB_PREFIX
-                       + mHeaderSet.getHeader(OAP_TAGID_IMG_HANDLE)
-                       + ".jpeg";
-                try {
-                    if (DBG) Log.d(TAG,"readResponse: opening " + tmpFilePath +
-                        " file for writing image");
-                    tmp = new FileOutputStream(tmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.e(TAG,"readResponse: unable to open tmp File for writing");
-                    throw e;
-                }
-                if (DBG) Log.d(TAG,"readResponse: writing to " + tmpFilePath);
-                while ((bytes_read = is.read(buffer)) != -1) {
-                    if (VDBG) Log.v(TAG,"bytes_read: " + bytes_read);
-                    tmp.write(buffer, 0, bytes_read);
-                }
-                /* Flush the data to output stream */
-                mReceiveFilePath =  tmpFilePath;
-                tmp.flush();
-                if (tmp != null)
-                    tmp.close();
-            }
+            readResponseToFile(is);
         }
     }
 
@@ -896,10 +950,11 @@ class AvrcpControllerBipObexHandler extends Handler {
         AvrcpBipImgDescriptor mImgDesc;
 
         public AvrcpBipGetImage(String handle, AvrcpBipImgDescriptor imgDesc,
-                byte[] imgDescXml) {
+                byte[] imgDescXml, File receiveFile) {
             mImgHandle = handle;
             mImgDesc = imgDesc;
             mImgDescXml = imgDescXml;
+            mReceiveFile = receiveFile;
             mHeaderSet.setHeader(HeaderSet.TYPE, TYPE);
             mHeaderSet.setHeader(OAP_TAGID_IMG_HANDLE, mImgHandle);
             mHeaderSet.setHeader(OAP_TAGID_IMG_DESCRIPTOR, mImgDescXml);
@@ -912,36 +967,7 @@ class AvrcpControllerBipObexHandler extends Handler {
 
         @Override
         protected void readResponse(InputStream is) throws IOException {
-            byte[] buffer = new byte[4096]; // To hold file contents
-            int bytes_read;
-            String tmpFilePath ;
-            File btDir;
-            FileOutputStream tmp = null;
-            btDir = checkForBluetoothDir();
-            if (DBG) Log.d(TAG, "btDir: " + btDir);
-            if (btDir != null) {
-                tmpFilePath = btDir.getPath() + "/" + IMG_PREFIX
-                        + mHeaderSet.getHeader(OAP_TAGID_IMG_HANDLE)
-                        + "." + mImgDesc.mEncoding;
-                try {
-                    if (DBG) Log.d(TAG,"readResponse: opening " + tmpFilePath +
-                        " file for writing image");
-                    tmp = new FileOutputStream(tmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.e(TAG,"readResponse: unable to open tmp File for writing");
-                    throw e;
-                }
-                if (DBG) Log.d(TAG,"readResponse: writing to " + tmpFilePath);
-                while ((bytes_read = is.read(buffer)) != -1) {
-                     if (VDBG) Log.v(TAG,"bytes_read: " + bytes_read);
-                     tmp.write(buffer, 0, bytes_read);
-                }
-                /* Flush the data to output stream */
-                mReceiveFilePath =  tmpFilePath;
-                tmp.flush();
-                if (tmp != null)
-                    tmp.close();
-            }
+            readResponseToFile(is);
         }
     }
 };
@@ -41,6 +41,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.text.TextUtils;
 import android.util.Log;
@@ -49,6 +50,7 @@ import com.android.internal.util.IState;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 import com.android.bluetooth.btservice.ProfileService;
+
 /**
  * Bluetooth AVRCP CONTROLLER BIP StateMachine * @hide
  */
@@ -61,6 +63,7 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
     public static final int MESSAGE_DISCONNECT_BIP                               = 2;
     public static final int MESSAGE_FETCH_THUMBNAIL                              = 3;
     public static final int MESSAGE_FETCH_IMAGE                                  = 4;
+    public static final int MESSAGE_PREFETCH_THUMBNAILS                          = 5;
     // Messages for handling error conditions.
     private static final int MSG_DISCONNECT_TIMEOUT                              = 6;
 
@@ -74,9 +77,15 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
     public static final int MESSAGE_OBEX_DISCONNECTED                            = 106;
     public static final int MESSAGE_OBEX_THUMBNAIL_FETCHED                       = 107;
     public static final int MESSAGE_OBEX_IMAGE_FETCHED                           = 108;
+    public static final int MESSAGE_OBEX_THUMBNAIL_PREFETCH                      = 109;
 
     public static final String COVER_ART_HANDLE                                  = "CA_HANDLE";
     public static final String COVER_ART_IMAGE_LOCATION                          = "IMG_LOC";
+    // how the obex handler got the image, for time to art reporting
+    public static final String COVER_ART_FETCH_PATH                              = "FETCH_PATH";
+    public static final String FETCH_PATH_CACHE                                  = "cache";
+    public static final String FETCH_PATH_DIRECT                                 = "direct";
+    public static final String FETCH_PATH_PROPERTIES                             = "properties";
     static final int DISCONNECT_TIMEOUT                                          = 3000;
 
     public static  String mSupportedCoverArtMimetype;
@@ -94,6 +103,12 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
     private final Context mContext;
     /* device associated with BIP client */
     private BluetoothDevice mDevice;
+    /* latest image and thumbnail request, a newer request of a kind drops the older one */
+    private ArtRequest mImageRequest;
+    private ArtRequest mThumbnailRequest;
+    private long mArtFetchCount;
+    private long mArtFetchTotalMs;
+    private long mArtFetchMaxMs;
 
     protected static final String EXTRA_METADATA_IS_INVALID_HANDLE = "is_invalid_handle";
 
@@ -167,6 +182,70 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
         quitNow();
     }
 
+    /* Cover art handle and uptime of an outstanding fetch request */
+    private static class ArtRequest {
+        final String mHandle;
+        final long mTime;
+
+        ArtRequest(String handle, long time) {
+            mHandle = handle;
+            mTime = time;
+        }
+    }
+
+    /* Starts timing a fetch, replacing the request it makes obsolete. A deferred request is
+     * replayed once connected, it keeps the time of its first arrival. */
+    private void onArtRequested(int what, String handle) {
+        ArtRequest current = (what == MESSAGE_FETCH_IMAGE) ? mImageRequest : mThumbnailRequest;
+        if (handle != null && current != null && handle.equals(current.mHandle)) {
+            return;
+        }
+        ArtRequest request = (handle == null) ? null
+                : new ArtRequest(handle, SystemClock.uptimeMillis());
+        if (what == MESSAGE_FETCH_IMAGE) {
+            mImageRequest = request;
+        } else {
+            mThumbnailRequest = request;
+        }
+    }
+
+    private void clearArtRequests() {
+        mImageRequest = null;
+        mThumbnailRequest = null;
+    }
+
+    /* Log the time from the art request of a track to its image being available */
+    private void onArtFetched(int what, Bundle data) {
+        String handle = data.getString(COVER_ART_HANDLE);
+        ArtRequest request;
+        if (what == MESSAGE_OBEX_IMAGE_FETCHED) {
+            request = mImageRequest;
+        } else {
+            request = mThumbnailRequest;
+        }
+        if (request == null || !request.mHandle.equals(handle)) {
+            return;
+        }
+        /* the request is over, whether it failed or not */
+        if (what == MESSAGE_OBEX_IMAGE_FETCHED) {
+            mImageRequest = null;
+        } else {
+            mThumbnailRequest = null;
+        }
+        if (data.getString(COVER_ART_IMAGE_LOCATION) == null) {
+            return;
+        }
+        long elapsed = SystemClock.uptimeMillis() - request.mTime;
+        mArtFetchCount++;
+        mArtFetchTotalMs += elapsed;
+        mArtFetchMaxMs = Math.max(mArtFetchMaxMs, elapsed);
+        String path = data.getString(COVER_ART_FETCH_PATH);
+        Log.i(TAG, "time to art " + handle + ": " + elapsed + " ms ("
+                + (path == null ? "thumbnail" : path) + "), avg "
+                + (mArtFetchTotalMs / mArtFetchCount) + " ms, max " + mArtFetchMaxMs
+                + " ms over " + mArtFetchCount);
+    }
+
     public int getBipState() {
         if(getCurrentState() == mDisconnected)
             return BluetoothProfile.STATE_DISCONNECTED;
@@ -194,6 +273,9 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
             case MESSAGE_FETCH_IMAGE:
                 str = "IN_AVRCP_FETCH_IMAGE";
                 break;
+            case MESSAGE_PREFETCH_THUMBNAILS:
+                str = "IN_AVRCP_PREFETCH_THUMBNAILS";
+                break;
             case MSG_DISCONNECT_TIMEOUT:
                 str = "MSG_DISCONNECT_TIMEOUT";
                 break;
@@ -209,6 +291,9 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
             case MESSAGE_OBEX_IMAGE_FETCH:
                 str = "REQ_OBEX_IAMGE_FETCH";
                 break;
+            case MESSAGE_OBEX_THUMBNAIL_PREFETCH:
+                str = "REQ_OBEX_THUMBNAIL_PREFETCH";
+                break;
             case MESSAGE_OBEX_CONNECTED:
                 str = "CB_OBEX_CONNECTED";
                 break;
@@ -236,6 +321,7 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
             if (DBG) {
                 Log.d(STATE_TAG, "Enter: " + dumpMessageString(getCurrentMessage().what));
             }
+            clearArtRequests();
         }
         @Override
         public boolean processMessage(Message message) {
@@ -299,6 +385,12 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
                 case MESSAGE_FETCH_IMAGE:
                 case MESSAGE_FETCH_THUMBNAIL:
                     Log.w(STATE_TAG," MESSAGE_FETCH_IMAGE");
+                    onArtRequested(message.what, (String) message.obj);
+                    removeDeferredMessages(message.what);
+                    deferMessage(message);
+                    break;
+
+                case MESSAGE_PREFETCH_THUMBNAILS:
                     removeDeferredMessages(message.what);
                     deferMessage(message);
                     break;
@@ -320,6 +412,7 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
                     }
                     if (DBG) Log.v(STATE_TAG,"MESSAGE_OBEX_DISCONNECT: device: " + mDevice);
                     mAvrcpCtrlBipObexHandler.removeCallbacksAndMessages(null);
+                    clearArtRequests();
                     Message msg = mAvrcpCtrlBipObexHandler
                             .obtainMessage(MESSAGE_OBEX_DISCONNECT, mDevice);
                     msg.sendToTarget();
@@ -352,6 +445,7 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
             Message msg = null;
             switch (message.what) {
                 case MESSAGE_OBEX_IMAGE_FETCHED:
+                    onArtFetched(message.what, message.getData());
                     imageData = new Bundle();
                     imageData.putString(COVER_ART_HANDLE,
                             message.getData().getString(COVER_ART_HANDLE));
@@ -364,6 +458,7 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
                     break;
 
                 case MESSAGE_OBEX_THUMBNAIL_FETCHED:
+                    onArtFetched(message.what, message.getData());
                     imageData = new Bundle();
                     imageData.putString(COVER_ART_HANDLE,
                             message.getData().getString(COVER_ART_HANDLE));
@@ -381,6 +476,7 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
                         Log.w(STATE_TAG,"ObexHandler is null: IMAGE FETCH cannot be supported");
                         throw new IllegalStateException("ObexHandler died");
                     }
+                    onArtRequested(message.what, (String) message.obj);
                     // Honor most recent request as other request are obsolete.
                     mAvrcpCtrlBipObexHandler.removeMessages(MESSAGE_FETCH_IMAGE);
                     imageData = new Bundle();
@@ -396,6 +492,7 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
                         Log.w(STATE_TAG,"ObexHandler not available");
                         break;
                     }
+                    onArtRequested(message.what, (String) message.obj);
                     // Honor most recent request as other request are obsolete.
                     mAvrcpCtrlBipObexHandler.removeMessages(MESSAGE_OBEX_THUMBNAIL_FETCH);
                     msg = mAvrcpCtrlBipObexHandler.obtainMessage(MESSAGE_OBEX_THUMBNAIL_FETCH,
@@ -403,6 +500,18 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
                     msg.sendToTarget();
                     break;
 
+                case MESSAGE_PREFETCH_THUMBNAILS:
+                    if (mAvrcpCtrlBipObexHandler == null) {
+                        //Should not happen
+                        Log.w(STATE_TAG,"ObexHandler not available");
+                        break;
+                    }
+                    // A new now playing list replaces the pending prefetches.
+                    mAvrcpCtrlBipObexHandler.removeMessages(MESSAGE_OBEX_THUMBNAIL_PREFETCH);
+                    mAvrcpCtrlBipObexHandler.obtainMessage(MESSAGE_OBEX_THUMBNAIL_PREFETCH,
+                            message.obj).sendToTarget();
+                    break;
+
                 case MESSAGE_DISCONNECT_BIP:
                     if (mAvrcpCtrlBipObexHandler == null) {
                         //Should not happen
@@ -420,6 +529,7 @@ public class AvrcpControllerBipStateMachine extends StateMachine {
                     }
                     if(DBG) Log.v(STATE_TAG,"MESSAGE_OBEX_DISCONNECT: device: " + mDevice);
                     mAvrcpCtrlBipObexHandler.removeCallbacksAndMessages(null);
+                    clearArtRequests();
                     msg = mAvrcpCtrlBipObexHandler.obtainMessage(MESSAGE_OBEX_DISCONNECT, mDevice);
                     msg.sendToTarget();
                     sendMessageDelayed(MSG_DISCONNECT_TIMEOUT, DISCONNECT_TIMEOUT);
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2018, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *           * Redistributions of source code must retain the above copyright
+ *             notice, this list of conditions and the following disclaimer.
+ *           * Redistributions in binary form must reproduce the above
+ *           * copyright notice, this list of conditions and the following
+ *             disclaimer in the documentation and/or other materials provided
+ *             with the distribution.
+ *           * Neither the name of The Linux Foundation nor the names of its
+ *             contributors may be used to endorse or promote products derived
+ *             from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.avrcpcontroller;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Environment;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Bluetooth/AVRCPController/CoverArtCache is a per session cache of the images and
+ * thumbnails fetched over BIP, keyed by remote device, image handle and requested
+ * descriptor. Image handles are only valid within one BIP session, so the entries of
+ * a device are dropped when its session connects and disconnects, and files left over
+ * from an earlier process are deleted on first use. The index is kept in memory only
+ * and the least recently used files are deleted once the byte budget is exceeded.
+ */
+class AvrcpControllerCoverArtCache {
+    private static final String TAG = "AvrcpControllerCoverArtCache";
+    private static final boolean DBG = true;
+    private static final boolean VDBG = AvrcpControllerService.VDBG;
+    private static final String CACHE_SUBDIR = "/avrcp_bip_cache";
+    /* prefix of the per session files written before this cache existed */
+    private static final String LEGACY_PREFIX = "AVRCP_BIP_";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String BUDGET_PROPERTY =
+            "persist.vendor.service.bt.avrcpct.cache_kb";
+    private static final int DEFAULT_BUDGET_KB = 8 * 1024;
+    /** Descriptor key used for linked thumbnails */
+    static final String DESC_THUMBNAIL = "thm";
+
+    private static AvrcpControllerCoverArtCache sInstance;
+
+    private final LinkedHashMap<String, File> mEntries =
+            new LinkedHashMap<String, File>(16, 0.75f, true);
+    private final long mBudgetBytes;
+    private long mBytes;
+    private File mDir;
+    /* prefetched entries not yet asked for by a foreground fetch */
+    private final HashSet<String> mPrefetched = new HashSet<String>();
+    private long mPrefetchCount;
+    private long mPrefetchHits;
+
+    private AvrcpControllerCoverArtCache(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    static synchronized AvrcpControllerCoverArtCache getInstance() {
+        if (sInstance == null) {
+            int budgetKb = SystemProperties.getInt(BUDGET_PROPERTY, DEFAULT_BUDGET_KB);
+            sInstance = new AvrcpControllerCoverArtCache(Math.max(0, budgetKb) * 1024L);
+        }
+        return sInstance;
+    }
+
+    /** Cache key, also used as file name, for an image of a remote device.
+     *  @param descriptor DESC_THUMBNAIL or the requested encoding and pixel size.
+     */
+    static String getKey(BluetoothDevice device, String imgHandle, String descriptor) {
+        return getDevicePrefix(device)
+                + (imgHandle + "_" + descriptor).replaceAll("[^A-Za-z0-9_]", "");
+    }
+
+    private static String getDevicePrefix(BluetoothDevice device) {
+        String address = (device == null) ? "" : device.getAddress();
+        return (address + "_").replaceAll("[^A-Za-z0-9_]", "");
+    }
+
+    /** Drops the images of a device, its image handles do not outlive the BIP session. */
+    synchronized void removeDevice(BluetoothDevice device) {
+        if (!ensureDir()) {
+            return;
+        }
+        String prefix = getDevicePrefix(device);
+        Iterator<Map.Entry<String, File>> it = mEntries.entrySet().iterator();
+        int removed = 0;
+        while (it.hasNext()) {
+            Map.Entry<String, File> entry = it.next();
+            if (!entry.getKey().startsWith(prefix)) {
+                continue;
+            }
+            mPrefetched.remove(entry.getKey());
+            mBytes -= entry.getValue().length();
+            entry.getValue().delete();
+            it.remove();
+            removed++;
+        }
+        if (DBG) Log.d(TAG, "removeDevice: " + removed + " images, total " + mBytes);
+    }
+
+    /** @return absolute path of the cached image, null if it was never fetched or is gone. */
+    synchronized String get(String key) {
+        if (!ensureDir()) {
+            return null;
+        }
+        File file = mEntries.get(key);
+        if (file == null) {
+            return null;
+        }
+        if (!file.isFile()) {
+            mEntries.remove(key);
+            return null;
+        }
+        if (mPrefetched.remove(key)) {
+            mPrefetchHits++;
+            Log.i(TAG, "prefetch hit " + key + ": " + mPrefetchHits + "/" + mPrefetchCount
+                    + " prefetched (" + (mPrefetchHits * 100 / mPrefetchCount) + "%)");
+        }
+        if (VDBG) Log.v(TAG, "get " + key + " -> " + file);
+        return file.getAbsolutePath();
+    }
+
+    /** @return true if the image is cached, without counting it as used. */
+    synchronized boolean contains(String key) {
+        if (!ensureDir()) {
+            return false;
+        }
+        File file = mEntries.get(key);
+        return file != null && file.isFile();
+    }
+
+    /** Mark an entry as fetched ahead of its track, for the prefetch hit ratio. */
+    synchronized void recordPrefetched(String key) {
+        if (mEntries.containsKey(key) && mPrefetched.add(key)) {
+            mPrefetchCount++;
+        }
+    }
+
+    /** @return file a fetched image is written to before commit, null if storage is not ready. */
+    synchronized File getTempFile(String key, String extension) {
+        if (!ensureDir()) {
+            return null;
+        }
+        return new File(mDir, key + "." + extension + TMP_SUFFIX);
+    }
+
+    /** Moves a completely received image into the cache.
+     *  @return absolute path of the cached image, null on failure.
+     */
+    synchronized String commit(String key, File tmpFile) {
+        if (tmpFile == null || !tmpFile.isFile()) {
+            return null;
+        }
+        String tmpName = tmpFile.getName();
+        File file = new File(tmpFile.getParentFile(),
+                tmpName.substring(0, tmpName.length() - TMP_SUFFIX.length()));
+        remove(key);
+        if (!tmpFile.renameTo(file)) {
+            Log.w(TAG, "commit: unable to rename " + tmpFile);
+            tmpFile.delete();
+            return null;
+        }
+        mEntries.put(key, file);
+        mBytes += file.length();
+        trim();
+        if (DBG) Log.d(TAG, "commit " + key + " " + file.length() + " bytes, total " + mBytes);
+        return file.getAbsolutePath();
+    }
+
+    synchronized void discard(File tmpFile) {
+        if (tmpFile != null) {
+            tmpFile.delete();
+        }
+    }
+
+    private void remove(String key) {
+        mPrefetched.remove(key);
+        File file = mEntries.remove(key);
+        if (file != null) {
+            mBytes -= file.length();
+            file.delete();
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, File>> it = mEntries.entrySet().iterator();
+        while (mBytes > mBudgetBytes && it.hasNext()) {
+            Map.Entry<String, File> entry = it.next();
+            File eldest = entry.getValue();
+            mPrefetched.remove(entry.getKey());
+            mBytes -= eldest.length();
+            it.remove();
+            if (VDBG) Log.v(TAG, "evict " + eldest);
+            eldest.delete();
+        }
+    }
+
+    /* Creates the cache directory the first time storage is available. Its files belong to
+     * sessions of an earlier process, their handles are stale, so they are deleted. */
+    private boolean ensureDir() {
+        if (mDir != null) {
+            return true;
+        }
+        if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+            if (DBG) Log.d(TAG, "external storage not mounted");
+            return false;
+        }
+        File btDir = new File(Environment.getExternalStorageDirectory().getPath()
+                + AvrcpControllerBipObexHandler.DEFAULT_STORE_SUBDIR);
+        File dir = new File(btDir, CACHE_SUBDIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "can't create cache directory " + dir);
+            return false;
+        }
+        File[] legacy = btDir.listFiles();
+        if (legacy != null) {
+            for (File file : legacy) {
+                if (file.getName().startsWith(LEGACY_PREFIX)) {
+                    file.delete();
+                }
+            }
+        }
+        File[] stale = dir.listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+        mDir = dir;
+        if (DBG) Log.d(TAG, "cache directory " + dir + ", budget " + mBudgetBytes + " bytes");
+        return true;
+    }
+}
@@ -55,6 +55,9 @@ public class CoverArtUtils {
     static final int MESSAGE_BIP_THUMB_NAIL_FETCHED = 502;
     static final int MESSAGE_BIP_IMAGE_FETCHED = 503;
 
+    /* number of upcoming now playing items whose thumbnails are fetched ahead */
+    private static final int PREFETCH_COUNT = 3;
+
     public void broadcastInValidHandle(Context ctx, AvrcpControllerService avrcpService,
             boolean streamAvailable) {
         if ((avrcpService == null || avrcpService.getConnectedDevices().size() <= 1)
@@ -140,6 +143,37 @@ public class CoverArtUtils {
         return true;
     }
 
+    /**
+     * Queue thumbnail prefetches for the items following the current track in the browsed
+     * now playing list, so the art is cached by the time the user skips to them.
+     * @param nowPlayingHandles cover art handles of the now playing list, in list order
+     * @param currentHandle cover art handle of the current track
+     */
+    public void msgNowPlayingListChanged(AvrcpControllerBipStateMachine bipStateMachine,
+            RemoteDevice remoteDevice, List<String> nowPlayingHandles, String currentHandle) {
+        if (bipStateMachine == null || remoteDevice == null
+                || !remoteDevice.isCoverArtSupported() || nowPlayingHandles == null) {
+            return;
+        }
+        int start = (currentHandle == null) ? -1 : nowPlayingHandles.indexOf(currentHandle);
+        ArrayList<String> upcoming = new ArrayList<>();
+        for (int i = start + 1; i < nowPlayingHandles.size()
+                && upcoming.size() < PREFETCH_COUNT; i++) {
+            String handle = nowPlayingHandles.get(i);
+            if (handle != null && !handle.isEmpty() && !handle.equals(currentHandle)
+                    && !upcoming.contains(handle)) {
+                upcoming.add(handle);
+            }
+        }
+        if (DBG) {
+            Log.d(TAG, "msgNowPlayingListChanged prefetch " + upcoming);
+        }
+        if (!upcoming.isEmpty()) {
+            bipStateMachine.sendMessage(AvrcpControllerBipStateMachine.MESSAGE_PREFETCH_THUMBNAILS,
+                    upcoming);
+        }
+    }
+
     public void processBipAction(Context ctx, AvrcpPlayer addressedPlayer,
             RemoteDevice remoteDevice, int bipAction, Message msg) {
         if (DBG) {
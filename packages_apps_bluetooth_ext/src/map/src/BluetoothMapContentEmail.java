@@ -20,6 +20,7 @@ import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.ParcelFileDescriptor;
@@ -121,10 +122,20 @@ public class BluetoothMapContentEmail extends BluetoothMapContent {
     private final BluetoothMapAccountItem mAccount;
     /* The MasInstance reference is used to update persistent (over a connection) version counters*/
     private final BluetoothMapMasInstance mMasInstance;
+    private final BluetoothMapEmailListingCache mListingCache;
     private final boolean EMAIL_ATTACHMENT_IMPLEMENTED = false;
 
     private int mRemoteFeatureMask = BluetoothMapUtils.MAP_FEATURE_DEFAULT_BITMASK;
 
+    /* Phase one of a message listing only needs the record id of each message of the page */
+    private static final String[] EMAIL_LISTING_PAGE_PROJECTION = new String[] {
+        BluetoothMapEmailContract.ExtEmailMessageColumns.RECORD_ID
+    };
+
+    private static final String[] EMAIL_COUNT_PROJECTION = new String[] {
+        "COUNT(*)"
+    };
+
     private class FilterInfo {
             public static final int TYPE_SMS    = 0;
             public static final int TYPE_MMS    = 1;
@@ -193,6 +204,7 @@ public class BluetoothMapContentEmail extends BluetoothMapContent {
         mContext = context;
         mResolver = mContext.getContentResolver();
         mMasInstance = mas;
+        mListingCache = BluetoothMapEmailListingCache.getInstance(mas);
         if (mResolver == null) {
             if (D) Log.d(TAG, "getContentResolver failed");
         }
@@ -1061,6 +1073,63 @@ public class BluetoothMapContentEmail extends BluetoothMapContent {
         mContext.sendBroadcast(emailIn);
     }
 
+    /*
+     * Phase one of a message listing: selects the requested page with a projection narrowed
+     * to the record id, letting the provider filter, order and segment. Returns the record
+     * ids as a comma separated list, or null if the page is empty.
+     */
+    private String getEmailListingPage(String where, int count, int offset) {
+        where += " order by " + BluetoothMapEmailContract.ExtEmailMessageColumns.TIMESTAMP
+                + " desc LIMIT " + count + " OFFSET " + offset;
+        if (D) Log.d(TAG, "getEmailListingPage where: " + where);
+        Uri contentUri = BluetoothMapEmailContract
+                .buildEmailMessageUri(BluetoothMapEmailContract.EMAIL_AUTHORITY);
+        Cursor c = mResolver.query(contentUri, EMAIL_LISTING_PAGE_PROJECTION, where, null,
+                null);
+        if (c == null) return null;
+        StringBuilder ids = new StringBuilder();
+        try {
+            if (D) Log.d(TAG, "getEmailListingPage: " + c.getCount() + " messages");
+            while (c.moveToNext()) {
+                if (ids.length() > 0) ids.append(',');
+                ids.append(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return (ids.length() > 0) ? ids.toString() : null;
+    }
+
+    /*
+     * Phase two projection: the columns always read by element(), plus those needed by the
+     * parameters selected in the ParameterMask.
+     */
+    private static String[] getEmailListingProjection(long mask) {
+        ArrayList<String> projection = new ArrayList<String>();
+        projection.add(BluetoothMapEmailContract.ExtEmailMessageColumns.RECORD_ID);
+        projection.add(BluetoothMapEmailContract.ExtEmailMessageColumns.MAILBOX_KEY);
+        projection.add(BluetoothMapEmailContract.ExtEmailMessageColumns.TIMESTAMP);
+        projection.add(BluetoothMapEmailContract.ExtEmailMessageColumns.EMAIL_FLAG_READ);
+        if ((mask & MASK_SUBJECT) != 0) {
+            projection.add(BluetoothMapContract.MessageColumns.SUBJECT);
+        }
+        if ((mask & (MASK_SENDER_NAME | MASK_SENDER_ADDRESSING)) != 0) {
+            projection.add(BluetoothMapEmailContract.ExtEmailMessageColumns.EMAIL_FROM_LIST);
+        }
+        if ((mask & (MASK_RECIPIENT_NAME | MASK_RECIPIENT_ADDRESSING)) != 0) {
+            projection.add(BluetoothMapEmailContract.ExtEmailMessageColumns.EMAIL_TO_LIST);
+            projection.add(BluetoothMapEmailContract.ExtEmailMessageColumns.EMAIL_CC_LIST);
+            projection.add(BluetoothMapEmailContract.ExtEmailMessageColumns.EMAIL_BCC_LIST);
+        }
+        if ((mask & MASK_REPLYTO_ADDRESSING) != 0) {
+            projection.add(BluetoothMapEmailContract.ExtEmailMessageColumns.EMAIL_REPLY_TO_LIST);
+        }
+        if ((mask & MASK_ATTACHMENT_SIZE) != 0) {
+            projection.add(BluetoothMapEmailContract.ExtEmailMessageColumns.EMAIL_FLAG_ATTACHMENT);
+        }
+        return projection.toArray(new String[projection.size()]);
+    }
+
     /**
      * Get a listing of message in folder after applying filter.
      * @param folder Must contain a valid folder string != null
@@ -1088,7 +1157,6 @@ public class BluetoothMapContentEmail extends BluetoothMapContent {
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         Cursor emailCursor = null;
-        String limit = "";
         int countNum = ap.getMaxListCount();
         int offsetNum = ap.getStartOffset();
         if(countNum < 0 || countNum > 65536){
@@ -1098,33 +1166,26 @@ public class BluetoothMapContentEmail extends BluetoothMapContent {
         if(offsetNum < 0 || offsetNum > 65536) {
             offsetNum = 0;
         }
-        limit=" LIMIT "+ (countNum + offsetNum);
         try{
             if (emailSelected(ap) && folderElement.hasEmailContent()) {
-                if(ap.getFilterMessageType() == (BluetoothMapAppParams.FILTER_NO_MMS|
-                                                 BluetoothMapAppParams.FILTER_NO_SMS_CDMA|
-                                                 BluetoothMapAppParams.FILTER_NO_SMS_GSM|
-                                                 BluetoothMapAppParams.FILTER_NO_IM)){
-                    //set real limit and offset if only this type is used
-                    //(only if offset/limit is used)
-                    limit = " LIMIT " + countNum +" OFFSET "+ offsetNum;
-                    if(D) Log.d(TAG, "Email Limit => "+limit);
-                    offsetNum = 0;
-                }
                 fi.mMsgType = FilterInfo.TYPE_EMAIL;
                 String where = setWhereFilter(folderElement, fi, ap);
 
                 if(!where.isEmpty()) {
-                    // where += " AND "+ Message.FLAG_LOADED_SELECTION;
-                    where += " order by " +BluetoothMapEmailContract.ExtEmailMessageColumns
-                        .TIMESTAMP+" desc "+ limit;
-                    if (D) Log.d(TAG, "msgType: " + fi.mMsgType + " where: " + where);
-                    Uri contentUri = BluetoothMapEmailContract
-                            .buildEmailMessageUri(BluetoothMapEmailContract.EMAIL_AUTHORITY);
-                    emailCursor =
-                            mResolver.query(contentUri, BluetoothMapEmailContract
-                            .BT_EMAIL_MESSAGE_PROJECTION, where, null, null);
-                    Log.d(TAG, "emailUri " + contentUri.toString());
+                    /* Only e-mail is listed here, so order, limit and offset are always
+                     * applied by the provider */
+                    String ids = getEmailListingPage(where, countNum, offsetNum);
+                    if (ids != null) {
+                        String pageWhere = BluetoothMapEmailContract.ExtEmailMessageColumns
+                                .RECORD_ID + " IN (" + ids + ")";
+                        String order = BluetoothMapEmailContract.ExtEmailMessageColumns
+                                .TIMESTAMP + " DESC";
+                        Uri contentUri = BluetoothMapEmailContract
+                                .buildEmailMessageUri(BluetoothMapEmailContract.EMAIL_AUTHORITY);
+                        emailCursor = mResolver.query(contentUri,
+                                getEmailListingProjection(ap.getParameterMask()), pageWhere,
+                                null, order);
+                    }
                     if (emailCursor != null) {
                         BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
@@ -1134,49 +1195,19 @@ public class BluetoothMapContentEmail extends BluetoothMapContent {
                             if(V) BluetoothMapUtils.printCursor(emailCursor);
                             e = element(emailCursor, fi, ap);
                             setSent(e, folderElement, fi, ap);
+                            if(mMsgListingVersion
+                                    > BluetoothMapUtils.MAP_MESSAGE_LISTING_FORMAT_V10) {
+                                //TODO: Whether required for EMAIL ?
+                                setFolderType(e, emailCursor, fi, ap);
+                            }
                             bmList.add(e);
                         }
                     }
                 }
             }
 
-            /* Enable this if post sorting and segmenting needed */
+            /* The page is already segmented by the provider */
             bmList.sort();
-            bmList.segment(ap.getMaxListCount(), offsetNum);
-            List<BluetoothMapMessageListingElement> list = bmList.getList();
-            int listSize = list.size();
-            Cursor tmpCursor = null;
-            for(int x=0;x<listSize;x++){
-                BluetoothMapMessageListingElement ele = list.get(x);
-                /* If OBEX "GET" request header includes "ParameterMask" with 'Type' NOT set,
-                 * then ele.getType() returns "null" even for a valid cursor.
-                 * Avoid NullPointerException in equals() check when 'mType' value is "null" */
-                TYPE tmpType = ele.getType();
-                if(emailCursor != null && ((TYPE.EMAIL).equals(tmpType))) {
-                    tmpCursor = emailCursor;
-                    fi.mMsgType = FilterInfo.TYPE_EMAIL;
-                }
-                if(tmpCursor != null){
-                    tmpCursor.moveToPosition(ele.getCursorIndex());
-                    setSenderAddressing(ele, tmpCursor, fi, ap);
-                    setSenderName(ele, tmpCursor, fi, ap);
-                    setRecipientAddressing(ele, tmpCursor, fi, ap);
-                    setRecipientName(ele, tmpCursor, fi, ap);
-                    setSubject(ele, tmpCursor, fi, ap);
-                    setSize(ele, tmpCursor, fi, ap);
-                    setText(ele, tmpCursor, fi, ap);
-                    setPriority(ele, tmpCursor, fi, ap);
-                    setSent(ele, folderElement, fi, ap);
-                    setProtected(ele, tmpCursor, fi, ap);
-                    setReceptionStatus(ele, tmpCursor, fi, ap);
-                    setAttachment(ele, tmpCursor, fi, ap);
-
-                    if(mMsgListingVersion > BluetoothMapUtils.MAP_MESSAGE_LISTING_FORMAT_V10 ){
-                        //TODO: Whether required for EMAIL ?
-                        setFolderType(ele, tmpCursor, fi, ap);
-                    }
-                }
-            }
         } finally {
             if(emailCursor != null)emailCursor.close();
         }
@@ -1203,19 +1234,7 @@ public class BluetoothMapContentEmail extends BluetoothMapContent {
             fi.mMsgType = FilterInfo.TYPE_EMAIL;
             String where = setWhereFilter(folderElement, fi, ap);
             if(!where.isEmpty()) {
-                Uri contentUri = BluetoothMapEmailContract
-                            .buildEmailMessageUri(BluetoothMapEmailContract.EMAIL_AUTHORITY);
-                Cursor c = mResolver.query(contentUri,
-                               BluetoothMapEmailContract.BT_EMAIL_MESSAGE_PROJECTION, where, null,
-                               BluetoothMapEmailContract.ExtEmailMessageColumns.TIMESTAMP
-                               + " DESC");
-                try {
-                    if (c != null) {
-                        cnt += c.getCount();
-                    }
-                } finally {
-                    if (c != null) c.close();
-                }
+                cnt += getCachedEmailCount(folderElement, where, false);
             }
         }
 
@@ -1223,6 +1242,79 @@ public class BluetoothMapContentEmail extends BluetoothMapContent {
         return cnt;
     }
 
+    /*
+     * Number of messages matching where, or with existsOnly 1 if there is at least one.
+     * Served from the listing cache when possible; folders without an id of their own are
+     * never cached.
+     */
+    private int getCachedEmailCount(BluetoothMapFolderElement folderElement, String where,
+            boolean existsOnly) {
+        long folderId = folderElement.getFolderId();
+        boolean cacheable = !folderElement.shouldIgnore() && folderId >= 0;
+        String filter = existsOnly ? "exists:" + where : where;
+        if (cacheable) {
+            int cnt = mListingCache.getCount(folderId, filter);
+            if (cnt != BluetoothMapEmailListingCache.NOT_CACHED) {
+                if (V) Log.v(TAG, "getCachedEmailCount: cached " + cnt + " for " + filter);
+                return cnt;
+            }
+        }
+        long generation = mListingCache.getGeneration();
+        int cnt = existsOnly ? queryEmailExists(where) : queryEmailCount(where);
+        if (cacheable && cnt >= 0) {
+            mListingCache.putCount(folderId, filter, cnt, generation);
+        }
+        return Math.max(cnt, 0);
+    }
+
+    /* COUNT(*) of the messages matching where, -1 if the provider could not be queried */
+    private int queryEmailCount(String where) {
+        Uri contentUri = BluetoothMapEmailContract
+                .buildEmailMessageUri(BluetoothMapEmailContract.EMAIL_AUTHORITY);
+        Cursor c = null;
+        try {
+            c = mResolver.query(contentUri, EMAIL_COUNT_PROJECTION, where, null, null);
+            if (c != null && c.moveToFirst()) {
+                return c.getInt(0);
+            }
+        } catch (IllegalArgumentException | SQLiteException e) {
+            /* Provider rejects aggregate projections, count the id rows instead */
+            if (D) Log.d(TAG, "queryEmailCount: COUNT(*) not supported, " + e);
+            if (c != null) c.close();
+            c = null;
+            try {
+                c = mResolver.query(contentUri, EMAIL_LISTING_PAGE_PROJECTION, where, null,
+                        null);
+                if (c != null) return c.getCount();
+            } catch (IllegalArgumentException | SQLiteException ex) {
+                Log.w(TAG, "queryEmailCount: " + ex);
+            }
+        } finally {
+            if (c != null) c.close();
+        }
+        return -1;
+    }
+
+    /* 1 if at least one message matches where, 0 if none, -1 if the provider could not be
+     * queried */
+    private int queryEmailExists(String where) {
+        Uri contentUri = BluetoothMapEmailContract
+                .buildEmailMessageUri(BluetoothMapEmailContract.EMAIL_AUTHORITY);
+        Cursor c = null;
+        try {
+            c = mResolver.query(contentUri, EMAIL_LISTING_PAGE_PROJECTION,
+                    where + " LIMIT 1", null, null);
+            if (c != null) {
+                return (c.getCount() > 0) ? 1 : 0;
+            }
+        } catch (IllegalArgumentException | SQLiteException e) {
+            Log.w(TAG, "queryEmailExists: " + e);
+        } finally {
+            if (c != null) c.close();
+        }
+        return -1;
+    }
+
     /**
      * Return true if there are unread messages in the requested list of messages
      * @param folder folder where the message listing should come from
@@ -1244,18 +1336,7 @@ public class BluetoothMapContentEmail extends BluetoothMapContent {
                 where += " AND " + BluetoothMapEmailContract.ExtEmailMessageColumns.EMAIL_FLAG_READ
                          + "=0 ";
                 where += setWhereFilterPeriod(ap, fi);
-                Uri contentUri = BluetoothMapEmailContract
-                            .buildEmailMessageUri(BluetoothMapEmailContract.EMAIL_AUTHORITY);
-                Cursor c = mResolver.query(contentUri,
-                            BluetoothMapEmailContract.BT_EMAIL_MESSAGE_PROJECTION, where, null,
-                            BluetoothMapEmailContract.ExtEmailMessageColumns.TIMESTAMP + " DESC");
-                try {
-                    if (c != null) {
-                        cnt += c.getCount();
-                    }
-                } finally {
-                    if (c != null) c.close();
-                }
+                cnt += getCachedEmailCount(folderElement, where, true);
             }
         }
 
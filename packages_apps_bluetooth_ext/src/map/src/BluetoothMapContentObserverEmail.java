@@ -32,10 +32,13 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
@@ -74,8 +77,10 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import javax.obex.ResponseCodes;
 
@@ -194,6 +199,61 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
     };
     private boolean mInitialized = false;
 
+    /* Mirrored state only, used by initMsgList and event report 1.0 reconcile passes */
+    static final String[] EMAIL_MSG_PROJECTION_STATE = new String[] {
+        BluetoothMapEmailContract.ExtEmailMessageColumns.RECORD_ID,
+        BluetoothMapEmailContract.ExtEmailMessageColumns.MAILBOX_KEY,
+        BluetoothMapEmailContract.ExtEmailMessageColumns.EMAIL_FLAG_READ,
+        BluetoothMapEmailContract.ExtEmailMessageColumns.TIMESTAMP
+    };
+
+    private static final boolean DELTA_ENABLED =
+            SystemProperties.getBoolean("persist.vendor.service.bt.map.email_delta", true);
+    private static final long FULL_RECONCILE_MS =
+            SystemProperties.getLong("persist.vendor.service.bt.map.email_reconcile_ms", 60000);
+    /* Aggregates the mirrored table keeps as well, a mismatch means rows moved, changed read
+     * status or were deleted without advancing the watermark */
+    private static final String[] EMAIL_MSG_PROJECTION_AGGREGATE = new String[] {
+        "COUNT(*)",
+        "SUM(" + BluetoothMapEmailContract.ExtEmailMessageColumns.RECORD_ID + " * "
+                + BluetoothMapEmailContract.ExtEmailMessageColumns.EMAIL_FLAG_READ + ")",
+        "SUM(" + BluetoothMapEmailContract.ExtEmailMessageColumns.RECORD_ID + " * "
+                + BluetoothMapEmailContract.ExtEmailMessageColumns.MAILBOX_KEY + ")"
+    };
+
+    /* Highest record id and timestamp seen, -1 until the list was loaded */
+    /* written under the mMsgTable lock, read by the observer thread to plan a pass */
+    private volatile long mMaxRecordId = -1;
+    private volatile long mMaxTimestamp = -1;
+    private volatile long mLastFullReconcile = 0;
+    /* cleared if the provider rejects the aggregate projection, every pass is full then */
+    private boolean mAggregateSupported = true;
+
+    private long mNotifications = 0;
+    private long mDeltaPasses = 0;
+    private long mFullPasses = 0;
+    private long mEscalations = 0;
+    private long mRowsScanned = 0;
+    private int mMaxRowsScanned = 0;
+
+    private static final int MSG_RECONCILE = 1;
+    private static final long COALESCE_WINDOW_MS =
+            SystemProperties.getLong("persist.vendor.service.bt.map.email_coalesce_ms", 500);
+
+    private HandlerThread mObserverThread = null;
+    private volatile Handler mObserverHandler = null;
+    /* Events of the running reconcile pass, only touched on the observer thread */
+    private List<Event> mEventBatch = null;
+
+    private final Object mObserverStatsLock = new Object();
+    private long mChangeNotifications = 0;
+    private long mReconcilePasses = 0;
+    private long mPassWindowStart = 0;
+    private int mPassesInWindow = 0;
+    private int mPassesLastMinute = 0;
+    private long mEventBatches = 0;
+    private long mEventsBatched = 0;
+
     public BluetoothMapContentObserverEmail(final Context context,
             BluetoothMnsObexClient mnsClient,
             BluetoothMapMasInstance masInstance,
@@ -205,6 +265,7 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
         mAccount = account;
         mMasInstance = masInstance;
         mMasId = mMasInstance.getMasId();
+        mListingCache = BluetoothMapEmailListingCache.getInstance(mMasInstance);
         mMapSupportedFeatures = mMasInstance.getRemoteFeatureMask();
         if (D) Log.d(TAG, "Supported features " +
                 Integer.toHexString(mMapSupportedFeatures));
@@ -224,10 +285,13 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
                 throw new RemoteException("Failed to acquire provider for " + mAuthority);
             }
             mProviderClient.setDetectNotResponding(PROVIDER_ANR_TIMEOUT);
-            mMsgListMsg = mMasInstance.getMsgListMsg();
-            if(mMsgListMsg == null) {
-                setMsgListMsg(new HashMap<Long, Msg>(), false);
-                initMsgList();
+            synchronized (sMsgTables) {
+                mMsgTable = sMsgTables.get(mMasInstance);
+                if (mMsgTable == null) {
+                    mMsgTable = new BluetoothMapEmailMsgTable();
+                    sMsgTables.put(mMasInstance, mMsgTable);
+                    initMsgList();
+                }
             }
         }
         mEnableSmsMms = enableSmsMms;
@@ -235,18 +299,6 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
         mEmailPackage = mContext.getString(R.string.email_ui_package);
      }
 
-    private Map<Long, Msg> getMsgListMsg() {
-        return mMsgListMsg;
-    }
-
-    private void setMsgListMsg(Map<Long, Msg> msgListMsg, boolean changesDetected) {
-        mMsgListMsg = msgListMsg;
-        if(changesDetected) {
-            mMasInstance.updateFolderVersionCounter();
-        }
-        mMasInstance.setMsgListMsg(msgListMsg);
-    }
-
     public int getObserverRemoteFeatureMask() {
         if (V) Log.v(TAG, "getObserverRemoteFeatureMask " + mMapEventReportVersion
             + " mMapSupportedFeatures :" + mMapSupportedFeatures);
@@ -330,10 +382,89 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
             if (V) Log.d(TAG, "onChange on thread: " + Thread.currentThread().getId()
                     + " Uri: " + uri.toString() + " selfchange: " + selfChange);
 
-                handleMsgListChanges(uri);
+            scheduleMsgListChanges(uri);
         }
     };
 
+    /*
+     * Notifications arriving within the coalescing window of the first one are folded into a
+     * single reconcile pass, which runs on the observer thread.
+     */
+    private void scheduleMsgListChanges(Uri uri) {
+        Handler handler = mObserverHandler;
+        if (handler == null) {
+            if (D) Log.d(TAG, "scheduleMsgListChanges: observer thread not running");
+            return;
+        }
+        synchronized (mObserverStatsLock) {
+            mChangeNotifications++;
+        }
+        mListingCache.noteChange();
+        if (!handler.hasMessages(MSG_RECONCILE)) {
+            handler.sendMessageDelayed(handler.obtainMessage(MSG_RECONCILE, uri),
+                    COALESCE_WINDOW_MS);
+        }
+    }
+
+    private final class ObserverHandler extends Handler {
+        ObserverHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_RECONCILE:
+                    long now = SystemClock.elapsedRealtime();
+                    boolean windowRolled = false;
+                    synchronized (mObserverStatsLock) {
+                        mReconcilePasses++;
+                        if (now - mPassWindowStart >= DateUtils.MINUTE_IN_MILLIS) {
+                            mPassesLastMinute = mPassesInWindow;
+                            mPassesInWindow = 0;
+                            mPassWindowStart = now;
+                            windowRolled = true;
+                        }
+                        mPassesInWindow++;
+                    }
+                    if (D && windowRolled) {
+                        StringBuilder sb = new StringBuilder();
+                        dump(sb);
+                        Log.d(TAG, sb.toString());
+                    }
+                    mEventBatch = new ArrayList<Event>();
+                    long changeSeq = mListingCache.getChangeSeq();
+                    try {
+                        if (handleMsgListChanges((Uri) msg.obj)) {
+                            mListingCache.setReconciled(changeSeq);
+                        }
+                    } finally {
+                        List<Event> batch = mEventBatch;
+                        mEventBatch = null;
+                        flushEvents(batch);
+                    }
+                    break;
+                default:
+                    Log.w(TAG, "Unknown message: " + msg.what);
+                    break;
+            }
+        }
+    }
+
+    /* Events of one reconcile pass go to the MNS client together, once the list lock is
+     * released */
+    private void flushEvents(List<Event> batch) {
+        if (batch.isEmpty()) return;
+        if (V) Log.v(TAG, "flushEvents: " + batch.size() + " events");
+        synchronized (mObserverStatsLock) {
+            mEventsBatched += batch.size();
+            mEventBatches++;
+        }
+        for (Event evt : batch) {
+            deliverEvent(evt);
+        }
+    }
+
     /**
      * Set the folder structure to be used for this instance.
      * @param folderStructure
@@ -341,7 +472,20 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
     public void setFolderStructure(BluetoothMapFolderElement folderStructure) {
         this.mFolders = folderStructure;
     }
-    private Map<Long, Msg> mMsgListMsg = null;
+    /*
+     * Mirrored message state, kept per MAS instance across observer instances as the
+     * Map<Long, Msg> stored in BluetoothMapMasInstance was. The MAS instance can only hold
+     * that map type, hence this side map. It is safe as:
+     * - BluetoothMapMasInstance has identity equality, so a table is never shared between
+     *   instances, and the weak key drops the table together with its instance;
+     * - a table holds no reference back to its instance, so the key can be collected;
+     * - the map is only touched under its own lock, and a table only under its own lock by
+     *   the single observer of the instance.
+     */
+    private static final Map<BluetoothMapMasInstance, BluetoothMapEmailMsgTable> sMsgTables =
+            new WeakHashMap<BluetoothMapMasInstance, BluetoothMapEmailMsgTable>();
+    private BluetoothMapEmailMsgTable mMsgTable = null;
+    private BluetoothMapEmailListingCache mListingCache = null;
 
 
     @Override
@@ -361,9 +505,15 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
             }
             mProviderClient.setDetectNotResponding(PROVIDER_ANR_TIMEOUT);
             initMsgList();
+            if (mObserverThread == null) {
+                mObserverThread = new HandlerThread("BluetoothMapEmailObserver");
+                mObserverThread.start();
+                mObserverHandler = new ObserverHandler(mObserverThread.getLooper());
+            }
             try {
                 mResolver.registerContentObserver(EMAIL_URI, false, mObserver);
                 mObserverRegistered = true;
+                mListingCache.setTracking(true);
             } catch (SQLiteException e) {
                 Log.e(TAG, "SQLite exception: " + e);
             }
@@ -373,9 +523,27 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
         if (V) Log.d(TAG, "unregisterObserver");
         mResolver.unregisterContentObserver(mObserver);
         mObserverRegistered = false;
+        /* changes are no longer seen, so nothing cached can be trusted */
+        mListingCache.setTracking(false);
+        mListingCache.invalidateAll();
+        if (mObserverThread != null) {
+            mObserverHandler.removeCallbacksAndMessages(null);
+            mObserverHandler = null;
+            mObserverThread.quitSafely();
+            mObserverThread = null;
+        }
     }
 
     private void sendEvent(Event evt) {
+        List<Event> batch = mEventBatch;
+        if (batch != null) {
+            batch.add(evt);
+            return;
+        }
+        deliverEvent(evt);
+    }
+
+    private void deliverEvent(Event evt) {
 
         if(mTransmitEvents == false) {
             if(V) Log.v(TAG, "mTransmitEvents == false - don't send event.");
@@ -456,201 +624,282 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
         if (V) Log.d(TAG, "initMsgList");
 
         if(mAccount != null) {
-            HashMap<Long, Msg> msgList = new HashMap<Long, Msg>();
             Uri uri = mMessageUri;
             String where = BluetoothMapEmailContract.ExtEmailMessageColumns.ACCOUNT_KEY + "="
                                + mAccount.getAccountId();
-            Cursor c = mProviderClient.query(uri, BluetoothMapEmailContract
-                            .BT_EMAIL_MSG_PROJECTION_SHORT, where, null, null);
+            Cursor c = mProviderClient.query(uri, EMAIL_MSG_PROJECTION_STATE, where, null, null);
+            long maxRecordId = -1;
+            long maxTimestamp = -1;
+
+            synchronized(mMsgTable) {
+                mMsgTable.clear();
+                try {
+                    if (c != null && c.moveToFirst()) {
+                        int idIdx = c.getColumnIndex(BluetoothMapEmailContract
+                                        .ExtEmailMessageColumns.RECORD_ID);
+                        int folderIdx = c.getColumnIndex(
+                                BluetoothMapEmailContract.ExtEmailMessageColumns.MAILBOX_KEY);
+                        int readIdx = c.getColumnIndex(
+                                BluetoothMapEmailContract.ExtEmailMessageColumns.EMAIL_FLAG_READ);
+                        int timestampIdx = c.getColumnIndex(
+                                BluetoothMapEmailContract.ExtEmailMessageColumns.TIMESTAMP);
+                        do {
+                            long id = c.getLong(idIdx);
+                            long folderId = c.getInt(folderIdx);
+                            int readFlag = c.getInt(readIdx);
+                            mMsgTable.put(id, BluetoothMapEmailMsgTable.pack(folderId, readFlag));
+                            maxRecordId = Math.max(maxRecordId, id);
+                            maxTimestamp = Math.max(maxTimestamp, c.getLong(timestampIdx));
+                        } while (c.moveToNext());
+                    }
+                } finally {
+                    if (c != null) c.close();
+                }
+                mMasInstance.updateFolderVersionCounter();
+                mListingCache.invalidateAll();
+                mMaxRecordId = maxRecordId;
+                mMaxTimestamp = maxTimestamp;
+                mLastFullReconcile = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    /* Folder path used in events, "unknown" if the folder was created while connected */
+    private String getFolderPath(long folderId) {
+        BluetoothMapFolderElement folderElement = mFolders.getFolderById(folderId);
+        return (folderElement != null) ? folderElement.getFullPath() : "unknown";
+    }
+
+    private void updateWatermarks(Cursor c, long id) {
+        mMaxRecordId = Math.max(mMaxRecordId, id);
+        mMaxTimestamp = Math.max(mMaxTimestamp, c.getLong(c.getColumnIndex(
+                BluetoothMapEmailContract.ExtEmailMessageColumns.TIMESTAMP)));
+    }
+
+    private void sendNewMessageEvent(Cursor c, long id, String newFolder) {
+        Event evt;
+        /* Incoming message from the network */
+        if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+            String date = BluetoothMapUtils.getDateTimeString(c.getLong(c
+                .getColumnIndex(BluetoothMapEmailContract
+                .ExtEmailMessageColumns.TIMESTAMP)));
+            String subject = c.getString(c.getColumnIndex(
+                    BluetoothMapContract.MessageColumns.SUBJECT));
+            if (subject == null )
+                subject = "";
+            String address = c.getString(
+                    c.getColumnIndex(BluetoothMapEmailContract
+                    .ExtEmailMessageColumns.EMAIL_FROM_LIST));
+            if (address == null )
+                address = "";
+            evt = new Event(EVENT_TYPE_NEW, id, newFolder,
+                        mAccount.getType(), date, subject, address, "no");
+        } else {
+            evt = new Event(EVENT_TYPE_NEW, id, newFolder, null, TYPE.EMAIL);
+        }
+        sendEvent(evt);
+    }
+
+    /* Compares a provider row with the mirrored state of an existing message and sends the
+     * resulting events. Returns the updated state, equal to state if nothing changed. */
+    private long reconcileExistingMsg(long id, long state, int folderId, int readFlag,
+            String newFolder) {
+        long oldFolderId = BluetoothMapEmailMsgTable.getFolderId(state);
+        if(V) Log.v(TAG, "handleMsgListChangesMsg id: " + id + ", folderId: "
+                + folderId + ", newFolder: " +newFolder + ", oldFolder: "
+                + oldFolderId);
+        if (folderId != oldFolderId && oldFolderId != -1) {
+            String oldFolder = getFolderPath(oldFolderId);
+            BluetoothMapFolderElement deletedFolder =
+                    mFolders.getFolderByName(
+                            BluetoothMapContract.FOLDER_NAME_DELETED);
+            BluetoothMapFolderElement sentFolder =
+                    mFolders.getFolderByName(
+                            BluetoothMapContract.FOLDER_NAME_SENT);
+            /*
+             *  If the folder is now 'deleted', send a deleted-event in stead of
+             *  a shift or if message is sent initiated by MAP Client, then send
+             *  sending-success otherwise send folderShift
+             */
+            if(deletedFolder != null && deletedFolder.getFolderId()
+                    == folderId) {
+                if((state & BluetoothMapEmailMsgTable.FLAG_LOCAL_SHIFT) == 0) {
+                // "old_folder" used only for MessageShift event
+                Event evt = new Event(EVENT_TYPE_DELETE, id, oldFolder,
+                        null, mAccount.getType());
+                sendEvent(evt);
+                } else {
+                    if(V) Log.v(TAG, " Ignore MCE initiated Shift/Delete");
+                    state &= ~BluetoothMapEmailMsgTable.FLAG_LOCAL_SHIFT;
+                }
+            } else if(sentFolder != null
+                    && sentFolder.getFolderId() == folderId
+                    && (state & BluetoothMapEmailMsgTable.FLAG_LOCAL_SEND) != 0) {
+                if((state & BluetoothMapEmailMsgTable.FLAG_TRANSPARENT) != 0) {
+                    mResolver.delete(
+                            ContentUris.withAppendedId(mMessageUri, id),
+                            null, null);
+                } else {
+                    state &= ~BluetoothMapEmailMsgTable.FLAG_LOCAL_SEND;
+                    //Send both MessageShift and SendingSucess for pushMsg case
+                    Event evt_shift = new Event(EVENT_TYPE_SHIFT, id,
+                            newFolder, oldFolder, mAccount.getType());
+                    sendEvent(evt_shift);
+                    Event evt_send = new Event(EVENT_TYPE_SENDING_SUCCESS,
+                            id, newFolder, null, mAccount.getType());
+                    sendEvent(evt_send);
+                }
+            } else {
+                if (!oldFolder.equalsIgnoreCase("root")) {
+                    if((state & BluetoothMapEmailMsgTable.FLAG_LOCAL_SHIFT) == 0) {
+                        Event evt = new Event(EVENT_TYPE_SHIFT, id, newFolder,
+                                oldFolder, mAccount.getType());
+                        sendEvent(evt);
+                    } else {
+                        if(V) Log.v(TAG, " Ignore MCE initiated shift");
+                        state &= ~BluetoothMapEmailMsgTable.FLAG_LOCAL_SHIFT;
+                    }
+                }
+            }
+            state = BluetoothMapEmailMsgTable.setFolderId(state, folderId);
+        }
+        if(readFlag != BluetoothMapEmailMsgTable.getReadFlag(state)) {
+            if (mMapEventReportVersion >
+            BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+                if((state & BluetoothMapEmailMsgTable.FLAG_LOCAL_READ_STATUS) == 0) {
+                Event evt = new Event(EVENT_TYPE_READ_STATUS, id, newFolder,
+                        mAccount.getType());
+                sendEvent(evt);
+                } else {
+                    if(V) Log.v(TAG, " Ignore MCE initiated ReadStatus change");
+                    state &= ~BluetoothMapEmailMsgTable.FLAG_LOCAL_READ_STATUS;
+                }
+            }
+            state = BluetoothMapEmailMsgTable.setReadFlag(state, readFlag);
+        }
+        return state;
+    }
+
+    /* Drops the cached listing sizes of the folders a changed message left and entered */
+    private void invalidateListingCache(long oldState, long folderId) {
+        long oldFolderId = BluetoothMapEmailMsgTable.getFolderId(oldState);
+        mListingCache.invalidateFolder(oldFolderId);
+        if (folderId != oldFolderId) {
+            mListingCache.invalidateFolder(folderId);
+        }
+    }
 
+    /* Projection used by the reconcile passes: the short state for event report 1.0, plus
+     * the NewMessage event fields for 1.1 and later. */
+    private String[] getReconcileProjection() {
+        if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+            return EMAIL_MSG_PROJECTION_STATE;
+        }
+        return BluetoothMapEmailContract.BT_EMAIL_MSG_PROJECTION_SHORT_EXT;
+    }
+
+    /*
+     * Delta pass: only rows newer than the record id or timestamp watermark are read and
+     * merged in place into the mirrored list. Returns the number of rows scanned.
+     */
+    private int handleMsgListDelta(String where) throws RemoteException {
+        String deltaWhere = where + " AND (" + BluetoothMapEmailContract
+                .ExtEmailMessageColumns.RECORD_ID + ">" + mMaxRecordId + " OR "
+                + BluetoothMapEmailContract.ExtEmailMessageColumns.TIMESTAMP + ">"
+                + mMaxTimestamp + ")";
+        if (V) Log.v(TAG, "handleMsgListDelta where: " + deltaWhere);
+        Cursor c = mProviderClient.query(mMessageUri, getReconcileProjection(), deltaWhere,
+                null, null);
+        int rows = 0;
+        boolean listChanged = false;
+        synchronized(mMsgTable) {
             try {
                 if (c != null && c.moveToFirst()) {
                     do {
-                        long id = c.getLong(c.getColumnIndex(BluetoothMapEmailContract
-                                    .ExtEmailMessageColumns.RECORD_ID));
-                        long folderId = c.getInt(c.getColumnIndex(
+                        rows++;
+                        long id = c.getLong(c.getColumnIndex(
+                                BluetoothMapEmailContract.ExtEmailMessageColumns.RECORD_ID));
+                        int folderId = c.getInt(c.getColumnIndex(
                                 BluetoothMapEmailContract.ExtEmailMessageColumns.MAILBOX_KEY));
-                        int readFlag = c.getInt(c.getColumnIndex(
-                                BluetoothMapEmailContract.ExtEmailMessageColumns.EMAIL_FLAG_READ));
-                        Msg msg = new Msg(id, folderId, readFlag);
-                        msgList.put(id, msg);
+                        int readFlag = c.getInt(c.getColumnIndex(BluetoothMapEmailContract
+                                        .ExtEmailMessageColumns.EMAIL_FLAG_READ));
+                        updateWatermarks(c, id);
+                        String newFolder = getFolderPath(folderId);
+                        long state = mMsgTable.get(id);
+                        if (state == BluetoothMapEmailMsgTable.NO_STATE) {
+                            if(V) Log.v(TAG, "handleMsgListDelta id: " + id + ", folderId: "
+                                + folderId + ", newFolder: " +newFolder);
+                            listChanged = true;
+                            mMsgTable.put(id, BluetoothMapEmailMsgTable.pack(folderId, readFlag));
+                            mListingCache.invalidateFolder(folderId);
+                            sendNewMessageEvent(c, id, newFolder);
+                        } else {
+                            long newState = reconcileExistingMsg(id, state, folderId, readFlag,
+                                    newFolder);
+                            if (newState != state) {
+                                listChanged = true;
+                                mMsgTable.put(id, newState);
+                                invalidateListingCache(state, folderId);
+                            }
+                        }
                     } while (c.moveToNext());
                 }
             } finally {
                 if (c != null) c.close();
             }
-
-            synchronized(getMsgListMsg()) {
-                getMsgListMsg().clear();
-                setMsgListMsg(msgList, true);
+            if (listChanged) {
+                mMasInstance.updateFolderVersionCounter();
             }
         }
+        return rows;
     }
 
-    private void handleMsgListChangesMsg(Uri uri)  throws RemoteException{
-
-        // TODO: Change observer to handle accountId and message ID if present
-
-        HashMap<Long, Msg> msgList = new HashMap<Long, Msg>();
-        if(mAccount == null) {
-            return;
-        }
-        Cursor c;
-        String where = BluetoothMapEmailContract.ExtEmailMessageColumns.ACCOUNT_KEY + "="
-                           + mAccount.getAccountId();
+    /*
+     * Full pass: every row of the account is compared against the mirrored list, which also
+     * finds moves and read status changes that do not advance the watermark, and deletions.
+     * Returns the number of rows scanned.
+     */
+    private int handleMsgListFull(String where) throws RemoteException {
         boolean listChanged = false;
-        if (V) Log.d(TAG, "handleMsgListChangesMsg Email: " + mMapEventReportVersion
-            + "mMapSupportedFeatures Email: " + mMapSupportedFeatures);
-
-        synchronized(getMsgListMsg()) {
+        int rows = 0;
+        Cursor c = mProviderClient.query(mMessageUri, getReconcileProjection(), where,
+                null, null);
+        if (V) Log.v(TAG, "handleMsgListFull where: " + where);
 
-            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c = mProviderClient.query(mMessageUri, BluetoothMapEmailContract
-                               .BT_EMAIL_MSG_PROJECTION_SHORT, where, null, null);
-            } else if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                c = mProviderClient.query(mMessageUri, BluetoothMapEmailContract
-                                .BT_EMAIL_MSG_PROJECTION_SHORT_EXT, where, null, null);
-            } else {
-                c = mProviderClient.query(mMessageUri, BluetoothMapEmailContract
-                               .BT_EMAIL_MESSAGE_PROJECTION, where, null, null);
-            }
-            if (V) Log.v(TAG, "handleMsgListChangesMsg uri: " + uri.toString());
-            if (V) Log.v(TAG, "handleMsgListChangesMsg where: " + where);
+        synchronized(mMsgTable) {
+            mMsgTable.clearSeen();
             try {
                 if (c != null && c.moveToFirst()) {
                     do {
+                        rows++;
                         long id = c.getLong(c.getColumnIndex(
                                 BluetoothMapEmailContract.ExtEmailMessageColumns.RECORD_ID));
                         int folderId = c.getInt(c.getColumnIndex(
                                 BluetoothMapEmailContract.ExtEmailMessageColumns.MAILBOX_KEY));
                         int readFlag = c.getInt(c.getColumnIndex(BluetoothMapEmailContract
                                         .ExtEmailMessageColumns.EMAIL_FLAG_READ));
-                        Msg msg = getMsgListMsg().remove(id);
-                        BluetoothMapFolderElement folderElement = mFolders.getFolderById(folderId);
-                        String newFolder;
-                        if(folderElement != null) {
-                            newFolder = folderElement.getFullPath();
-                        } else {
-                            // This can happen if a new folder is created while connected
-                            newFolder = "unknown";
-                        }
+                        updateWatermarks(c, id);
+                        long state = mMsgTable.get(id);
+                        String newFolder = getFolderPath(folderId);
                         /* We must filter out any actions made by the MCE, hence do not send e.g.
                          * a message deleted and/or MessageShift for messages deleted by the MCE. */
-                        if (msg == null) {
+                        if (state == BluetoothMapEmailMsgTable.NO_STATE) {
                             if(V) Log.v(TAG, "handleMsgListChangesMsg id: " + id + ", folderId: "
                                 + folderId + ", newFolder: " +newFolder);
                             listChanged = true;
                             /* New message - created with message unread */
-                            msg = new Msg(id, folderId, readFlag);
-                            msgList.put(id, msg);
-                            Event evt;
-                            /* Incoming message from the network */
-                            if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                String date = BluetoothMapUtils.getDateTimeString(c.getLong(c
-                                    .getColumnIndex(BluetoothMapEmailContract
-                                    .ExtEmailMessageColumns.TIMESTAMP)));
-                                String subject = c.getString(c.getColumnIndex(
-                                        BluetoothMapContract.MessageColumns.SUBJECT));
-                                if (subject == null )
-                                    subject = "";
-                                String address = c.getString(
-                                        c.getColumnIndex(BluetoothMapEmailContract
-                                        .ExtEmailMessageColumns.EMAIL_FROM_LIST));
-                                if (address == null )
-                                    address = "";
-                                evt = new Event(EVENT_TYPE_NEW, id, newFolder,
-                                            mAccount.getType(), date, subject, address, "no");
-                            } else {
-                                evt = new Event(EVENT_TYPE_NEW, id, newFolder, null, TYPE.EMAIL);
-                            }
-                            sendEvent(evt);
+                            mMsgTable.put(id, BluetoothMapEmailMsgTable.pack(folderId, readFlag)
+                                    | BluetoothMapEmailMsgTable.FLAG_SEEN);
+                            mListingCache.invalidateFolder(folderId);
+                            sendNewMessageEvent(c, id, newFolder);
                         } else {
-                            if(V) Log.v(TAG, "handleMsgListChangesMsg id: " + id + ", folderId: "
-                                    + folderId + ", newFolder: " +newFolder + ", oldFolder: "
-                                    + msg.folderId);
-                            /* Existing message */
-                            if (folderId != msg.folderId && msg.folderId != -1) {
-                                BluetoothMapFolderElement oldFolderElement =
-                                        mFolders.getFolderById(msg.folderId);
-                                String oldFolder;
+                            long newState = reconcileExistingMsg(id, state, folderId, readFlag,
+                                    newFolder);
+                            if (newState != state) {
                                 listChanged = true;
-                                if(oldFolderElement != null) {
-                                    oldFolder = oldFolderElement.getFullPath();
-                                } else {
-                                    // This can happen if a new folder is created while connected
-                                    oldFolder = "unknown";
-                                }
-                                BluetoothMapFolderElement deletedFolder =
-                                        mFolders.getFolderByName(
-                                                BluetoothMapContract.FOLDER_NAME_DELETED);
-                                BluetoothMapFolderElement sentFolder =
-                                        mFolders.getFolderByName(
-                                                BluetoothMapContract.FOLDER_NAME_SENT);
-                                /*
-                                 *  If the folder is now 'deleted', send a deleted-event in stead of
-                                 *  a shift or if message is sent initiated by MAP Client, then send
-                                 *  sending-success otherwise send folderShift
-                                 */
-                                if(deletedFolder != null && deletedFolder.getFolderId()
-                                        == folderId) {
-                                    if(msg.localInitiatedShift == false ) {
-                                    // "old_folder" used only for MessageShift event
-                                    Event evt = new Event(EVENT_TYPE_DELETE, msg.id, oldFolder,
-                                            null, mAccount.getType());
-                                    sendEvent(evt);
-                                    } else {
-                                        if(V) Log.v(TAG, " Ignore MCE initiated Shift/Delete");
-                                        msg.localInitiatedShift = false;
-                                    }
-                                } else if(sentFolder != null
-                                        && sentFolder.getFolderId() == folderId
-                                        && msg.localInitiatedSend == true) {
-                                    if(msg.transparent) {
-                                        mResolver.delete(
-                                                ContentUris.withAppendedId(mMessageUri, id),
-                                                null, null);
-                                    } else {
-                                        msg.localInitiatedSend = false;
-                                        //Send both MessageShift and SendingSucess for pushMsg case
-                                        Event evt_shift = new Event(EVENT_TYPE_SHIFT, msg.id,
-                                                newFolder, oldFolder, mAccount.getType());
-                                        sendEvent(evt_shift);
-                                        Event evt_send = new Event(EVENT_TYPE_SENDING_SUCCESS,
-                                                msg.id, newFolder, null, mAccount.getType());
-                                        sendEvent(evt_send);
-                                    }
-                                } else {
-                                    if (!oldFolder.equalsIgnoreCase("root")) {
-                                        if(msg.localInitiatedShift == false) {
-                                            Event evt = new Event(EVENT_TYPE_SHIFT, id, newFolder,
-                                                    oldFolder, mAccount.getType());
-                                            sendEvent(evt);
-                                        } else {
-                                            if(V) Log.v(TAG, " Ignore MCE initiated shift");
-                                            msg.localInitiatedShift = false;
-                                        }
-                                    }
-                                }
-                                msg.folderId = folderId;
+                                invalidateListingCache(state, folderId);
                             }
-                            if(readFlag != msg.flagRead) {
-                                listChanged = true;
-
-                                if (mMapEventReportVersion >
-                                BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                    if(msg.localInitiatedReadStatus == false) {
-                                    Event evt = new Event(EVENT_TYPE_READ_STATUS, id, newFolder,
-                                            mAccount.getType());
-                                    sendEvent(evt);
-                                    } else {
-                                        if(V) Log.v(TAG, " Ignore MCE initiated ReadStatus change");
-                                        msg.localInitiatedReadStatus = false;
-                                    }
-                                    msg.flagRead = readFlag;
-                                }
-                            }
-
-                            msgList.put(id, msg);
+                            mMsgTable.put(id, newState | BluetoothMapEmailMsgTable.FLAG_SEEN);
                         }
                     } while (c.moveToNext());
                 }
@@ -658,53 +907,147 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
                 if (c != null) c.close();
             }
             // For all messages no longer in the database send a delete notification
-            for (Msg msg : getMsgListMsg().values()) {
-                BluetoothMapFolderElement oldFolderElement = mFolders.getFolderById(msg.folderId);
-                String oldFolder;
+            for (long id : mMsgTable.getUnseen()) {
+                long state = mMsgTable.get(id);
+                boolean transparent = (state & BluetoothMapEmailMsgTable.FLAG_TRANSPARENT) != 0;
+                String oldFolder = getFolderPath(BluetoothMapEmailMsgTable.getFolderId(state));
                 listChanged = true;
-                if(oldFolderElement != null) {
-                    oldFolder = oldFolderElement.getFullPath();
-                } else {
-                    oldFolder = "unknown";
-                }
+                mMsgTable.remove(id);
+                mListingCache.invalidateFolder(BluetoothMapEmailMsgTable.getFolderId(state));
                 /* Some e-mail clients delete the message after sending, and creates a
                  * new message in sent. We cannot track the message anymore, hence send both a
                  * send success and delete message.
                  */
-                if(msg.localInitiatedSend == true) {
-                    msg.localInitiatedSend = false;
+                if((state & BluetoothMapEmailMsgTable.FLAG_LOCAL_SEND) != 0) {
                     // If message is send with transparency don't set folder as message is deleted
-                    if (msg.transparent)
+                    if (transparent)
                         oldFolder = null;
-                    Event evt = new Event(EVENT_TYPE_SENDING_SUCCESS, msg.id, oldFolder, null,
+                    Event evt = new Event(EVENT_TYPE_SENDING_SUCCESS, id, oldFolder, null,
                             mAccount.getType());
                     sendEvent(evt);
                 }
                 /* As this message deleted is only send on a real delete - don't set folder.
                  *  - only send delete event if message is not sent with transparency
                  */
-                if (!msg.transparent ) {
-                    if(msg.localInitiatedShift == false ) {
+                if (!transparent) {
+                    if((state & BluetoothMapEmailMsgTable.FLAG_LOCAL_SHIFT) == 0) {
                         // "old_folder" used only for MessageShift event
                         String eventType = EVENT_TYPE_DELETE;
                         if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
                             eventType = EVENT_TYPE_REMOVED;
                             if (V) Log.v(TAG," send EVENT_TYPE_REMOVED");
                         }
-                        Event evt = new Event(eventType, msg.id, oldFolder,
+                        Event evt = new Event(eventType, id, oldFolder,
                             null, mAccount.getType());
                         sendEvent(evt);
                     } else {
                         if(V) Log.v(TAG, " Ignore MCE initiated shift/delete");
-                        msg.localInitiatedShift = false;
                     }
                 }
             }
-            setMsgListMsg(msgList, listChanged);
+            if (listChanged) {
+                mMasInstance.updateFolderVersionCounter();
+            }
+            mLastFullReconcile = SystemClock.elapsedRealtime();
+        }
+        return rows;
+    }
+
+    /*
+     * Compares the provider aggregates of the account with those of the mirrored table.
+     * Returns false if they differ, or if the provider can not aggregate, so that the caller
+     * falls back to a full pass.
+     */
+    private boolean isMsgTableInSync(String where) throws RemoteException {
+        if (!mAggregateSupported) {
+            return false;
+        }
+        Cursor c = null;
+        try {
+            c = mProviderClient.query(mMessageUri, EMAIL_MSG_PROJECTION_AGGREGATE, where,
+                    null, null);
+            if (c == null || !c.moveToFirst()) {
+                return false;
+            }
+            int count = c.getInt(0);
+            long readSum = c.getLong(1);
+            long folderSum = c.getLong(2);
+            synchronized (mMsgTable) {
+                return count == mMsgTable.size() && readSum == mMsgTable.getReadSum()
+                        && folderSum == mMsgTable.getFolderSum();
+            }
+        } catch (IllegalArgumentException | SQLiteException e) {
+            Log.w(TAG, "isMsgTableInSync: aggregates not supported, using full passes " + e);
+            mAggregateSupported = false;
+            return false;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    private void handleMsgListChangesMsg(Uri uri) throws RemoteException {
+
+        // TODO: Change observer to handle accountId and message ID if present
+
+        if(mAccount == null) {
+            return;
+        }
+        String where = BluetoothMapEmailContract.ExtEmailMessageColumns.ACCOUNT_KEY + "="
+                           + mAccount.getAccountId();
+        if (V) Log.d(TAG, "handleMsgListChangesMsg Email: " + mMapEventReportVersion
+            + "mMapSupportedFeatures Email: " + mMapSupportedFeatures);
+        if (V) Log.v(TAG, "handleMsgListChangesMsg uri: " + uri.toString());
+
+        /* Moves, read status changes and deletions do not advance the watermark. After the
+         * delta pass they show up as a mismatch of the account aggregates, and only then is
+         * the full pass run; otherwise it only runs when the periodic reconcile is due. */
+        boolean full = !DELTA_ENABLED || mMaxRecordId < 0
+                || SystemClock.elapsedRealtime() - mLastFullReconcile >= FULL_RECONCILE_MS;
+        int rows = 0;
+        if (!full) {
+            rows = handleMsgListDelta(where);
+            mDeltaPasses++;
+            if (!isMsgTableInSync(where)) {
+                full = true;
+                mEscalations++;
+            }
+        }
+        if (full) {
+            rows += handleMsgListFull(where);
+            mFullPasses++;
         }
+        mNotifications++;
+        mRowsScanned += rows;
+        mMaxRowsScanned = Math.max(mMaxRowsScanned, rows);
+        if (D) Log.d(TAG, "handleMsgListChangesMsg: " + (full ? "full" : "delta")
+                + " pass scanned " + rows + " rows, avg "
+                + (mRowsScanned / mNotifications) + " per notification");
     }
 
-    private void handleMsgListChanges(Uri uri) {
+    public void dump(StringBuilder sb) {
+        sb.append("  Email observer (mas " + mMasId + "): notifications=" + mNotifications
+                + " delta=" + mDeltaPasses + " full=" + mFullPasses
+                + " escalated=" + mEscalations
+                + " rowsScanned=" + mRowsScanned + " maxRows=" + mMaxRowsScanned
+                + " watermark id=" + mMaxRecordId + " ts=" + mMaxTimestamp + "\n");
+        synchronized (mObserverStatsLock) {
+            sb.append("    onChange=" + mChangeNotifications + " passes=" + mReconcilePasses
+                    + " passesLastMinute=" + mPassesLastMinute
+                    + " coalescingRatio=" + (mReconcilePasses == 0 ? 0
+                            : (float) mChangeNotifications / mReconcilePasses)
+                    + " window=" + COALESCE_WINDOW_MS + "ms"
+                    + " eventBatches=" + mEventBatches + " events=" + mEventsBatched + "\n");
+        }
+        if (mMsgTable == null) return;
+        synchronized (mMsgTable) {
+            sb.append("    msgTable size=" + mMsgTable.size()
+                    + " footprint=" + mMsgTable.getFootprintBytes() + " bytes\n");
+        }
+        mListingCache.dump(sb);
+    }
+
+    /* Returns false if the provider could not be reconciled */
+    private boolean handleMsgListChanges(Uri uri) {
         if(uri.getAuthority().equals(mAuthority)) {
             try {
                 if(D) Log.d(TAG, "handleMsgListChanges: account type = " +
@@ -715,9 +1058,11 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
                 mMasInstance.restartObexServerSession();
                 Log.w(TAG, "Problems contacting the ContentProvider in mas Instance "
                         + mMasId + " restaring ObexServerSession");
+                return false;
             }
 
         }
+        return true;
     }
  @Override
     /**
@@ -743,10 +1088,6 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
            if (V) Log.v(TAG, "setMessageStatusDeleted: handle " + handle
                + " type " + type + " value " + statusValue + "accountId: " + accountId);
            Intent emailIn = new Intent();
-           Msg msg = null;
-           synchronized(getMsgListMsg()) {
-               msg = getMsgListMsg().get(handle);
-           }
            if (statusValue == BluetoothMapAppParams.STATUS_VALUE_YES) {
               emailIn.setAction(BluetoothMapEmailContract.ACTION_DELETE_MESSAGE);
            } else {
@@ -762,7 +1103,9 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
            mContext.sendBroadcast(emailIn);
            res = true;
            //Mark local initiated message delete to avoid notification
-           if (msg != null) msg.localInitiatedShift = true;
+           synchronized(mMsgTable) {
+               mMsgTable.addFlags(handle, BluetoothMapEmailMsgTable.FLAG_LOCAL_SHIFT);
+           }
         } else {
            if(V) Log.v(TAG,"Returning from setMessage Status Deleted");
         }
@@ -789,10 +1132,6 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
 
         Intent emailIn = new Intent();
         long accountId = mAccount.getAccountId();
-        Msg msg = null;
-        synchronized(getMsgListMsg()) {
-            msg = getMsgListMsg().get(handle);
-        }
         if (D) Log.d(TAG, "setMessageStatusRead: EMAIL handle " + handle
             + " type " + type + " value " + statusValue+ "accounId: " +accountId);
          emailIn.setAction(BluetoothMapEmailContract.ACTION_MESSAGE_READ);
@@ -802,7 +1141,9 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
          emailIn.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
          emailIn.setPackage(mEmailPackage);
          //Mark local initiage message status change to avoid notification
-         if (msg != null ) msg.localInitiatedReadStatus = true;
+         synchronized(mMsgTable) {
+             mMsgTable.addFlags(handle, BluetoothMapEmailMsgTable.FLAG_LOCAL_READ_STATUS);
+         }
          mContext.sendBroadcast(emailIn);
         return res;
 
@@ -922,7 +1263,7 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
                     .buildEmailMessageUri(BluetoothMapEmailContract.EMAIL_AUTHORITY);
             if (D) Log.d(TAG, "pushMessage - uriInsert= " + uriInsert.toString() +
                      ", intoFolder id=" + folderElement.getFolderId());
-            synchronized(getMsgListMsg()) {
+            synchronized(mMsgTable) {
                 // Now insert the empty message into folder
                 ContentValues values = new ContentValues();
                 folderId = folderElement.getFolderId();
@@ -985,9 +1326,10 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
                 // Extract the data for the inserted message, and store in local mirror, to
                 // avoid sending a NewMessage Event.
                 //TODO: We need to add the new 1.1 parameter as well:-) e.g. read
-                Msg newMsg = new Msg(handle, folderId, 1); // TODO: Create define for read-state
-                newMsg.transparent = (transparent == 1) ? true : false;
-                newMsg.localInitiatedSend = true;
+                // TODO: Create define for read-state
+                long newState = BluetoothMapEmailMsgTable.pack(folderId, 1)
+                        | BluetoothMapEmailMsgTable.FLAG_LOCAL_SEND;
+                if (transparent == 1) newState |= BluetoothMapEmailMsgTable.FLAG_TRANSPARENT;
                 if ( folderId == folderElement.getFolderByName(
                    BluetoothMapContract.FOLDER_NAME_OUTBOX).getFolderId() ) {
                    //Trigger Email App to send the message over network.
@@ -1000,7 +1342,8 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
                    emailIn.setPackage(mEmailPackage);
                    mContext.sendBroadcast(emailIn);
                  }
-                 getMsgListMsg().put(handle, newMsg);
+                 mMsgTable.put(handle, newState);
+                 mListingCache.invalidateFolder(folderId);
             }
         }
         // If multiple recipients return handle of last
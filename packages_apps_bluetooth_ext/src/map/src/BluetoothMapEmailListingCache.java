@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.map;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Per folder, per filter cache of e-mail message listing sizes and unread status.
+ *
+ * Filled by BluetoothMapContentEmail on a miss and invalidated by the e-mail content observer
+ * for every folder its reconcile pass finds changed. One instance is kept per MAS instance,
+ * so that both sides share it. Counts are only served while the observer is registered and
+ * has reconciled every change it was notified of, otherwise the provider is queried.
+ */
+final class BluetoothMapEmailListingCache {
+    private static final String TAG = "BluetoothMapEmailListingCache";
+
+    private static final boolean D = BluetoothMapService.DEBUG;
+
+    /* Returned by getCount() for entries not in the cache */
+    static final int NOT_CACHED = -1;
+
+    /* Distinct filters kept per folder before the folder entries are dropped */
+    private static final int MAX_FILTERS_PER_FOLDER = 16;
+
+    private static final Map<BluetoothMapMasInstance, BluetoothMapEmailListingCache> sCaches =
+            new WeakHashMap<BluetoothMapMasInstance, BluetoothMapEmailListingCache>();
+
+    private final HashMap<Long, HashMap<String, Integer>> mCounts =
+            new HashMap<Long, HashMap<String, Integer>>();
+    /* Bumped on every invalidation, so a count read before it is not stored after it */
+    private long mGeneration = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mInvalidations = 0;
+    private long mBypassed = 0;
+    /* Set while the observer is registered, nothing is invalidated otherwise */
+    private boolean mTracking = false;
+    /* Change notifications received and the last one fully reconciled */
+    private long mChangeSeq = 0;
+    private long mReconciledSeq = 0;
+
+    static BluetoothMapEmailListingCache getInstance(BluetoothMapMasInstance mas) {
+        synchronized (sCaches) {
+            BluetoothMapEmailListingCache cache = sCaches.get(mas);
+            if (cache == null) {
+                cache = new BluetoothMapEmailListingCache();
+                sCaches.put(mas, cache);
+            }
+            return cache;
+        }
+    }
+
+    private BluetoothMapEmailListingCache() {
+    }
+
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    synchronized void setTracking(boolean tracking) {
+        mTracking = tracking;
+        mReconciledSeq = mChangeSeq;
+    }
+
+    /* A change was notified, the cache is bypassed until a reconcile pass covering it ends */
+    synchronized void noteChange() {
+        mGeneration++;
+        mChangeSeq++;
+    }
+
+    synchronized long getChangeSeq() {
+        return mChangeSeq;
+    }
+
+    /* Called when a reconcile pass, started when getChangeSeq() returned seq, completed */
+    synchronized void setReconciled(long seq) {
+        if (seq > mReconciledSeq) {
+            mReconciledSeq = seq;
+        }
+    }
+
+    private boolean isUsable() {
+        return mTracking && mReconciledSeq == mChangeSeq;
+    }
+
+    synchronized int getCount(long folderId, String filter) {
+        if (!isUsable()) {
+            mBypassed++;
+            return NOT_CACHED;
+        }
+        HashMap<String, Integer> counts = mCounts.get(folderId);
+        Integer count = (counts != null) ? counts.get(filter) : null;
+        if (count == null) {
+            mMisses++;
+            return NOT_CACHED;
+        }
+        mHits++;
+        return count;
+    }
+
+    /* Stores a count read from the provider, unless the cache was invalidated since
+     * generation was taken */
+    synchronized void putCount(long folderId, String filter, int count, long generation) {
+        if (generation != mGeneration) {
+            if (D) Log.d(TAG, "putCount: folder " + folderId + " changed while counting");
+            return;
+        }
+        if (!isUsable()) {
+            return;
+        }
+        HashMap<String, Integer> counts = mCounts.get(folderId);
+        if (counts == null) {
+            counts = new HashMap<String, Integer>();
+            mCounts.put(folderId, counts);
+        } else if (counts.size() >= MAX_FILTERS_PER_FOLDER) {
+            counts.clear();
+        }
+        counts.put(filter, count);
+    }
+
+    synchronized void invalidateFolder(long folderId) {
+        mGeneration++;
+        if (mCounts.remove(folderId) != null) {
+            mInvalidations++;
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mInvalidations += mCounts.size();
+        mCounts.clear();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("    listingCache folders=" + mCounts.size() + " hits=" + mHits
+                + " misses=" + mMisses + " invalidations=" + mInvalidations
+                + " bypassed=" + mBypassed + " tracking=" + mTracking
+                + " unreconciled=" + (mChangeSeq - mReconciledSeq) + "\n");
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2017, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.map;
+
+import java.util.Arrays;
+
+/**
+ * Mirrored state of the messages of an email account, keyed by message record id.
+ *
+ * Open addressing table with linear probing over two primitive arrays, so neither the key
+ * nor the state is boxed. The state of a message is packed into one long: the folder id,
+ * the read flag and the markers the observer needs to filter out MCE initiated changes.
+ * Sums of the read flags and folder ids weighted by record id are kept up to date, so the
+ * table can be compared against the same aggregates of the provider without a row scan.
+ * Callers synchronize on the table.
+ */
+final class BluetoothMapEmailMsgTable {
+
+    /* Returned by get() for ids not in the table */
+    static final long NO_STATE = -1;
+
+    /* Folder id is stored + 1 so that an unknown folder (-1) packs to 0 */
+    private static final long FOLDER_MASK = (1L << 48) - 1;
+    static final long FLAG_READ              = 1L << 48;
+    static final long FLAG_LOCAL_SHIFT       = 1L << 49;
+    static final long FLAG_LOCAL_SEND        = 1L << 50;
+    static final long FLAG_LOCAL_READ_STATUS = 1L << 51;
+    static final long FLAG_TRANSPARENT       = 1L << 52;
+    /* Set for rows seen by the running full reconcile pass */
+    static final long FLAG_SEEN              = 1L << 53;
+
+    private static final long FREE = -1;
+    private static final int MIN_CAPACITY = 64;
+
+    private long[] mKeys;
+    private long[] mStates;
+    private int mSize;
+    /* SUM(id * read flag) and SUM(id * folder id) over all entries */
+    private long mReadSum;
+    private long mFolderSum;
+
+    BluetoothMapEmailMsgTable() {
+        allocate(MIN_CAPACITY);
+    }
+
+    static long pack(long folderId, int readFlag) {
+        return ((folderId + 1) & FOLDER_MASK) | (readFlag != 0 ? FLAG_READ : 0);
+    }
+
+    static long getFolderId(long state) {
+        return (state & FOLDER_MASK) - 1;
+    }
+
+    static int getReadFlag(long state) {
+        return (state & FLAG_READ) != 0 ? 1 : 0;
+    }
+
+    static long setFolderId(long state, long folderId) {
+        return (state & ~FOLDER_MASK) | ((folderId + 1) & FOLDER_MASK);
+    }
+
+    static long setReadFlag(long state, int readFlag) {
+        return readFlag != 0 ? (state | FLAG_READ) : (state & ~FLAG_READ);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long getReadSum() {
+        return mReadSum;
+    }
+
+    long getFolderSum() {
+        return mFolderSum;
+    }
+
+    private void account(long id, long state, int sign) {
+        mReadSum += sign * id * getReadFlag(state);
+        mFolderSum += sign * id * getFolderId(state);
+    }
+
+    /* Approximate heap footprint of the two arrays */
+    long getFootprintBytes() {
+        return (long) mKeys.length * 16;
+    }
+
+    long get(long id) {
+        int slot = find(id);
+        return slot < 0 ? NO_STATE : mStates[slot];
+    }
+
+    void put(long id, long state) {
+        int slot = find(id);
+        if (slot >= 0) {
+            account(id, mStates[slot], -1);
+            account(id, state, 1);
+            mStates[slot] = state;
+            return;
+        }
+        account(id, state, 1);
+        if ((mSize + 1) * 4 > mKeys.length * 3) {
+            rehash(mKeys.length * 2);
+        }
+        insert(id, state);
+        mSize++;
+    }
+
+    /* Adds flags to an existing entry, returns false if the id is unknown */
+    boolean addFlags(long id, long flags) {
+        int slot = find(id);
+        if (slot < 0) return false;
+        account(id, mStates[slot], -1);
+        mStates[slot] |= flags;
+        account(id, mStates[slot], 1);
+        return true;
+    }
+
+    void remove(long id) {
+        int slot = find(id);
+        if (slot < 0) return;
+        account(id, mStates[slot], -1);
+        mSize--;
+        /* Backward shift deletion keeps probe chains intact without tombstones */
+        int mask = mKeys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (mKeys[next] != FREE) {
+            int home = hash(mKeys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mKeys[hole] = mKeys[next];
+                mStates[hole] = mStates[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mKeys[hole] = FREE;
+    }
+
+    void clear() {
+        if (mKeys.length > MIN_CAPACITY) {
+            allocate(MIN_CAPACITY);
+        } else {
+            Arrays.fill(mKeys, FREE);
+        }
+        mSize = 0;
+        mReadSum = 0;
+        mFolderSum = 0;
+    }
+
+    /* Start of a full reconcile pass: no entry is seen yet */
+    void clearSeen() {
+        for (int i = 0; i < mKeys.length; i++) {
+            mStates[i] &= ~FLAG_SEEN;
+        }
+    }
+
+    /* Ids not seen since clearSeen(), i.e. messages no longer in the provider */
+    long[] getUnseen() {
+        int count = 0;
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != FREE && (mStates[i] & FLAG_SEEN) == 0) count++;
+        }
+        long[] ids = new long[count];
+        int n = 0;
+        for (int i = 0; i < mKeys.length && n < count; i++) {
+            if (mKeys[i] != FREE && (mStates[i] & FLAG_SEEN) == 0) ids[n++] = mKeys[i];
+        }
+        return ids;
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int find(long id) {
+        int mask = mKeys.length - 1;
+        int slot = hash(id) & mask;
+        while (mKeys[slot] != FREE) {
+            if (mKeys[slot] == id) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(long id, long state) {
+        int mask = mKeys.length - 1;
+        int slot = hash(id) & mask;
+        while (mKeys[slot] != FREE) {
+            slot = (slot + 1) & mask;
+        }
+        mKeys[slot] = id;
+        mStates[slot] = state;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mStates = new long[capacity];
+        Arrays.fill(mKeys, FREE);
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        long[] states = mStates;
+        allocate(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) insert(keys[i], states[i]);
+        }
+    }
+}